@@ -0,0 +1,96 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+/**
+ * Adapts bulk request size and flush interval to cluster feedback, by additive increase
+ * and multiplicative decrease (AIMD).
+ *
+ * While bulk requests complete within the target latency, the batch size grows and the
+ * flush interval shrinks by a small step. When the cluster pushes back, by 429 or 503
+ * responses, rejected items or a latency over the target, the batch size is halved and
+ * the flush interval is doubled. The configured bounds always hold.
+ */
+public class AdaptiveBulkController {
+
+    private static final int STEPS = 16;
+
+    private final int minActions;
+
+    private final int maxActions;
+
+    private final long minIntervalMillis;
+
+    private final long maxIntervalMillis;
+
+    private final long targetLatencyMillis;
+
+    private final int actionsStep;
+
+    private final long intervalStep;
+
+    private int actions;
+
+    private long intervalMillis;
+
+    public AdaptiveBulkController(int minActions, int maxActions,
+                                  long minIntervalMillis, long maxIntervalMillis, long targetLatencyMillis) {
+        this.minActions = Math.max(1, Math.min(minActions, maxActions));
+        this.maxActions = Math.max(this.minActions, maxActions);
+        this.minIntervalMillis = Math.max(1L, Math.min(minIntervalMillis, maxIntervalMillis));
+        this.maxIntervalMillis = Math.max(this.minIntervalMillis, maxIntervalMillis);
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.actionsStep = Math.max(1, (this.maxActions - this.minActions) / STEPS);
+        this.intervalStep = Math.max(1L, (this.maxIntervalMillis - this.minIntervalMillis) / STEPS);
+        this.actions = this.maxActions;
+        this.intervalMillis = this.maxIntervalMillis;
+    }
+
+    /**
+     * Report a completed bulk request.
+     *
+     * @param latencyMillis the time from sending the request to receiving the response
+     * @param rejectedItems the number of items in the response that were rejected by the cluster
+     */
+    public synchronized void onResponse(long latencyMillis, int rejectedItems) {
+        if (rejectedItems > 0 || latencyMillis > targetLatencyMillis) {
+            decrease();
+        } else {
+            actions = Math.min(maxActions, actions + actionsStep);
+            intervalMillis = Math.max(minIntervalMillis, intervalMillis - intervalStep);
+        }
+    }
+
+    /**
+     * Report a bulk request that was rejected as a whole, for example by a 429 or 503 response.
+     */
+    public synchronized void onRejected() {
+        decrease();
+    }
+
+    public synchronized int getActions() {
+        return actions;
+    }
+
+    public synchronized long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    private void decrease() {
+        actions = Math.max(minActions, actions / 2);
+        intervalMillis = Math.min(maxIntervalMillis, intervalMillis * 2);
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+/**
+ * A queued bulk action: the encoded action metadata and the encoded document source.
+ *
+ * The metadata line is pre-encoded and shared by all actions for the same index,
+ * unless it carries a document ID. An action in an {@link OffHeapArena} keeps metadata
+ * and source together in a chunk of direct memory instead.
+ */
+class BulkAction {
+
+    final String index;
+
+    final byte[] metadata;
+
+    final byte[] source;
+
+    /**
+     * True if the action may be dropped when memory runs short.
+     */
+    final boolean sheddable;
+
+    final OffHeapArena arena;
+
+    final OffHeapArena.Chunk chunk;
+
+    final int offset;
+
+    /**
+     * The number of encoded bytes, metadata and source.
+     */
+    final int encodedLength;
+
+    /**
+     * The fair share key, set before the action is queued.
+     */
+    String key;
+
+    /**
+     * The delivery epoch, set before the action is queued.
+     */
+    DeliveryTracker.Epoch epoch;
+
+    BulkAction(String index, byte[] metadata, byte[] source, boolean sheddable) {
+        this.index = index;
+        this.metadata = metadata;
+        this.source = source;
+        this.sheddable = sheddable;
+        this.arena = null;
+        this.chunk = null;
+        this.offset = 0;
+        this.encodedLength = metadata.length + source.length;
+    }
+
+    BulkAction(String index, OffHeapArena arena, OffHeapArena.Chunk chunk, int offset, int length,
+               boolean sheddable) {
+        this.index = index;
+        this.metadata = null;
+        this.source = null;
+        this.sheddable = sheddable;
+        this.arena = arena;
+        this.chunk = chunk;
+        this.offset = offset;
+        this.encodedLength = length;
+    }
+
+    /**
+     * The approximate size of this action.
+     *
+     * @return the size in bytes
+     */
+    int length() {
+        // the shared metadata line is counted with each action, plus object overhead
+        return encodedLength + 64;
+    }
+
+    void writeTo(BulkBuffer buffer) {
+        buffer.startAction(epoch);
+        if (chunk != null) {
+            buffer.stage(this);
+        } else {
+            buffer.write(metadata, 0, metadata.length);
+            buffer.write(source, 0, source.length);
+        }
+    }
+
+    /**
+     * Give the memory of an action in an arena back. Must be called exactly once for an action
+     * that leaves the queue without being staged in a bulk buffer.
+     */
+    void free() {
+        if (arena != null) {
+            arena.release(chunk);
+        }
+    }
+
+    /**
+     * Drop an action that leaves the queue without being sent. Its memory is given back, and it
+     * counts as not delivered.
+     */
+    void drop() {
+        free();
+        if (epoch != null) {
+            epoch.leave(1, false);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A reusable buffer for the body of a bulk request. Resetting the buffer keeps
+ * the backing array, so a buffer grows to the size of the largest batch once
+ * and is then used again for every following batch.
+ *
+ * Actions in an {@link OffHeapArena} are not copied but staged: the buffer keeps slices of
+ * their chunks, which are written to the socket as they are. Resetting the buffer releases
+ * the staged actions. Other direct buffers, such as mapped file regions, can be staged the same
+ * way. Bytes that are written after the first staged buffer are staged as a copy, so the content
+ * keeps its order.
+ */
+public class BulkBuffer extends ByteArrayOutputStream {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ByteBuffer direct;
+
+    private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+    private final List<BulkAction> staged = new ArrayList<BulkAction>();
+
+    private int stagedBytes;
+
+    private OffHeapArena.Chunk lastChunk;
+
+    /**
+     * The index of all actions in this buffer, if bulk requests are sent to the index URL.
+     */
+    String index;
+
+    /**
+     * The number of actions in this buffer.
+     */
+    int actions;
+
+    /**
+     * The offsets at which the actions in this buffer start, so a buffer can be split between actions.
+     */
+    private int[] starts = new int[64];
+
+    /**
+     * The delivery epochs of the actions in this buffer.
+     */
+    private DeliveryTracker.Epoch[] epochs = new DeliveryTracker.Epoch[64];
+
+    public BulkBuffer() {
+        super(64 * 1024);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        index = null;
+        Arrays.fill(epochs, 0, actions, null);
+        actions = 0;
+        for (BulkAction action : staged) {
+            action.free();
+        }
+        staged.clear();
+        segments.clear();
+        stagedBytes = 0;
+        lastChunk = null;
+    }
+
+    /**
+     * Begin the next action at the current end of the buffer.
+     *
+     * @param epoch the delivery epoch of the action, or null
+     */
+    void startAction(DeliveryTracker.Epoch epoch) {
+        if (actions == starts.length) {
+            starts = Arrays.copyOf(starts, actions * 2);
+            epochs = Arrays.copyOf(epochs, actions * 2);
+        }
+        epochs[actions] = epoch;
+        starts[actions++] = size();
+    }
+
+    /**
+     * The actions in this buffer were acknowledged or dropped. Each action is counted once, even if
+     * this is called again.
+     *
+     * @param delivered true if the actions were acknowledged, false if they were dropped
+     */
+    void delivered(boolean delivered) {
+        int i = 0;
+        while (i < actions) {
+            DeliveryTracker.Epoch epoch = epochs[i];
+            int n = 1;
+            epochs[i++] = null;
+            // actions of the same epoch are counted together
+            while (i < actions && epochs[i] == epoch) {
+                epochs[i++] = null;
+                n++;
+            }
+            if (epoch != null) {
+                epoch.leave(n, delivered);
+            }
+        }
+    }
+
+    /**
+     * Some actions in this buffer failed, the others were acknowledged. Actions that are taken out
+     * for a retry must be extracted first.
+     *
+     * @param failed true at the position of each action that failed
+     */
+    void delivered(boolean[] failed) {
+        for (int i = 0; i < actions; i++) {
+            if (failed[i] && epochs[i] != null) {
+                epochs[i].leave(1, false);
+                epochs[i] = null;
+            }
+        }
+        delivered(true);
+    }
+
+    /**
+     * Copy some actions to a new buffer on the heap, for example to send them again. Their delivery
+     * epochs move to the copy, so they are not counted when this buffer is delivered.
+     *
+     * @param selected true at the position of each action to copy
+     * @return the copy
+     */
+    BulkBuffer extract(boolean[] selected) {
+        byte[] b = toByteArray();
+        BulkBuffer copy = new BulkBuffer();
+        copy.index = index;
+        for (int i = 0; i < actions; i++) {
+            if (selected[i]) {
+                copy.copyActions(b, starts, epochs, actions, i, i + 1);
+                epochs[i] = null;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Split the buffer between two actions into two halves with about the same number of actions.
+     * The halves are copies on the heap, this buffer is left as it is.
+     *
+     * @return the two halves, or null if the buffer holds less than two actions
+     */
+    BulkBuffer[] split() {
+        if (actions < 2) {
+            return null;
+        }
+        byte[] b = toByteArray();
+        BulkBuffer[] halves = new BulkBuffer[] { new BulkBuffer(), new BulkBuffer() };
+        halves[0].copyActions(b, starts, epochs, actions, 0, actions / 2);
+        halves[1].copyActions(b, starts, epochs, actions, actions / 2, actions);
+        halves[0].index = index;
+        halves[1].index = index;
+        return halves;
+    }
+
+    /**
+     * Append the actions of another buffer.
+     *
+     * @param other the other buffer
+     */
+    void append(BulkBuffer other) {
+        copyActions(other.toByteArray(), other.starts, other.epochs, other.actions, 0, other.actions);
+    }
+
+    private void copyActions(byte[] b, int[] starts, DeliveryTracker.Epoch[] epochs, int actions,
+                             int from, int to) {
+        for (int i = from; i < to; i++) {
+            int end = i + 1 < actions ? starts[i + 1] : b.length;
+            startAction(epochs[i]);
+            write(b, starts[i], end - starts[i]);
+        }
+    }
+
+    /**
+     * Stage an action in an arena. Actions that lie next to each other in a chunk share a slice.
+     *
+     * @param action the action
+     */
+    void stage(BulkAction action) {
+        ByteBuffer last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && lastChunk == action.chunk && last.limit() == action.offset) {
+            ((Buffer) last).limit(action.offset + action.encodedLength);
+        } else {
+            ByteBuffer segment = action.chunk.buffer.duplicate();
+            ((Buffer) segment).limit(action.offset + action.encodedLength).position(action.offset);
+            segments.add(segment);
+        }
+        staged.add(action);
+        stagedBytes += action.encodedLength;
+        lastChunk = action.chunk;
+    }
+
+    /**
+     * Stage the remaining content of a buffer. The content must not change until the buffer is reset.
+     *
+     * @param buffer the buffer
+     */
+    void stage(ByteBuffer buffer) {
+        segments.add(buffer.duplicate());
+        stagedBytes += buffer.remaining();
+        lastChunk = null;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (segments.isEmpty()) {
+            super.write(b, off, len);
+        } else {
+            segments.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+            stagedBytes += len;
+            lastChunk = null;
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized int size() {
+        return count + stagedBytes;
+    }
+
+    @Override
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        super.writeTo(out);
+        if (!segments.isEmpty()) {
+            byte[] b = new byte[8192];
+            for (ByteBuffer segment : segments) {
+                ByteBuffer bb = segment.duplicate();
+                while (bb.hasRemaining()) {
+                    int n = Math.min(b.length, bb.remaining());
+                    bb.get(b, 0, n);
+                    out.write(b, 0, n);
+                }
+            }
+        }
+    }
+
+    public void write(String s) {
+        byte[] b = s.getBytes(UTF8);
+        write(b, 0, b.length);
+    }
+
+    /**
+     * Return the backing array. Only the first {@link #size()} bytes are valid.
+     * If actions are staged, they are copied to the heap first.
+     *
+     * @return the backing array
+     */
+    public byte[] array() {
+        if (!segments.isEmpty()) {
+            return toByteArray();
+        }
+        return buf;
+    }
+
+    @Override
+    public synchronized byte[] toByteArray() {
+        if (segments.isEmpty()) {
+            return super.toByteArray();
+        }
+        ByteBuffer bb = ByteBuffer.allocate(size());
+        bb.put(buf, 0, count);
+        for (ByteBuffer segment : segments) {
+            bb.put(segment.duplicate());
+        }
+        return bb.array();
+    }
+
+    /**
+     * Copy the buffer content to a direct byte buffer. The direct buffer is kept and reused
+     * for the next batch unless it is too small.
+     *
+     * @return a direct byte buffer, ready for reading
+     */
+    public ByteBuffer toDirectByteBuffer() {
+        if (direct == null || direct.capacity() < count) {
+            direct = ByteBuffer.allocateDirect(Math.max(count, buf.length));
+        }
+        ((Buffer) direct).clear();
+        direct.put(buf, 0, count);
+        ((Buffer) direct).flip();
+        return direct;
+    }
+
+    /**
+     * Return the content as direct byte buffers for a gathering write. Staged actions are
+     * returned as slices of their chunks, written bytes are copied to a direct byte buffer.
+     * Bytes written after staged actions are returned as heap buffers.
+     *
+     * @return byte buffers, ready for reading
+     */
+    public ByteBuffer[] toDirectByteBuffers() {
+        if (segments.isEmpty()) {
+            return new ByteBuffer[] { toDirectByteBuffer() };
+        }
+        int first = count > 0 ? 1 : 0;
+        ByteBuffer[] buffers = new ByteBuffer[first + segments.size()];
+        if (count > 0) {
+            buffers[0] = toDirectByteBuffer();
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            buffers[first + i] = segments.get(i).duplicate();
+        }
+        return buffers;
+    }
+}
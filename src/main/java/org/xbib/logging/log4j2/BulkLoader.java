@@ -0,0 +1,522 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads NDJSON files into Elasticsearch, for example spill files or archived log dumps.
+ *
+ * Files are memory-mapped and split at line boundaries into bulk requests of bounded size, which
+ * are sent over parallel connections. The bulk requests are staged as slices of the mapped files,
+ * so with the {@code nio} transport they are written from the page cache to the socket with gathering
+ * writes, without copying them to the heap. Bulk requests that are rejected with 429 or 503, or that
+ * fail with an I/O error, are sent again with exponential backoff. Bulk requests that are too large for
+ * the cluster are split in halves between documents, down to single documents.
+ *
+ * Files that start with a SMILE header, like spill files of clients with the {@code smile} format, are
+ * split at the SMILE stream separator and sent with the SMILE content type. They must contain action
+ * documents, so they can not be loaded with {@code --index}.
+ *
+ * Completed bulk requests are appended to a progress file. A load that is started again with the same
+ * files, options and progress file skips them. Throughput is reported every ten seconds and at the end.
+ *
+ * <pre>
+ * java org.xbib.logging.log4j2.BulkLoader [options] file...
+ *   --url url            the bulk endpoint URL (default: http://localhost:9200/_bulk)
+ *   --index index        files contain documents, which are indexed into this index; without this option,
+ *                        files must contain index or create actions and documents, like spill files
+ *   --type type          the document type for --index (default: none)
+ *   --transport name     the HTTP transport (default: nio)
+ *   --concurrency n      the number of bulk requests on the wire at the same time (default: 4)
+ *   --maxBytes n         the maximum size of a bulk request in bytes (default: 5242880)
+ *   --retries n          the number of attempts for a bulk request (default: 5)
+ *   --progress file      the progress file (default: none)
+ * </pre>
+ */
+public class BulkLoader {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String CONTENT_TYPE = "application/x-ndjson";
+
+    private static final int HTTP_REQUEST_TOO_LARGE = 413;
+
+    private static final ByteBuffer NEWLINE = ByteBuffer.allocateDirect(1);
+
+    private static final ByteBuffer STREAM_SEPARATOR = ByteBuffer.allocateDirect(1);
+
+    private static final byte[] SMILE_HEADER = {':', ')', '\n'};
+
+    static {
+        ((Buffer) NEWLINE.put((byte) '\n')).flip();
+        ((Buffer) STREAM_SEPARATOR.put((byte) 0xFF)).flip();
+    }
+
+    private final URL url;
+
+    private final HttpTransport transport;
+
+    private final int concurrency;
+
+    private final int maxBytes;
+
+    private final int retries;
+
+    private final int window;
+
+    private final ByteBuffer actionLine;
+
+    private final File progressFile;
+
+    private final Set<String> completed = new HashSet<String>();
+
+    private final AtomicLong docs = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final Semaphore permits;
+
+    private OutputStream progress;
+
+    private long t0;
+
+    public BulkLoader(String url, String index, String type, String transport, int concurrency, int maxBytes,
+                      int retries, File progressFile) throws IOException {
+        this.url = new URL(url);
+        this.transport = HttpTransports.create(transport);
+        this.concurrency = concurrency;
+        this.maxBytes = maxBytes;
+        this.retries = retries;
+        this.window = (int) Math.min(Integer.MAX_VALUE, Math.max(256L * 1024 * 1024, 2L * maxBytes));
+        this.progressFile = progressFile;
+        this.permits = new Semaphore(2 * concurrency);
+        if (index != null) {
+            String line = "{\"index\":{\"_index\":\"" + index + "\""
+                    + (type != null ? ",\"_type\":\"" + type + "\"" : "") + "}}\n";
+            byte[] b = line.getBytes(UTF8);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(b.length);
+            ((Buffer) buffer.put(b)).flip();
+            this.actionLine = buffer;
+        } else {
+            this.actionLine = null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:9200/_bulk";
+        String index = null;
+        String type = null;
+        String transport = "nio";
+        int concurrency = 4;
+        int maxBytes = 5 * 1024 * 1024;
+        int retries = 5;
+        File progressFile = null;
+        List<File> files = new ArrayList<File>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    files.add(new File(arg));
+                } else if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value for " + arg);
+                } else if ("--url".equals(arg)) {
+                    url = args[++i];
+                } else if ("--index".equals(arg)) {
+                    index = args[++i];
+                } else if ("--type".equals(arg)) {
+                    type = args[++i];
+                } else if ("--transport".equals(arg)) {
+                    transport = args[++i];
+                } else if ("--concurrency".equals(arg)) {
+                    concurrency = Math.max(1, Integer.parseInt(args[++i]));
+                } else if ("--maxBytes".equals(arg)) {
+                    maxBytes = Math.max(1024, Integer.parseInt(args[++i]));
+                } else if ("--retries".equals(arg)) {
+                    retries = Math.max(1, Integer.parseInt(args[++i]));
+                } else if ("--progress".equals(arg)) {
+                    progressFile = new File(args[++i]);
+                } else {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+            if (files.isEmpty()) {
+                throw new IllegalArgumentException("no files");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: java " + BulkLoader.class.getName()
+                    + " [--url url] [--index index] [--type type] [--transport name] [--concurrency n]"
+                    + " [--maxBytes n] [--retries n] [--progress file] file...");
+            System.exit(2);
+            return;
+        }
+        BulkLoader loader = new BulkLoader(url, index, type, transport, concurrency, maxBytes, retries, progressFile);
+        System.exit(loader.load(files) ? 0 : 1);
+    }
+
+    /**
+     * Load files.
+     *
+     * @param files the files
+     * @return true if all bulk requests were sent
+     * @throws IOException if a file can not be read or the progress file can not be written
+     */
+    public boolean load(List<File> files) throws IOException {
+        t0 = System.nanoTime();
+        if (progressFile != null) {
+            readProgress();
+            progress = new FileOutputStream(progressFile, true);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            for (File file : files) {
+                split(file, executor);
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(10L, TimeUnit.SECONDS)) {
+                report();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        } finally {
+            executor.shutdownNow();
+            if (progress != null) {
+                progress.close();
+            }
+            transport.close();
+        }
+        report();
+        return failed.get() == 0;
+    }
+
+    long getDocs() {
+        return docs.get();
+    }
+
+    long getSkipped() {
+        return skipped.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    private void readProgress() throws IOException {
+        if (!progressFile.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(progressFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                completed.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Split a file into bulk requests and submit them. The file is mapped in windows, each window
+     * starts where the last bulk request of the previous window ended.
+     */
+    private void split(File file, ExecutorService executor) throws IOException, InterruptedException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        int actionBytes = actionLine != null ? actionLine.remaining() : 0;
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            boolean smile = isSmile(raf);
+            if (smile && actionLine != null) {
+                throw new IOException(file + ": SMILE files must contain action documents, --index is not supported");
+            }
+            byte separator = smile ? (byte) 0xFF : (byte) '\n';
+            long pos = 0L;
+            while (pos < size) {
+                int length = (int) Math.min(window, size - pos);
+                boolean last = pos + length == size;
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+                int[] ends = new int[64];
+                int docs = 0;
+                int start = 0;
+                int end = 0;
+                int lines = 0;
+                for (int i = 0; i < length; i++) {
+                    if (map.get(i) != separator) {
+                        continue;
+                    }
+                    // without an index, documents follow their actions
+                    if (actionLine == null && (++lines & 1) == 1) {
+                        continue;
+                    }
+                    if (i + 1 - start + (docs + 1) * actionBytes > maxBytes && docs > 0) {
+                        submit(executor, file, pos, map, start, ends, docs, false, smile);
+                        start = end;
+                        docs = 0;
+                    }
+                    if (docs == ends.length) {
+                        ends = Arrays.copyOf(ends, 2 * docs);
+                    }
+                    end = i + 1;
+                    ends[docs++] = end;
+                }
+                if (last) {
+                    boolean newline = false;
+                    if (end < length && (smile || !isBlank(map, end, length))) {
+                        // the last document has no separator
+                        if (docs == ends.length) {
+                            ends = Arrays.copyOf(ends, docs + 1);
+                        }
+                        end = length;
+                        ends[docs++] = end;
+                        newline = true;
+                    }
+                    if (docs > 0) {
+                        submit(executor, file, pos, map, start, ends, docs, newline, smile);
+                    }
+                    pos = size;
+                } else if (start > 0) {
+                    pos += start;
+                } else if (docs > 0) {
+                    submit(executor, file, pos, map, start, ends, docs, false, smile);
+                    pos += end;
+                } else {
+                    throw new IOException(file + ": line at offset " + pos + " longer than " + window + " bytes");
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean isSmile(RandomAccessFile raf) throws IOException {
+        byte[] b = new byte[SMILE_HEADER.length];
+        raf.seek(0L);
+        int n = 0;
+        while (n < b.length) {
+            int r = raf.read(b, n, b.length - n);
+            if (r < 0) {
+                return false;
+            }
+            n += r;
+        }
+        return Arrays.equals(b, SMILE_HEADER);
+    }
+
+    private static boolean isBlank(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void submit(ExecutorService executor, File file, long pos, ByteBuffer map, int start,
+                        int[] ends, int docs, boolean terminate, boolean smile) throws InterruptedException {
+        String key = file.getPath() + " " + (pos + start);
+        if (completed.contains(key)) {
+            skipped.addAndGet(docs);
+            return;
+        }
+        // bounds the mapped regions and buffers held by pending bulk requests
+        permits.acquire();
+        executor.submit(new Batch(key, map, start, Arrays.copyOf(ends, docs), terminate, smile));
+    }
+
+    private synchronized void done(String key) {
+        if (progress == null) {
+            return;
+        }
+        try {
+            progress.write((key + "\n").getBytes(UTF8));
+            progress.flush();
+        } catch (IOException e) {
+            System.err.println("unable to write progress file " + progressFile + ": " + e.getMessage());
+        }
+    }
+
+    private void report() {
+        double secs = Math.max(0.001, (System.nanoTime() - t0) / 1e9);
+        double mb = bytes.get() / (1024.0 * 1024.0);
+        System.out.println(String.format(Locale.ROOT,
+                "%d docs, %.1f MB in %.1f s: %.0f docs/s, %.1f MB/s, %d docs skipped, %d docs failed, "
+                        + "%d items rejected",
+                docs.get(), mb, secs, docs.get() / secs, mb / secs, skipped.get(), failed.get(), rejected.get()));
+    }
+
+    /**
+     * A bulk request of documents in a mapped region of a file. The documents end at the given offsets,
+     * so a bulk request that is too large for the cluster is split between documents without copying.
+     */
+    private class Batch implements Runnable {
+
+        private final String key;
+
+        private final ByteBuffer map;
+
+        private final int start;
+
+        private final int[] ends;
+
+        private final boolean terminate;
+
+        private final String contentType;
+
+        private final ByteBuffer separator;
+
+        Batch(String key, ByteBuffer map, int start, int[] ends, boolean terminate, boolean smile) {
+            this.key = key;
+            this.map = map;
+            this.start = start;
+            this.ends = ends;
+            this.terminate = terminate;
+            this.contentType = smile ? SmileEncoder.CONTENT_TYPE : CONTENT_TYPE;
+            this.separator = smile ? STREAM_SEPARATOR : NEWLINE;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // a bulk request is complete only if all its parts were sent
+                if (send(0, ends.length)) {
+                    done(key);
+                }
+            } finally {
+                permits.release();
+            }
+        }
+
+        private BulkBuffer stage(int from, int to) {
+            BulkBuffer buffer = new BulkBuffer();
+            ByteBuffer slice = map.duplicate();
+            int offset = from > 0 ? ends[from - 1] : start;
+            if (actionLine == null) {
+                ((Buffer) slice).limit(ends[to - 1]).position(offset);
+                buffer.stage(slice);
+            } else {
+                for (int i = from; i < to; i++) {
+                    buffer.stage(actionLine);
+                    ((Buffer) slice).limit(ends[i]).position(offset);
+                    buffer.stage(slice);
+                    offset = ends[i];
+                }
+            }
+            if (terminate && to == ends.length) {
+                buffer.stage(separator);
+            }
+            return buffer;
+        }
+
+        /**
+         * Send a range of the documents. If the cluster answers with 413, the range is split in halves,
+         * which are sent one after the other.
+         *
+         * @param from the index of the first document
+         * @param to the index after the last document
+         * @return true if the documents were sent
+         */
+        private boolean send(int from, int to) {
+            int count = to - from;
+            BulkBuffer buffer = stage(from, to);
+            long backoffMillis = 100L;
+            String error;
+            try {
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        HttpTransport.Response response = transport.post(url, contentType, buffer).get();
+                        int status = response.getStatus();
+                        if (status == HttpURLConnection.HTTP_OK) {
+                            rejected.addAndGet(ElasticsearchHttpClient.countRejectedItems(response.getBody()));
+                            docs.addAndGet(count);
+                            bytes.addAndGet(buffer.size());
+                            return true;
+                        }
+                        error = status + " " + response.getReason();
+                        if (status == HTTP_REQUEST_TOO_LARGE && count > 1) {
+                            buffer.reset();
+                            int mid = from + count / 2;
+                            boolean first = send(from, mid);
+                            return send(mid, to) && first;
+                        }
+                        if (status != 429 && status != HttpURLConnection.HTTP_UNAVAILABLE) {
+                            break;
+                        }
+                    } catch (ExecutionException e) {
+                        error = String.valueOf(e.getCause());
+                    } catch (IOException e) {
+                        error = e.toString();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        error = "interrupted";
+                        break;
+                    }
+                    if (attempt >= retries) {
+                        break;
+                    }
+                    try {
+                        Thread.sleep(backoffMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    backoffMillis = Math.min(30000L, 2 * backoffMillis);
+                }
+            } finally {
+                buffer.reset();
+            }
+            failed.addAndGet(count);
+            System.err.println("bulk request " + key + (count < ends.length ? " (documents " + from + " to " + to
+                    + ")" : "") + " failed: " + error);
+            return false;
+        }
+    }
+}
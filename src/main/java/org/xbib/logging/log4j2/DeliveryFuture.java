@@ -0,0 +1,118 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future for the delivery of events. The value is true if the events were acknowledged by the
+ * cluster, and false if some of them were dropped, or the client was closed before they were sent.
+ */
+class DeliveryFuture implements Future<Boolean> {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    private volatile boolean delivered;
+
+    void complete(boolean delivered) {
+        this.delivered = delivered;
+        latch.countDown();
+    }
+
+    /**
+     * A future for the delivery of the events of several futures.
+     *
+     * @param futures the futures
+     * @return a future that is true if all futures are true
+     */
+    static Future<Boolean> all(final List<Future<Boolean>> futures) {
+        return new Future<Boolean>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return false;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+
+            @Override
+            public boolean isDone() {
+                for (Future<Boolean> future : futures) {
+                    if (!future.isDone()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Boolean get() throws InterruptedException, ExecutionException {
+                boolean delivered = true;
+                for (Future<Boolean> future : futures) {
+                    delivered &= future.get();
+                }
+                return delivered;
+            }
+
+            @Override
+            public Boolean get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+                long deadline = System.nanoTime() + unit.toNanos(timeout);
+                boolean delivered = true;
+                for (Future<Boolean> future : futures) {
+                    delivered &= future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                return delivered;
+            }
+        };
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    @Override
+    public Boolean get() throws InterruptedException {
+        latch.await();
+        return delivered;
+    }
+
+    @Override
+    public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return delivered;
+    }
+}
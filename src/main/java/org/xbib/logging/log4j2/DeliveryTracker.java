@@ -0,0 +1,265 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the delivery of queued events, for callers that must know that events were indexed
+ * before they go on, without waiting for the next flush.
+ *
+ * Events are counted in epochs. An event enters the current epoch when it is queued, and leaves it
+ * when the bulk request that carries it is acknowledged, or when it is dropped. A barrier seals the
+ * current epoch and opens the next one. The future of the barrier completes when the sealed epoch and
+ * all epochs before it are empty; it is false if an event of the sealed epoch, that is an event queued
+ * since the previous barrier, was dropped. A single event can be tracked in an epoch of its own, which
+ * counts in the current epoch as well.
+ *
+ * Counting starts with the first barrier or single event, so clients that never ask for delivery do not
+ * pay for it. The events queued before are counted as one stand-in event of the epoch that was current
+ * then, which leaves when the client has seen all of them acknowledged or dropped.
+ */
+class DeliveryTracker {
+
+    private final Set<Epoch> singles = Collections.newSetFromMap(new ConcurrentHashMap<Epoch, Boolean>());
+
+    private final List<Epoch> standIns = new ArrayList<Epoch>();
+
+    private volatile Epoch current = new Epoch(null);
+
+    private volatile boolean tracking;
+
+    /**
+     * Start counting events, before the first barrier or single event.
+     *
+     * @return true if counting started now, and the client must release the stand-in of the events
+     * queued so far once they left the client
+     */
+    synchronized boolean start() {
+        if (tracking) {
+            return false;
+        }
+        current.pending.incrementAndGet();
+        standIns.add(current);
+        tracking = true;
+        return true;
+    }
+
+    /**
+     * @return true if a stand-in waits for events that were queued before counting started
+     */
+    synchronized boolean hasStandIns() {
+        return !standIns.isEmpty();
+    }
+
+    /**
+     * The events that were queued before counting started have left the client.
+     */
+    void release() {
+        List<Epoch> epochs;
+        synchronized (this) {
+            epochs = new ArrayList<Epoch>(standIns);
+            standIns.clear();
+        }
+        for (Epoch epoch : epochs) {
+            epoch.leave(1, true);
+        }
+    }
+
+    /**
+     * Take over the stand-ins of another tracker, whose events were handed over to the client of this one.
+     *
+     * @param other the other tracker
+     * @return true if there were stand-ins to take over
+     */
+    boolean adopt(DeliveryTracker other) {
+        List<Epoch> epochs;
+        synchronized (other) {
+            epochs = new ArrayList<Epoch>(other.standIns);
+            other.standIns.clear();
+        }
+        if (epochs.isEmpty()) {
+            return false;
+        }
+        synchronized (this) {
+            standIns.addAll(epochs);
+        }
+        return true;
+    }
+
+    /**
+     * Count an event that is about to be queued.
+     *
+     * @return the epoch of the event, or null if counting has not started
+     */
+    Epoch enter() {
+        if (!tracking) {
+            return null;
+        }
+        while (true) {
+            Epoch epoch = current;
+            if (epoch.enter()) {
+                return epoch;
+            }
+        }
+    }
+
+    /**
+     * Count an event that is about to be queued and tracked on its own.
+     *
+     * @return the epoch of the event, with a future for the event
+     */
+    Epoch enterSingle() {
+        start();
+        Epoch epoch = new Epoch(enter());
+        epoch.pending.set(1L);
+        epoch.sealed = true;
+        singles.add(epoch);
+        return epoch;
+    }
+
+    /**
+     * Seal the current epoch.
+     *
+     * @return a future that completes when the events queued so far were acknowledged or dropped
+     */
+    synchronized DeliveryFuture barrier() {
+        start();
+        Epoch epoch = current;
+        Epoch next = new Epoch(null);
+        synchronized (epoch) {
+            // an epoch is done before it is sealed only if the tracker failed
+            if (!epoch.done) {
+                epoch.next = next;
+                next.previous = epoch;
+            }
+        }
+        current = next;
+        epoch.seal();
+        return epoch.future;
+    }
+
+    /**
+     * Complete the futures of all epochs with false, when the client is closed and the events
+     * that were not acknowledged yet are lost.
+     */
+    synchronized void fail() {
+        Epoch epoch = current;
+        while (epoch != null) {
+            Epoch previous;
+            synchronized (epoch) {
+                previous = epoch.previous;
+                epoch.done = true;
+            }
+            epoch.future.complete(false);
+            epoch = previous;
+        }
+        for (Epoch single : singles) {
+            single.future.complete(false);
+        }
+        singles.clear();
+        standIns.clear();
+    }
+
+    /**
+     * Events that were queued between two barriers.
+     */
+    class Epoch {
+
+        private final AtomicLong pending = new AtomicLong();
+
+        private final DeliveryFuture future = new DeliveryFuture();
+
+        private final Epoch parent;
+
+        private volatile boolean sealed;
+
+        private volatile boolean failed;
+
+        private Epoch previous;
+
+        private Epoch next;
+
+        private boolean done;
+
+        Epoch(Epoch parent) {
+            this.parent = parent;
+        }
+
+        DeliveryFuture getFuture() {
+            return future;
+        }
+
+        private boolean enter() {
+            pending.incrementAndGet();
+            if (!sealed) {
+                return true;
+            }
+            // sealed by a barrier meanwhile, the event belongs to the next epoch
+            leave(1, true);
+            return false;
+        }
+
+        /**
+         * Events leave the epoch.
+         *
+         * @param n         the number of events
+         * @param delivered true if the events were acknowledged, false if they were dropped
+         */
+        void leave(int n, boolean delivered) {
+            if (!delivered) {
+                failed = true;
+            }
+            if (pending.addAndGet(-n) <= 0) {
+                tryComplete();
+            }
+            if (parent != null) {
+                parent.leave(n, delivered);
+            }
+        }
+
+        private void seal() {
+            sealed = true;
+            tryComplete();
+        }
+
+        private void tryComplete() {
+            Epoch after;
+            synchronized (this) {
+                if (done || !sealed || previous != null || pending.get() > 0) {
+                    return;
+                }
+                done = true;
+                after = next;
+            }
+            future.complete(!failed);
+            if (parent != null) {
+                singles.remove(this);
+            }
+            if (after != null) {
+                synchronized (after) {
+                    after.previous = null;
+                }
+                after.tryComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ObjectMessage;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An appender that encodes events with a layout, for example a JSON layout with the schema
+ * of your choice, and sends them with the client of a nested {@link ElasticsearchHttpProvider}.
+ *
+ * The encoded event goes into the queue as it is, without an intermediate map. A layout may
+ * write several lines per event, and may end an event with a comma, as JSON layouts do in
+ * complete mode; line breaks between JSON tokens are replaced by spaces, so each event
+ * becomes one line of the bulk request.
+ *
+ * Without a layout, the fields of the event are written by the client, in the format of the
+ * provider. The data of map and structured data messages, and the map of an object message,
+ * are written as fields of the event with their types, without formatting the message as text.
+ *
+ * Events with the delivery marker of the provider, or a marker that has it as a parent, are sent right
+ * away, and the future of their delivery is kept for the logging thread, see
+ * {@link ElasticsearchHttpClients#delivery()}.
+ */
+@Plugin(name = "ElasticsearchHttp", category = "Core", elementType = "appender", printObject = true)
+public class ElasticsearchHttpAppender extends AbstractAppender {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private final ElasticsearchHttpClient client;
+
+    private final ElasticsearchHttpClient.Target target;
+
+    private final String deliveryMarker;
+
+    private static final int MAX_CAUSES = 8;
+
+    private ElasticsearchHttpAppender(String name, Filter filter, Layout<? extends Serializable> layout,
+                                      boolean ignoreExceptions, ElasticsearchHttpProvider provider) {
+        super(name, filter, layout, ignoreExceptions);
+        this.client = provider.getClient();
+        this.target = provider.getTarget();
+        this.deliveryMarker = provider.getDeliveryMarker();
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        try {
+            Marker marker = event.getMarker();
+            boolean deliver = deliveryMarker != null && marker != null && marker.isInstanceOf(deliveryMarker);
+            if (getLayout() == null) {
+                if (deliver) {
+                    ElasticsearchHttpClients.delivered(client.deliver(target, toMap(event)));
+                } else {
+                    client.index(target, toMap(event));
+                }
+                return;
+            }
+            Throwable thrown = event.getThrown();
+            String thrownType = thrown != null ? thrown.getClass().getName() : null;
+            byte[] line = toBulkLine(getLayout().toByteArray(event));
+            if (deliver) {
+                ElasticsearchHttpClients.delivered(client.deliver(target, event.getLevel(), event.getLoggerName(),
+                        thrownType, line));
+            } else {
+                client.index(target, event.getLevel(), event.getLoggerName(), thrownType, line);
+            }
+        } catch (Exception e) {
+            throw new AppenderLoggingException("failed to write log event to Elasticsearch HTTP: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        try {
+            client.close();
+        } catch (IOException e) {
+            logger.error("failed to close log to Elasticsearch HTTP: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Turn the output of a layout into a line of a bulk request.
+     *
+     * @param b the encoded event
+     * @return the event on a single line, terminated by a newline
+     */
+    static byte[] toBulkLine(byte[] b) {
+        int start = 0;
+        while (start < b.length && isSeparator(b[start])) {
+            start++;
+        }
+        int end = b.length;
+        while (end > start && (isSeparator(b[end - 1]) || b[end - 1] == ',')) {
+            end--;
+        }
+        byte[] line = new byte[end - start + 1];
+        for (int i = start; i < end; i++) {
+            // line breaks in JSON are whitespace between tokens, inside strings they are escaped
+            line[i - start] = b[i] == '\n' || b[i] == '\r' ? (byte) ' ' : b[i];
+        }
+        line[line.length - 1] = '\n';
+        return line;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == '\n' || b == '\r' || b == ' ' || b == '\t';
+    }
+
+    /**
+     * The fields of an event, as the NoSQL appender writes them. Map and object messages are
+     * kept as they are, the client writes their fields.
+     *
+     * @param event the event
+     * @return the fields of the event
+     */
+    static Map<String, Object> toMap(LogEvent event) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("date", new Date(event.getTimeMillis()));
+        ThreadContext.ContextStack contextStack = event.getContextStack();
+        map.put("contextStack", contextStack != null ? contextStack.asList() : Collections.emptyList());
+        map.put("level", event.getLevel());
+        Marker marker = event.getMarker();
+        Map<String, Object> markerMap = null;
+        if (marker != null) {
+            markerMap = new LinkedHashMap<String, Object>();
+            markerMap.put("name", marker.getName());
+        }
+        map.put("marker", markerMap);
+        Throwable thrown = event.getThrown();
+        map.put("thrown", thrown != null ? toMap(thrown, MAX_CAUSES) : null);
+        StackTraceElement source = event.getSource();
+        map.put("source", source != null ? toMap(source) : null);
+        map.put("loggerName", event.getLoggerName());
+        Message message = event.getMessage();
+        if (message instanceof MapMessage || message instanceof ObjectMessage) {
+            map.put("message", message);
+        } else if (message != null) {
+            map.put("message", message.getFormattedMessage());
+        }
+        map.put("millis", event.getTimeMillis());
+        Map<String, String> contextMap = event.getContextMap();
+        map.put("contextMap", contextMap != null ? contextMap : Collections.emptyMap());
+        map.put("threadName", event.getThreadName());
+        return map;
+    }
+
+    private static Map<String, Object> toMap(Throwable thrown, int causes) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("type", thrown.getClass().getName());
+        map.put("message", thrown.getMessage());
+        List<Object> stackTrace = new ArrayList<Object>();
+        for (StackTraceElement element : thrown.getStackTrace()) {
+            stackTrace.add(toMap(element));
+        }
+        map.put("stackTrace", stackTrace);
+        Throwable cause = thrown.getCause();
+        if (cause != null && cause != thrown && causes > 0) {
+            map.put("cause", toMap(cause, causes - 1));
+        }
+        return map;
+    }
+
+    private static Map<String, Object> toMap(StackTraceElement element) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("className", element.getClassName());
+        map.put("methodName", element.getMethodName());
+        map.put("fileName", element.getFileName());
+        map.put("lineNumber", element.getLineNumber());
+        return map;
+    }
+
+    /**
+     * Factory method for creating a layout-driven Elasticsearch appender within the plugin manager.
+     *
+     * @param name             the name of the appender
+     * @param ignoreExceptions true if exceptions should be logged and not passed to the caller
+     * @param layout           the layout that encodes events as JSON documents, or null to write
+     *                         the fields of the events
+     * @param filter           the filter, or null
+     * @param provider         the Elasticsearch provider with the client options, index and type
+     * @return a new appender, or null if the configuration is incomplete
+     */
+    @PluginFactory
+    public static ElasticsearchHttpAppender createAppender(
+            @PluginAttribute("name") String name,
+            @PluginAttribute("ignoreExceptions") Boolean ignoreExceptions,
+            @PluginElement("Layout") Layout<? extends Serializable> layout,
+            @PluginElement("Filter") Filter filter,
+            @PluginElement("Elasticsearch") ElasticsearchHttpProvider provider) {
+        if (name == null || name.isEmpty()) {
+            logger.error("no name for ElasticsearchHttp appender");
+            return null;
+        }
+        if (provider == null) {
+            logger.error("no Elasticsearch element for ElasticsearchHttp appender " + name);
+            return null;
+        }
+        if (layout != null && SmileEncoder.CONTENT_TYPE.equals(provider.getClient().getContentType())) {
+            logger.error("ElasticsearchHttp appender " + name + " requires format json with a layout");
+            try {
+                provider.getClient().close();
+            } catch (IOException e) {
+                logger.error(e);
+            }
+            return null;
+        }
+        if (ignoreExceptions == null) {
+            ignoreExceptions = true;
+        }
+        return new ElasticsearchHttpAppender(name, filter, layout, ignoreExceptions, provider);
+    }
+}
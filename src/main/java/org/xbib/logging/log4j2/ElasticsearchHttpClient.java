@@ -15,22 +15,33 @@
  */
 package org.xbib.logging.log4j2;
 
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ObjectMessage;
+import org.apache.logging.log4j.message.StructuredDataMessage;
 import org.apache.logging.log4j.status.StatusLogger;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -41,293 +52,1967 @@ import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class ElasticsearchHttpClient {
 
     private static final Logger logger = StatusLogger.getLogger();
 
-    private static final char[] HEX_CHARS = {
-            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Fields of the event schema with values from a small set, such as logger names, thread names, level
+     * and marker names, and source locations. Their encoded values are cached, as are all field names.
+     * Fields of the same name in messages and context maps are not cached.
+     */
+    private static final Set<String> CACHED_VALUES = new HashSet<String>(Arrays.asList(
+            "level", "loggerName", "threadName", "name", "parent", "className", "methodName", "fileName"));
+
+    /**
+     * Fields of the event schema that hold objects or lists of objects of the schema.
+     */
+    private static final Set<String> SCHEMA_OBJECTS = new HashSet<String>(Arrays.asList(
+            "marker", "thrown", "cause", "stackTrace", "source"));
+
+    private static final Utf8Cache utf8Cache = new Utf8Cache(1024);
+
+    /**
+     * Buffers that grew larger than this for a large event are not kept for the next event.
+     */
+    private static final int MAX_JSON_OUTPUT_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<JsonOutput> jsonOutput = new ThreadLocal<JsonOutput>() {
+        @Override
+        protected JsonOutput initialValue() {
+            return new JsonOutput();
+        }
     };
 
-    private static final Set<Character> JS_ESCAPE_CHARS;
+    private static final FlightEvents flightEvents = FlightEvents.getInstance();
 
-    static {
-        Set<Character> mandatoryEscapeSet = new HashSet<Character>();
-        mandatoryEscapeSet.add('"');
-        mandatoryEscapeSet.add('\\');
-        JS_ESCAPE_CHARS = Collections.unmodifiableSet(mandatoryEscapeSet);
-    }
+    private static final int HTTP_REQUEST_TOO_LARGE = 413;
+
+    /**
+     * Appended to strings that were shortened to fit an event in the per-event limit.
+     */
+    static final String TRUNCATION_MARKER = "...[truncated]";
+
+    /**
+     * Prepended to the names of message fields that have the name of a field of the event.
+     */
+    static final String MESSAGE_FIELD_PREFIX = "message_";
 
-    private final Queue<String> requests = new ConcurrentLinkedQueue<String>();
+    /**
+     * The default limit of the bytes of queued events. Failed bulk requests are sent again until they
+     * succeed, so without a limit an outage of the cluster would fill the heap.
+     */
+    static final long DEFAULT_MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+
+    private final EventQueue requests;
 
     private final ReentrantLock lock = new ReentrantLock(true);
 
     private final String url;
 
-    private final String index;
+    private final String type;
+
+    private final Target target;
+
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    private final int maxActionsPerBulkRequest;
+
+    private final int maxBytesPerBulkRequest;
+
+    private final int maxEventBytes;
+
+    private final int fairShareDepth;
+
+    private final RollupAggregator rollup;
+
+    private final Target rollupTarget;
+
+    private final Level rollupLevel;
+
+    private final boolean logresponses;
+
+    private final boolean generateIds;
+
+    private final boolean indexInUrl;
+
+    private final boolean typeless;
+
+    private final SmileEncoder smileEncoder;
+
+    private final String contentType;
+
+    private final AtomicReference<BulkAction> holdover = new AtomicReference<BulkAction>();
+
+    /**
+     * Replaced by the transport of a predecessor that hands over to this client, to keep its connections.
+     */
+    private volatile HttpTransport transport;
+
+    private final ScheduledExecutorService service;
+
+    private final ExecutorService sender;
+
+    private final int maxConcurrentRequests;
+
+    private final Deque<BulkBuffer> buffers = new ArrayDeque<BulkBuffer>();
+
+    private final Deque<BulkBuffer> retries = new ArrayDeque<BulkBuffer>();
+
+    /**
+     * The parts of priority bulk requests that were rejected, moved to the retries by the next flush.
+     */
+    private final Queue<BulkBuffer> priorityRetries = new ConcurrentLinkedQueue<BulkBuffer>();
+
+    private final DeliveryTracker delivery = new DeliveryTracker();
+
+    /**
+     * Set when the next flush that leaves nothing behind may release the stand-in of the events
+     * that were queued before delivery tracking started.
+     */
+    private volatile boolean settling;
+
+    private final long flushIntervalMillis;
+
+    private final AdaptiveBulkController controller;
+
+    private final Level priorityLevel;
+
+    private final Level shedLevel;
+
+    private final HeapPressureMonitor heapPressureMonitor;
+
+    private final OffHeapArena arena;
+
+    private final ExecutorService prioritySender;
+
+    private final AtomicBoolean prioritySendPending = new AtomicBoolean();
+
+    /**
+     * The number of times the priority sender put events back, which a flush may have missed.
+     */
+    private final AtomicLong priorityRequeued = new AtomicLong();
+
+    /**
+     * The buffer of the priority sender, used again for each priority bulk request. Only the priority
+     * sender thread uses it, and replaces it when a failed bulk request keeps it.
+     */
+    private BulkBuffer priorityBuffer;
+
+    private final long shutdownTimeoutMillis;
+
+    private final int shutdownConcurrency;
+
+    private final File spillFile;
+
+    /**
+     * Whether bulk requests wait for a retry after the last flush, recorded as a flight event when it changes.
+     */
+    private boolean backoff;
+
+    private volatile boolean closing = false;
+
+    private volatile boolean closed = false;
+
+    public ElasticsearchHttpClient(String url, String index, String type,
+                                   boolean create, int maxActionsPerBulkRequest, long flushSecs, boolean logresponses) {
+        this(builder().url(url).index(index).type(type).create(create)
+                .maxActionsPerBulkRequest(maxActionsPerBulkRequest).flushSecs(flushSecs).logResponses(logresponses));
+    }
+
+    private ElasticsearchHttpClient(Builder builder) {
+        this.url = builder.url;
+        this.type = builder.type;
+        this.target = new Target(builder.index, builder.type, builder.create);
+        this.maxActionsPerBulkRequest = builder.maxActionsPerBulkRequest;
+        this.maxBytesPerBulkRequest = builder.maxBytesPerBulkRequest;
+        this.maxEventBytes = builder.maxEventBytes;
+        this.logresponses = builder.logresponses;
+        this.generateIds = builder.generateIds;
+        this.indexInUrl = builder.indexInUrl;
+        this.typeless = builder.typeless;
+        if ("smile".equals(builder.format)) {
+            this.smileEncoder = new SmileEncoder();
+            this.contentType = SmileEncoder.CONTENT_TYPE;
+        } else {
+            if (!"json".equals(builder.format)) {
+                // the bulk API can not split CBOR bodies into documents
+                logger.warn("bulk format " + builder.format + " not supported, using json");
+            }
+            this.smileEncoder = null;
+            this.contentType = "application/x-ndjson";
+        }
+        try {
+            this.transport = builder.ring != null ? new RingTransport(new File(builder.ring), builder.ringSize) :
+                    HttpTransports.create(builder.transport);
+        } catch (IOException e) {
+            throw new AppenderLoggingException("unable to create transport "
+                    + (builder.ring != null ? "for ring in " + builder.ring : builder.transport), e);
+        }
+        if (transport instanceof NioHttpTransport && !url.regionMatches(true, 0, "http:", 0, 5)) {
+            transport.close();
+            throw new AppenderLoggingException("transport " + builder.transport + " supports http URLs only: " + url);
+        }
+        this.closed = false;
+        this.flushIntervalMillis = builder.flushSecs * 1000L;
+        this.controller = builder.adaptive ? new AdaptiveBulkController(builder.minActionsPerBulkRequest,
+                builder.maxActionsPerBulkRequest, builder.minFlushIntervalMillis, flushIntervalMillis,
+                builder.targetLatencyMillis) : null;
+        this.shutdownTimeoutMillis = builder.shutdownTimeoutMillis;
+        this.shutdownConcurrency = Math.max(1, builder.shutdownConcurrency);
+        this.spillFile = builder.spillFile != null ? new File(builder.spillFile) : null;
+        long softQueuedBytes = builder.softQueuedBytes > 0 ? builder.softQueuedBytes : builder.maxQueuedBytes / 4 * 3;
+        this.fairShareDepth = builder.fairShareDepth;
+        this.rollup = builder.rollupIntervalMillis > 0 ?
+                new RollupAggregator(builder.rollupIntervalMillis, builder.maxRollupKeys) : null;
+        this.rollupTarget = new Target(builder.rollupIndex != null ? builder.rollupIndex :
+                RollupAggregator.defaultIndex(builder.index), builder.type, false);
+        this.rollupLevel = builder.rollupLevel != null ? Level.toLevel(builder.rollupLevel, null) : null;
+        this.requests = new EventQueue(builder.maxQueuedEvents, builder.maxQueuedBytes, softQueuedBytes,
+                fairShareDepth > 0 ? new FairShareLane(FairShareLane.parseWeights(builder.fairShareWeights),
+                        builder.fairShareMaxQueuedEvents) : null);
+        this.shedLevel = builder.shedLevel != null ? Level.toLevel(builder.shedLevel, null) : null;
+        this.heapPressureMonitor = builder.heapPressureThreshold > 0 ?
+                HeapPressureMonitor.register(builder.heapPressureThreshold, requests) : null;
+        this.arena = builder.offHeapBytes > 0 ? new OffHeapArena(builder.offHeapChunkSize, builder.offHeapBytes) : null;
+        this.priorityLevel = builder.priorityLevel != null ? Level.toLevel(builder.priorityLevel, null) : null;
+        this.prioritySender = priorityLevel != null ?
+                Executors.newSingleThreadExecutor(new DaemonThreadFactory("priority")) : null;
+        this.maxConcurrentRequests = Math.max(1, builder.maxConcurrentRequests);
+        // one buffer per request on the wire plus the one being filled
+        for (int i = 0; i <= maxConcurrentRequests; i++) {
+            buffers.add(new BulkBuffer());
+        }
+        ExecutorService virtualThreadExecutor = builder.virtualThreads ?
+                VirtualThreads.newVirtualThreadPerTaskExecutor() : null;
+        ScheduledThreadPoolExecutor scheduler;
+        if (virtualThreadExecutor != null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, VirtualThreads.virtualThreadFactory());
+            this.sender = virtualThreadExecutor;
+        } else {
+            if (builder.virtualThreads) {
+                logger.warn("virtual threads require Java 21 or later, using platform threads");
+            }
+            scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("flush"));
+            this.sender = builder.pipelining || builder.virtualThreads || maxConcurrentRequests > 1 ?
+                    Executors.newFixedThreadPool(maxConcurrentRequests, new DaemonThreadFactory("sender")) : null;
+        }
+        // the next flush must not run once close has taken over the backlog
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.service = scheduler;
+        schedule();
+        if (rollup != null) {
+            service.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        emitRollups();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+            }, rollup.getIntervalMillis(), rollup.getIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queue the rollup documents of the interval that ends now. They are not counted themselves.
+     */
+    private void emitRollups() {
+        for (Map<String, Object> doc : rollup.rollup(System.currentTimeMillis())) {
+            enqueue(rollupTarget, null, null, doc, null, delivery.enter(), false);
+        }
+    }
+
+    private void schedule() {
+        if (closing || closed) {
+            return;
+        }
+        long delay = controller != null ? controller.getIntervalMillis() : flushIntervalMillis;
+        try {
+            service.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    } finally {
+                        schedule();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the client is shutting down
+        }
+    }
+
+    /**
+     * Flush right away, without waiting for the next flush.
+     */
+    private void expedite() {
+        try {
+            service.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the client is shutting down
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public ElasticsearchHttpClient index(Map<String, Object> source) {
+        return index(target, source);
+    }
+
+    /**
+     * Queue an event for the index, type and create option of a target. Clients that are shared by
+     * appenders use the targets of the appenders, so one bulk request can carry events of all of them.
+     *
+     * @param target the target
+     * @param source the event
+     * @return this client
+     */
+    public ElasticsearchHttpClient index(Target target, Map<String, Object> source) {
+        Object loggerName = source.get("loggerName");
+        Object thrown = source.get("thrown");
+        Object thrownType = thrown instanceof Map ? ((Map<?, ?>) thrown).get("type") : null;
+        return queue(target, toLevel(source.get("level")), loggerName != null ? loggerName.toString() : null,
+                thrownType != null ? thrownType.toString() : null, source, null);
+    }
+
+    /**
+     * Queue an event that is already encoded, for example by a layout. The source must be
+     * a single line in the encoding of this client, terminated by a newline.
+     *
+     * @param target the target
+     * @param level  the level of the event, or null
+     * @param source the encoded event
+     * @return this client
+     */
+    public ElasticsearchHttpClient index(Target target, Level level, byte[] source) {
+        return queue(target, level, null, null, null, source);
+    }
+
+    /**
+     * Queue an event that is already encoded, for example by a layout. The source must be
+     * a single line in the encoding of this client, terminated by a newline.
+     *
+     * @param target     the target
+     * @param level      the level of the event, or null
+     * @param loggerName the name of the logger of the event, for fair share queuing, or null
+     * @param source     the encoded event
+     * @return this client
+     */
+    public ElasticsearchHttpClient index(Target target, Level level, String loggerName, byte[] source) {
+        return queue(target, level, loggerName, null, null, source);
+    }
+
+    /**
+     * Queue an event that is already encoded, for example by a layout. The source must be
+     * a single line in the encoding of this client, terminated by a newline.
+     *
+     * @param target     the target
+     * @param level      the level of the event, or null
+     * @param loggerName the name of the logger of the event, or null
+     * @param thrownType the class name of the exception of the event, for rollups, or null
+     * @param source     the encoded event
+     * @return this client
+     */
+    public ElasticsearchHttpClient index(Target target, Level level, String loggerName, String thrownType,
+                                         byte[] source) {
+        return queue(target, level, loggerName, thrownType, null, source);
+    }
+
+    private ElasticsearchHttpClient queue(Target target, Level level, String loggerName, String thrownType,
+                                          Map<String, Object> map, byte[] encoded) {
+        if (closing || closed) {
+            logger.error("logger is closed");
+            throw new AppenderLoggingException("logger is closed");
+        }
+        if (rollup != null) {
+            rollup.count(loggerName, level != null ? level.name() : null, thrownType);
+            if (level != null && rollupLevel != null && level.intLevel() >= rollupLevel.intLevel()) {
+                // counted only
+                return this;
+            }
+        }
+        return enqueue(target, level, loggerName, map, encoded, delivery.enter(), false);
+    }
+
+    /**
+     * Queue an event and expedite it, with a future for its delivery.
+     *
+     * @param target the target
+     * @param source the event
+     * @return a future that is true when the bulk item of the event was acknowledged, or false
+     * if the event was dropped. With a ring, the future is true once the event is in the ring
+     */
+    public Future<Boolean> deliver(Target target, Map<String, Object> source) {
+        Object loggerName = source.get("loggerName");
+        Object thrown = source.get("thrown");
+        Object thrownType = thrown instanceof Map ? ((Map<?, ?>) thrown).get("type") : null;
+        return deliver(target, toLevel(source.get("level")), loggerName != null ? loggerName.toString() : null,
+                thrownType != null ? thrownType.toString() : null, source, null);
+    }
+
+    /**
+     * Queue an event that is already encoded, for example by a layout, and expedite it, with a future
+     * for its delivery. The source must be a single line in the encoding of this client, terminated by a newline.
+     *
+     * @param target     the target
+     * @param level      the level of the event, or null
+     * @param loggerName the name of the logger of the event, or null
+     * @param thrownType the class name of the exception of the event, for rollups, or null
+     * @param source     the encoded event
+     * @return a future that is true when the bulk item of the event was acknowledged, or false
+     * if the event was dropped. With a ring, the future is true once the event is in the ring
+     */
+    public Future<Boolean> deliver(Target target, Level level, String loggerName, String thrownType, byte[] source) {
+        return deliver(target, level, loggerName, thrownType, null, source);
+    }
+
+    private Future<Boolean> deliver(Target target, Level level, String loggerName, String thrownType,
+                                    Map<String, Object> map, byte[] encoded) {
+        if (closing || closed) {
+            logger.error("logger is closed");
+            throw new AppenderLoggingException("logger is closed");
+        }
+        if (rollup != null) {
+            // counted, but never left out, the caller waits for it
+            rollup.count(loggerName, level != null ? level.name() : null, thrownType);
+        }
+        startTracking();
+        DeliveryTracker.Epoch epoch = delivery.enterSingle();
+        enqueue(target, level, loggerName, map, encoded, epoch, true);
+        return epoch.getFuture();
+    }
+
+    /**
+     * A barrier at the current position of the queue. The events queued so far are sent right away,
+     * without waiting for the next flush.
+     *
+     * @return a future that completes when the events queued so far were acknowledged or dropped; it is
+     * false if an event queued since the previous barrier was dropped. With a ring, events count as
+     * acknowledged once they are in the ring
+     */
+    public Future<Boolean> barrier() {
+        startTracking();
+        DeliveryFuture future = delivery.barrier();
+        if (!future.isDone()) {
+            expedite();
+        }
+        return future;
+    }
+
+    /**
+     * Start delivery tracking. Until the first barrier or delivered event, events are queued without it.
+     */
+    private void startTracking() {
+        if (delivery.start()) {
+            settling = true;
+        }
+    }
+
+    /**
+     * Release the stand-in of the events that were queued before delivery tracking started, after a flush
+     * that left nothing behind. The priority sender may still hold some of them, so it releases the stand-in
+     * after its current bulk request, unless it put events back meanwhile.
+     *
+     * @param requeued the number of times the priority sender put events back when the flush started
+     */
+    private void settle(final long requeued) {
+        settling = false;
+        if (prioritySender == null) {
+            delivery.release();
+            return;
+        }
+        try {
+            prioritySender.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (priorityRequeued.get() == requeued) {
+                        delivery.release();
+                    } else {
+                        settling = true;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closing, the stand-in fails or goes to the successor
+        }
+    }
+
+    private ElasticsearchHttpClient enqueue(Target target, Level level, String loggerName,
+                                            Map<String, Object> map, byte[] encoded,
+                                            DeliveryTracker.Epoch epoch, boolean expedite) {
+        boolean tracked = false;
+        try {
+            boolean priority = expedite
+                    || level != null && priorityLevel != null && level.intLevel() <= priorityLevel.intLevel();
+            boolean sheddable = !priority && level != null && shedLevel != null
+                    && level.intLevel() >= shedLevel.intLevel();
+            byte[] source = encoded != null ? encoded : encodeEvent(map);
+            if (maxEventBytes > 0 && source.length > maxEventBytes) {
+                source = truncate(map != null ? map : parse(source), source);
+                if (source == null) {
+                    if (epoch != null) {
+                        epoch.leave(1, false);
+                    }
+                    long dropped = requests.drop();
+                    if (dropped % 1000 == 1) {
+                        logger.warn("event larger than " + maxEventBytes + " bytes, "
+                                + dropped + " events dropped so far");
+                    }
+                    return this;
+                }
+            }
+            BulkAction action = build(target, source, sheddable);
+            if (action != null) {
+                action.epoch = epoch;
+                if (fairShareDepth > 0) {
+                    action.key = FairShareLane.key(loggerName, fairShareDepth);
+                }
+            }
+            // from here on, the event leaves its epoch when it is sent or dropped
+            tracked = true;
+            if (action == null || !requests.offer(action, priority)) {
+                long dropped;
+                if (action == null) {
+                    // the off-heap arena is full
+                    if (epoch != null) {
+                        epoch.leave(1, false);
+                    }
+                    dropped = requests.drop();
+                } else {
+                    action.drop();
+                    dropped = requests.dropped();
+                }
+                if (dropped % 1000 == 1) {
+                    logger.warn("queue full, " + dropped + " events dropped so far");
+                }
+            } else if (priority && prioritySender == null) {
+                expedite();
+            }
+            if (priority && prioritySender != null) {
+                sendPriority();
+            }
+        } catch (Exception e) {
+            if (!tracked && epoch != null) {
+                epoch.leave(1, false);
+            }
+            logger.error(e);
+            closed = true;
+        }
+        return this;
+    }
+
+    private static Level toLevel(Object value) {
+        if (value == null) {
+            return null;
+        }
+        return value instanceof Level ? (Level) value : Level.toLevel(value.toString(), null);
+    }
+
+    /**
+     * Send the priority lane in a small bulk request of its own right away, without waiting
+     * for the next flush. Events that arrive while this is pending are sent along.
+     */
+    private void sendPriority() {
+        if (!prioritySendPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            prioritySender.execute(new Runnable() {
+                @Override
+                public void run() {
+                    prioritySendPending.set(false);
+                    List<BulkAction> actions = new ArrayList<BulkAction>();
+                    BulkAction action;
+                    long bytes = 0L;
+                    while (actions.size() < maxActionsPerBulkRequest && (action = requests.pollPriority()) != null) {
+                        if (!actions.isEmpty() && (indexInUrl && !action.index.equals(actions.get(0).index)
+                                || exceedsMaxBytes(bytes, action))) {
+                            if (!requests.offer(action, true)) {
+                                action.drop();
+                            }
+                            priorityRequeued.incrementAndGet();
+                            break;
+                        }
+                        actions.add(action);
+                        bytes += action.encodedLength;
+                    }
+                    if (actions.isEmpty()) {
+                        return;
+                    }
+                    if (priorityBuffer == null) {
+                        priorityBuffer = new BulkBuffer();
+                    }
+                    BulkBuffer buffer = priorityBuffer;
+                    buffer.reset();
+                    buffer.index = actions.get(0).index;
+                    for (BulkAction a : actions) {
+                        a.writeTo(buffer);
+                    }
+                    try {
+                        send(buffer);
+                        buffer.reset();
+                    } catch (BulkRejectedException e) {
+                        // the acknowledged items must not be sent again, only the rest goes to the regular flush
+                        logger.warn("priority bulk request failed: " + e.getMessage());
+                        priorityRetries.add(e.buffer);
+                        priorityRequeued.incrementAndGet();
+                        if (e.buffer == buffer) {
+                            priorityBuffer = null;
+                        } else {
+                            buffer.reset();
+                        }
+                    } catch (Throwable t) {
+                        // the staged events stay in the buffer until they are sent again
+                        priorityBuffer = null;
+                        // leave the events to the regular flush
+                        logger.warn("priority bulk request failed: " + t.getMessage());
+                        for (BulkAction a : actions) {
+                            if (!requests.offer(a, true)) {
+                                a.drop();
+                            }
+                        }
+                        priorityRequeued.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            prioritySendPending.set(false);
+        }
+    }
+
+    public void flush() throws IOException {
+        if (heapPressureMonitor != null) {
+            int n = requests.pressure(heapPressureMonitor.isUnderPressure());
+            if (n > 0) {
+                logger.warn("heap under pressure, dropped " + n + " queued events");
+            }
+        }
+        lock.lock();
+        // while requests are on the wire, the next batch is drained and encoded into a free buffer
+        Deque<Future<BulkBuffer>> inflight = new ArrayDeque<Future<BulkBuffer>>();
+        boolean settle = settling;
+        long requeued = priorityRequeued.get();
+        try {
+            BulkBuffer rejected;
+            while ((rejected = priorityRetries.poll()) != null) {
+                retries.add(rejected);
+            }
+            boolean backingOff = false;
+            while (!backingOff) {
+                if (closed) {
+                    logger.error("logger is closed");
+                    break;
+                }
+                // bulk requests rejected by an overloaded cluster are sent again first
+                BulkBuffer filling = retries.poll();
+                if (filling == null) {
+                    filling = buffers.isEmpty() ? new BulkBuffer() : buffers.poll();
+                    filling.reset();
+                    drain(filling);
+                }
+                if (inflight.size() >= maxConcurrentRequests) {
+                    backingOff = !complete(inflight.poll());
+                }
+                if (filling.size() == 0) {
+                    recycle(filling);
+                    break;
+                }
+                if (backingOff) {
+                    retries.add(filling);
+                } else if (sender != null) {
+                    inflight.add(sender.submit(new Sender(filling)));
+                } else {
+                    try {
+                        send(filling);
+                        // releases staged actions as soon as the bulk request is acknowledged
+                        recycle(filling);
+                    } catch (BulkRejectedException e) {
+                        retries.add(e.buffer);
+                        if (e.buffer != filling) {
+                            // the part of a split request that was not sent yet, the rest is acknowledged
+                            recycle(filling);
+                        }
+                        backingOff = true;
+                    }
+                }
+            }
+            while (!inflight.isEmpty()) {
+                complete(inflight.poll());
+            }
+            if (settle && !backingOff && !closed && retries.isEmpty() && priorityRetries.isEmpty()
+                    && holdover.get() == null) {
+                // everything queued before this flush began was acknowledged or dropped
+                settle(requeued);
+            }
+        } catch (Throwable t) {
+            logger.error(t);
+            closed = true;
+            throw new AppenderLoggingException("Elasticsearch HTTP error", t);
+        } finally {
+            // take back the buffers of requests that were still on the wire when an error occurred
+            while (!inflight.isEmpty()) {
+                try {
+                    complete(inflight.poll());
+                } catch (Throwable t) {
+                    logger.error(t);
+                }
+            }
+            if (backoff == retries.isEmpty()) {
+                backoff = !backoff;
+                flightEvents.backoff(backoff, retries.size());
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for a bulk request and take back its buffer.
+     *
+     * @param future the future of the bulk request
+     * @return false if the bulk request was rejected and must be sent again
+     * @throws Throwable if the bulk request failed
+     */
+    private boolean complete(Future<BulkBuffer> future) throws Throwable {
+        try {
+            recycle(await(future));
+            return true;
+        } catch (BulkRejectedException e) {
+            retries.add(e.buffer);
+            return false;
+        }
+    }
+
+    /**
+     * Take back a buffer whose bulk request is done. Buffers that were created for the rejected part
+     * of a bulk request or for the halves of a split request are not kept beyond one buffer per request
+     * on the wire plus the one being filled, so the pool does not grow with every rejection.
+     *
+     * @param buffer the buffer
+     */
+    private void recycle(BulkBuffer buffer) {
+        buffer.reset();
+        if (buffers.size() <= maxConcurrentRequests) {
+            buffers.add(buffer);
+        }
+    }
+
+    /**
+     * @return the number of buffers kept for the next bulk requests
+     */
+    int getPooledBuffers() {
+        lock.lock();
+        try {
+            return buffers.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drain(BulkBuffer buffer) throws IOException {
+        Object event = flightEvents.beginDrain();
+        int n = 0;
+        int max = controller != null ? controller.getActions() : maxActionsPerBulkRequest;
+        BulkAction action = holdover.getAndSet(null);
+        if (action == null) {
+            action = requests.poll();
+        }
+        while (action != null) {
+            if (indexInUrl) {
+                // a bulk request sent to an index URL can only contain actions for that index
+                if (n == 0) {
+                    buffer.index = action.index;
+                } else if (!action.index.equals(buffer.index)) {
+                    holdBack(action);
+                    break;
+                }
+            }
+            if (n > 0 && exceedsMaxBytes(buffer.size(), action)) {
+                // the action opens the next bulk request
+                holdBack(action);
+                break;
+            }
+            action.writeTo(buffer);
+            if (++n >= max) {
+                break;
+            }
+            action = requests.poll();
+        }
+        flightEvents.endDrain(event, buffer.size(), n);
+        return n;
+    }
+
+    private void holdBack(BulkAction action) {
+        if (!holdover.compareAndSet(null, action) && !requests.offer(action, false)) {
+            action.drop();
+        }
+    }
+
+    private boolean exceedsMaxBytes(long bytes, BulkAction action) {
+        return maxBytesPerBulkRequest > 0 && bytes + action.encodedLength > maxBytesPerBulkRequest;
+    }
+
+    private static <T> T await(Future<T> future) throws Throwable {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Send a bulk request. A request that is too large for the cluster is split in halves, which are
+     * sent one after the other, down to single actions. An action that is too large on its own is dropped.
+     *
+     * If a part of a split request is rejected, the rejection carries the parts that were not sent yet,
+     * and the original buffer is no longer needed.
+     *
+     * @param buffer the bulk request
+     * @throws IOException if the bulk request failed
+     */
+    private void send(BulkBuffer buffer) throws IOException {
+        try {
+            sendOnce(buffer);
+        } catch (RequestTooLargeException e) {
+            BulkBuffer[] halves = buffer.split();
+            if (halves == null) {
+                buffer.delivered(false);
+                long dropped = requests.drop(buffer.actions);
+                logger.error("event of " + buffer.size() + " bytes too large for the cluster, "
+                        + dropped + " events dropped so far");
+                return;
+            }
+            logger.warn("bulk request of " + buffer.size() + " bytes too large for the cluster, splitting "
+                    + buffer.actions + " actions");
+            for (int i = 0; i < halves.length; i++) {
+                try {
+                    send(halves[i]);
+                } catch (BulkRejectedException r) {
+                    BulkBuffer rest = r.buffer;
+                    if (i == 0) {
+                        rest = new BulkBuffer();
+                        rest.index = buffer.index;
+                        rest.append(r.buffer);
+                        rest.append(halves[1]);
+                    }
+                    throw new BulkRejectedException(rest, r.getMessage());
+                }
+            }
+        }
+    }
+
+    private void sendOnce(BulkBuffer buffer) throws IOException {
+        HttpTransport.Response response;
+        URL bulkUrl = bulkUrl(buffer);
+        Object event = flightEvents.beginSend();
+        long t0 = System.nanoTime();
+        try {
+            response = transport.post(bulkUrl, contentType, buffer).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            flightEvents.endSend(event, bulkUrl.getAuthority(), buffer.size(), buffer.actions, 0);
+            throw new InterruptedIOException();
+        } catch (IOException e) {
+            flightEvents.endSend(event, bulkUrl.getAuthority(), buffer.size(), buffer.actions, 0);
+            throw connectionFailed(bulkUrl, buffer, e);
+        } catch (ExecutionException e) {
+            flightEvents.endSend(event, bulkUrl.getAuthority(), buffer.size(), buffer.actions, 0);
+            if (e.getCause() instanceof IOException) {
+                throw connectionFailed(bulkUrl, buffer, (IOException) e.getCause());
+            }
+            throw new IOException(e.getCause());
+        }
+        long latencyMillis = (System.nanoTime() - t0) / 1000000L;
+        flightEvents.endSend(event, bulkUrl.getAuthority(), buffer.size(), buffer.actions, response.getStatus());
+        if (response.getStatus() == HttpURLConnection.HTTP_OK) {
+            // read response
+            if (logresponses) {
+                logger.info(new String(response.getBody(), "UTF-8"));
+            }
+            int[] statuses = itemStatuses(response.getBody());
+            if (statuses == null) {
+                buffer.delivered(true);
+                if (controller != null) {
+                    controller.onResponse(latencyMillis, 0);
+                }
+                return;
+            }
+            if (statuses.length != buffer.actions) {
+                buffer.delivered(false);
+                long dropped = requests.drop(buffer.actions);
+                logger.error("bulk response with " + statuses.length + " items for " + buffer.actions
+                        + " actions, " + dropped + " events dropped so far");
+                return;
+            }
+            // items rejected by an overloaded node are sent again, other failed items are dropped
+            boolean[] retry = new boolean[statuses.length];
+            boolean[] failed = new boolean[statuses.length];
+            int rejected = 0;
+            int errors = 0;
+            for (int i = 0; i < statuses.length; i++) {
+                if (statuses[i] == 429) {
+                    retry[i] = true;
+                    rejected++;
+                } else if (statuses[i] == HttpURLConnection.HTTP_CONFLICT && generateIds) {
+                    // a create action that was sent again finds the document of the first attempt
+                    continue;
+                } else if (statuses[i] < 200 || statuses[i] >= 300) {
+                    failed[i] = true;
+                    errors++;
+                }
+            }
+            BulkBuffer rest = rejected > 0 ? buffer.extract(retry) : null;
+            buffer.delivered(failed);
+            if (errors > 0) {
+                long dropped = requests.drop(errors);
+                logger.warn("bulk request: " + errors + " items failed, " + dropped + " events dropped so far");
+            }
+            if (controller != null) {
+                controller.onResponse(latencyMillis, rejected);
+            }
+            if (rest != null) {
+                logger.warn("bulk request: " + rejected + " items rejected by cluster, sending again later");
+                flightEvents.retry(bulkUrl.getAuthority(), rest.size(), rest.actions, 429);
+                throw new BulkRejectedException(rest, rejected + " items rejected");
+            }
+        } else if (response.getStatus() == 429 || response.getStatus() == HttpURLConnection.HTTP_UNAVAILABLE) {
+            if (controller != null) {
+                controller.onRejected();
+            }
+            flightEvents.retry(bulkUrl.getAuthority(), buffer.size(), buffer.actions, response.getStatus());
+            throw new BulkRejectedException(buffer, response.getStatus() + " " + response.getReason());
+        } else if (response.getStatus() == HTTP_REQUEST_TOO_LARGE) {
+            throw new RequestTooLargeException();
+        } else {
+            // the cluster refused the content of this request, the following requests may still be fine
+            buffer.delivered(false);
+            long dropped = requests.drop(buffer.actions);
+            logger.error("no OK response: " + response.getStatus() + " " + response.getReason()
+                    + ", " + dropped + " events dropped so far");
+        }
+    }
+
+    /**
+     * A bulk request that failed on the wire, for example because of a connection reset or a broken
+     * response, is sent again later like a rejected one. The cluster may be restarting or the network
+     * may be down for a while, which must not close the client.
+     */
+    private IOException connectionFailed(URL bulkUrl, BulkBuffer buffer, IOException e) {
+        if (Thread.currentThread().isInterrupted()) {
+            return e;
+        }
+        logger.warn("bulk request to " + bulkUrl.getAuthority() + " failed, sending again later: " + e);
+        flightEvents.retry(bulkUrl.getAuthority(), buffer.size(), buffer.actions, 0);
+        BulkRejectedException rejected = new BulkRejectedException(buffer, "connection failed");
+        rejected.initCause(e);
+        return rejected;
+    }
+
+    private URL bulkUrl(BulkBuffer buffer) throws IOException {
+        if (!indexInUrl || buffer.index == null) {
+            return new URL(url);
+        }
+        // http://localhost:9200/_bulk -> http://localhost:9200/{index}[/{type}]/_bulk
+        String base = url.endsWith("_bulk") ? url.substring(0, url.length() - 5) :
+                url.endsWith("/") ? url : url + "/";
+        return new URL(base + buffer.index + (typeless ? "" : "/" + type) + "/_bulk");
+    }
+
+    static int countRejectedItems(byte[] body) throws IOException {
+        int[] statuses = itemStatuses(body);
+        int count = 0;
+        if (statuses != null) {
+            for (int status : statuses) {
+                if (status == 429) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The status of each item of a bulk response, in the order of the actions.
+     *
+     * @param body the bulk response
+     * @return the item statuses, or null if no item failed
+     * @throws IOException if the response can not be decoded as UTF-8
+     */
+    static int[] itemStatuses(byte[] body) throws IOException {
+        // {"took":3,"errors":true,"items":[{"index":{"_index":"log4j2",...,"status":429,"error":{...}}},...
+        String head = new String(body, 0, Math.min(body.length, 64), "UTF-8");
+        if (!head.contains("\"errors\":true")) {
+            return null;
+        }
+        String s = new String(body, "UTF-8");
+        int[] statuses = new int[64];
+        int n = 0;
+        // error reasons are strings, in which a quoted key is escaped, so only item statuses match
+        int pos = s.indexOf("\"items\":");
+        while (pos >= 0 && (pos = s.indexOf("\"status\":", pos)) >= 0) {
+            pos += 9;
+            int end = pos;
+            while (end < s.length() && Character.isDigit(s.charAt(end))) {
+                end++;
+            }
+            if (end == pos || end - pos > 3) {
+                // not a bulk item, the item count then does not match the actions
+                break;
+            }
+            if (n == statuses.length) {
+                statuses = Arrays.copyOf(statuses, n * 2);
+            }
+            statuses[n++] = Integer.parseInt(s.substring(pos, end));
+        }
+        return Arrays.copyOf(statuses, n);
+    }
+
+    /**
+     * A bulk request that the cluster rejected as a whole because it is overloaded.
+     */
+    private static class BulkRejectedException extends IOException {
+
+        private final BulkBuffer buffer;
+
+        BulkRejectedException(BulkBuffer buffer, String message) {
+            super("bulk request rejected: " + message);
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A bulk request that is larger than the cluster accepts.
+     */
+    private static class RequestTooLargeException extends IOException {
+
+        RequestTooLargeException() {
+            super("bulk request too large");
+        }
+    }
+
+    private class Sender implements Callable<BulkBuffer> {
+
+        private final BulkBuffer buffer;
+
+        Sender(BulkBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public BulkBuffer call() throws IOException {
+            try {
+                send(buffer);
+            } catch (BulkRejectedException e) {
+                if (e.buffer != buffer) {
+                    buffer.reset();
+                }
+                throw e;
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Close the client. The backlog is sent by parallel senders until the shutdown deadline.
+     * Events that can not be sent by then are appended to the spill file, if one is configured,
+     * otherwise they are lost.
+     *
+     * @throws IOException if the spill file can not be written
+     */
+    public void close() throws IOException {
+        if (closing || closed) {
+            return;
+        }
+        if (refs.decrementAndGet() > 0) {
+            // still used by other appenders
+            return;
+        }
+        ElasticsearchHttpClients.remove(this);
+        ElasticsearchHttpClient successor = ElasticsearchHttpClients.successor(this);
+        if (rollup != null) {
+            // the counts of the last, partial interval
+            emitRollups();
+        }
+        closing = true;
+        long deadline = System.currentTimeMillis() + shutdownTimeoutMillis;
+        service.shutdown();
+        boolean locked = false;
+        boolean handedOver = false;
+        try {
+            // let a running flush finish, but do not wait past the deadline
+            locked = lock.tryLock(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (locked && successor != null && prioritySender != null) {
+                prioritySender.shutdown();
+                prioritySender.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (locked && successor != null) {
+                int n = successor.takeOver(this);
+                if (n >= 0) {
+                    handedOver = true;
+                    logger.info("Elasticsearch HTTP client closed: handed over " + n + " events to the new client");
+                    return;
+                }
+            }
+            if (transport instanceof UrlConnectionHttpTransport) {
+                ((UrlConnectionHttpTransport) transport).setDeadline(deadline);
+            }
+            ShutdownDrain drain = new ShutdownDrain(deadline, locked);
+            drain.run();
+            logger.info("Elasticsearch HTTP client closed: flushed " + drain.flushed.get()
+                    + " events, spilled " + drain.spilled.get() + " events"
+                    + (spillFile != null ? " to " + spillFile : "")
+                    + ", lost " + drain.lost.get() + " events");
+        } finally {
+            closed = true;
+            if (locked) {
+                lock.unlock();
+            }
+            if (sender != null) {
+                sender.shutdown();
+            }
+            if (prioritySender != null) {
+                prioritySender.shutdown();
+            }
+            if (heapPressureMonitor != null) {
+                heapPressureMonitor.unregister(requests);
+            }
+            if (!handedOver) {
+                transport.close();
+                // events that were not acknowledged by now are lost or spilled
+                delivery.fail();
+            }
+        }
+    }
+
+    /**
+     * Check if the queued events and connections of this client can be handed over to another client,
+     * which must send to the same endpoint and encode the action metadata in the same way.
+     *
+     * @param other the other client
+     * @return true if the other client can take over
+     */
+    boolean canHandOverTo(ElasticsearchHttpClient other) {
+        return !other.closing && !other.closed && other.url.equals(url) && other.contentType.equals(contentType)
+                && other.indexInUrl == indexInUrl && other.typeless == typeless
+                && (!indexInUrl || other.type.equals(type));
+    }
+
+    /**
+     * Take over the bulk requests waiting for a retry, the queued events and the transport of a
+     * client that is closed, usually because the configuration changed. The predecessor must
+     * hold its lock, so nothing is sent by it meanwhile.
+     *
+     * @param predecessor the client that is closed
+     * @return the number of events taken over, or -1 if this client is closing, too
+     */
+    private int takeOver(ElasticsearchHttpClient predecessor) {
+        lock.lock();
+        try {
+            if (closing || closed) {
+                return -1;
+            }
+            int n = 0;
+            BulkBuffer buffer;
+            while ((buffer = predecessor.priorityRetries.poll()) != null) {
+                predecessor.retries.add(buffer);
+            }
+            while ((buffer = predecessor.retries.poll()) != null) {
+                // they were rejected first, so they are sent first
+                retries.add(buffer);
+                n += buffer.actions;
+            }
+            BulkAction action = predecessor.holdover.getAndSet(null);
+            if (action != null) {
+                n += takeOver(action, false);
+            }
+            while ((action = predecessor.requests.pollPriority()) != null) {
+                n += takeOver(action, true);
+            }
+            while ((action = predecessor.requests.poll()) != null) {
+                n += takeOver(action, false);
+            }
+            // the events that were queued before the predecessor tracked delivery are queued here now
+            if (delivery.adopt(predecessor.delivery)) {
+                settling = true;
+            }
+            HttpTransport old = predecessor.transport;
+            if (old != transport && old.getClass() == transport.getClass()) {
+                // keep the connections of the predecessor, which are warm
+                HttpTransport unused = transport;
+                transport = old;
+                closeAfterPrioritySend(unused);
+            } else {
+                old.close();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close a transport that was replaced. The priority sender does not take the lock, so it may be
+     * sending on the transport right now; the transport is closed after that bulk request, by the
+     * priority sender itself.
+     *
+     * @param replaced the replaced transport
+     */
+    private void closeAfterPrioritySend(final HttpTransport replaced) {
+        if (prioritySender != null) {
+            try {
+                prioritySender.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        replaced.close();
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                // shut down, no more bulk requests are sent
+            }
+        }
+        replaced.close();
+    }
+
+    private int takeOver(BulkAction action, boolean priority) {
+        if (!requests.offer(action, priority)) {
+            action.drop();
+            return 0;
+        }
+        return 1;
+    }
+
+    /**
+     * @return the number of queued events
+     */
+    int getQueuedEvents() {
+        return requests.size();
+    }
+
+    /**
+     * @return the number of bytes of queued events
+     */
+    long getQueuedBytes() {
+        return requests.bytes();
+    }
+
+    /**
+     * @return the number of events dropped so far
+     */
+    long getDroppedEvents() {
+        return requests.dropped();
+    }
+
+    /**
+     * The content type of bulk requests, which is also the encoding of queued events.
+     *
+     * @return the content type
+     */
+    String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Take another reference to a shared client. Each reference is given back by {@link #close()}.
+     *
+     * @return false if the client is already closed
+     */
+    boolean retain() {
+        int n;
+        do {
+            n = refs.get();
+            if (n <= 0) {
+                return false;
+            }
+        } while (!refs.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    /**
+     * Where the events of an appender go: the index, type and create option of their bulk actions.
+     */
+    public static class Target {
+
+        private final String index;
+
+        private final String type;
+
+        private final boolean create;
+
+        private volatile ActionMetadata metadata;
+
+        public Target(String index, String type, boolean create) {
+            this.index = index;
+            this.type = type;
+            this.create = create;
+        }
+    }
+
+    /**
+     * Sends the backlog with parallel senders until a deadline, and spills the rest.
+     */
+    private class ShutdownDrain {
+
+        private final long deadline;
+
+        private final boolean locked;
+
+        private final Queue<BulkBuffer> retried = new ConcurrentLinkedQueue<BulkBuffer>();
+
+        private final AtomicLong flushed = new AtomicLong();
+
+        private final AtomicLong spilled = new AtomicLong();
+
+        private final AtomicLong lost = new AtomicLong();
+
+        private final AtomicLong inflight = new AtomicLong();
+
+        private boolean expired;
+
+        private OutputStream spill;
+
+        /**
+         * @param deadline the time by which the drain gives up
+         * @param locked   true if the flush lock is held, so the bulk requests waiting for a retry
+         *                 can be taken over, otherwise the running flush keeps sending them
+         */
+        ShutdownDrain(long deadline, boolean locked) {
+            this.deadline = deadline;
+            this.locked = locked;
+        }
+
+        void run() throws IOException {
+            BulkBuffer buffer;
+            if (locked) {
+                while ((buffer = retries.poll()) != null) {
+                    if (buffer.actions > 0) {
+                        retried.add(buffer);
+                    }
+                }
+            }
+            while ((buffer = priorityRetries.poll()) != null) {
+                retried.add(buffer);
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(shutdownConcurrency,
+                    new DaemonThreadFactory("drain"));
+            try {
+                for (int i = 0; i < shutdownConcurrency; i++) {
+                    executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            BulkBuffer buffer = new BulkBuffer();
+                            while (System.currentTimeMillis() < deadline) {
+                                // bulk requests rejected before the shutdown go first
+                                BulkBuffer batch = retried.poll();
+                                int n;
+                                if (batch != null) {
+                                    n = batch.actions;
+                                } else {
+                                    buffer.reset();
+                                    try {
+                                        n = drain(buffer);
+                                    } catch (IOException e) {
+                                        logger.error(e);
+                                        break;
+                                    }
+                                    if (n == 0) {
+                                        break;
+                                    }
+                                    batch = buffer;
+                                }
+                                inflight.addAndGet(n);
+                                try {
+                                    send(batch);
+                                    settle(n, null);
+                                } catch (Throwable t) {
+                                    logger.error("bulk request failed on shutdown: " + t.getMessage());
+                                    // the parts of a split request that were acknowledged are not spilled
+                                    settle(n, t instanceof BulkRejectedException ?
+                                            ((BulkRejectedException) t).buffer : batch);
+                                }
+                            }
+                        }
+                    });
+                }
+                executor.shutdown();
+                try {
+                    if (!executor.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS)) {
+                        expire();
+                        executor.shutdownNow();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    expire();
+                    executor.shutdownNow();
+                }
+                while ((buffer = retried.poll()) != null) {
+                    spill(buffer, buffer.actions);
+                }
+                buffer = new BulkBuffer();
+                int n;
+                while ((n = drain(buffer)) > 0) {
+                    spill(buffer, n);
+                    buffer.reset();
+                }
+            } finally {
+                synchronized (this) {
+                    if (spill != null) {
+                        spill.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Bulk requests still on the wire at the deadline may or may not have been indexed. They are
+         * counted as lost once, and whatever their senders see after being interrupted is not counted again.
+         */
+        private synchronized void expire() {
+            expired = true;
+            logger.warn("shutdown deadline reached with " + inflight.get() + " events in flight");
+            lost.addAndGet(inflight.get());
+        }
+
+        private synchronized void settle(int n, BulkBuffer rest) {
+            inflight.addAndGet(-n);
+            if (expired) {
+                return;
+            }
+            if (rest == null) {
+                flushed.addAndGet(n);
+            } else {
+                flushed.addAndGet(n - rest.actions);
+                spill(rest, rest.actions);
+            }
+        }
+
+        private synchronized void spill(BulkBuffer buffer, int n) {
+            buffer.delivered(false);
+            if (spillFile == null) {
+                lost.addAndGet(n);
+                return;
+            }
+            try {
+                if (spill == null) {
+                    spill = new FileOutputStream(spillFile, true);
+                }
+                buffer.writeTo(spill);
+                spilled.addAndGet(n);
+            } catch (IOException e) {
+                logger.error("unable to write spill file " + spillFile + ": " + e.getMessage());
+                lost.addAndGet(n);
+            }
+        }
+    }
+
+    /**
+     * Threads of the client are daemon threads, so a cluster that does not answer can not keep the JVM
+     * from exiting after the shutdown deadline.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        private final AtomicInteger n = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            this.name = "elasticsearch-http-" + name + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + n.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private BulkAction build(Target target, byte[] source, boolean sheddable) {
+        String index = target.index.indexOf('\'') < 0 ? target.index :
+                getIndexNameDateFormat(target.index).format(new Date());
+        ActionMetadata metadata = target.metadata;
+        if (metadata == null || !metadata.index.equals(index)) {
+            metadata = new ActionMetadata(index, target.type, target.create);
+            target.metadata = metadata;
+        }
+        byte[] line = generateIds ? metadata.withId(TimeBasedIdGenerator.getInstance().getId()) : metadata.line;
+        if (arena != null) {
+            return arena.allocate(index, line, source, sheddable);
+        }
+        return new BulkAction(index, line, source, sheddable);
+    }
+
+    private byte[] encodeEvent(Map<String, Object> map) {
+        Object event = flightEvents.beginEncode();
+        byte[] b = encode(map);
+        flightEvents.endEncode(event, b.length);
+        return b;
+    }
+
+    /**
+     * Shorten the longest strings of an event, such as a huge message or stack trace, until the
+     * encoded event fits in the per-event limit. The event itself is not changed.
+     *
+     * @param map     the event
+     * @param encoded the encoded event
+     * @return the encoded shortened event, or null if it does not fit
+     */
+    private byte[] truncate(Map<String, Object> map, byte[] encoded) {
+        if (map == null) {
+            return null;
+        }
+        Map<String, Object> copy = copyOf(map);
+        byte[] b = encoded;
+        // escaping and multi-byte characters may take more bytes than the characters cut, so try again
+        for (int i = 0; i < 8 && b.length > maxEventBytes; i++) {
+            LongestString longest = new LongestString();
+            longest.find(copy);
+            if (longest.value == null || longest.value.length() <= TRUNCATION_MARKER.length()) {
+                break;
+            }
+            int keep = Math.max(0, longest.value.length() - (b.length - maxEventBytes) - TRUNCATION_MARKER.length());
+            if (keep > 0 && Character.isHighSurrogate(longest.value.charAt(keep - 1))) {
+                keep--;
+            }
+            longest.replace(longest.value.substring(0, keep) + TRUNCATION_MARKER);
+            b = encode(copy);
+        }
+        return b.length <= maxEventBytes ? b : null;
+    }
+
+    /**
+     * Parse an event that was encoded by a layout.
+     *
+     * @param encoded the encoded event
+     * @return the event, or null if it can not be parsed
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> parse(byte[] encoded) {
+        if (smileEncoder != null) {
+            return null;
+        }
+        try {
+            Object object = new JsonParser(new StringReader(new String(encoded, UTF8))).parse();
+            return object instanceof Map ? (Map<String, Object>) object : null;
+        } catch (Throwable e) {
+            return null;
+        }
+    }
 
-    private final String type;
+    @SuppressWarnings("unchecked")
+    private static <T> T copyOf(T object) {
+        if (object instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<String, Object>();
+            for (Map.Entry<String, Object> me : ((Map<String, Object>) object).entrySet()) {
+                if ("message".equals(me.getKey()) && me.getValue() instanceof Message) {
+                    // the fields of a structured message can be truncated like the other fields
+                    Map<String, Object> fields = messageFields((Message) me.getValue());
+                    if (fields != null) {
+                        copy.putAll(copyOf(eventFields(fields, (Map<String, Object>) object)));
+                    } else {
+                        copy.put(me.getKey(), messageValue((Message) me.getValue()));
+                    }
+                } else {
+                    copy.put(me.getKey(), copyOf(me.getValue()));
+                }
+            }
+            return (T) copy;
+        } else if (object instanceof List) {
+            List<Object> copy = new ArrayList<Object>();
+            for (Object o : (List<Object>) object) {
+                copy.add(copyOf(o));
+            }
+            return (T) copy;
+        }
+        return object;
+    }
 
-    private final boolean create;
+    /**
+     * The longest string value in the maps and lists of an event, and where it is.
+     */
+    static class LongestString {
 
-    private final int maxActionsPerBulkRequest;
+        private Map<String, Object> map;
 
-    private final boolean logresponses;
+        private List<Object> list;
 
-    private final ScheduledExecutorService service;
+        private String key;
 
-    private volatile boolean closed = false;
+        private int pos;
 
-    private HttpURLConnection connection;
+        String value;
 
-    public ElasticsearchHttpClient(String url, String index, String type,
-                                   boolean create, int maxActionsPerBulkRequest, long flushSecs, boolean logresponses) {
-        this.url = url;
-        this.index = index;
-        this.type = type;
-        this.create = create;
-        this.maxActionsPerBulkRequest = maxActionsPerBulkRequest;
-        this.logresponses = logresponses;
-        this.closed = false;
-        this.service = Executors.newScheduledThreadPool(1);
-        service.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    flush();
-                } catch (IOException e) {
-                    logger.error(e.getMessage(), e);
-                    throw new AppenderLoggingException(e);
+        @SuppressWarnings("unchecked")
+        void find(Object object) {
+            if (object instanceof Map) {
+                for (Map.Entry<String, Object> me : ((Map<String, Object>) object).entrySet()) {
+                    if (me.getValue() instanceof String) {
+                        if (isLonger((String) me.getValue())) {
+                            this.map = (Map<String, Object>) object;
+                            this.list = null;
+                            this.key = me.getKey();
+                            this.value = (String) me.getValue();
+                        }
+                    } else {
+                        find(me.getValue());
+                    }
+                }
+            } else if (object instanceof List) {
+                List<Object> l = (List<Object>) object;
+                for (int i = 0; i < l.size(); i++) {
+                    Object o = l.get(i);
+                    if (o instanceof String) {
+                        if (isLonger((String) o)) {
+                            this.map = null;
+                            this.list = l;
+                            this.pos = i;
+                            this.value = (String) o;
+                        }
+                    } else {
+                        find(o);
+                    }
                 }
+            }
+        }
+
+        private boolean isLonger(String s) {
+            return value == null || s.length() > value.length();
+        }
 
+        void replace(String s) {
+            if (map != null) {
+                map.put(key, s);
+            } else {
+                list.set(pos, s);
             }
-        }, flushSecs, flushSecs, TimeUnit.SECONDS);
+            value = s;
+        }
     }
 
-    public ElasticsearchHttpClient index(Map<String, Object> source) {
-        if (closed) {
-            logger.error("logger is closed");
-            throw new AppenderLoggingException("logger is closed");
+    byte[] encode(Map<String, Object> map) {
+        if (smileEncoder != null) {
+            return smileEncoder.encode(expandMessage(map));
         }
-        try {
-            requests.add(build(index, type, create, source));
-        } catch (Exception e) {
-            logger.error(e);
-            closed = true;
+        JsonOutput out = jsonOutput.get();
+        out.reset();
+        out.write('{');
+        build(out, map, true);
+        out.write('}');
+        out.write('\n');
+        byte[] b = out.toByteArray();
+        if (out.capacity() > MAX_JSON_OUTPUT_CAPACITY) {
+            jsonOutput.remove();
         }
-        return this;
+        return b;
     }
 
-    public void flush() throws IOException {
-        lock.lock();
-        try {
-            while (!requests.isEmpty()) {
-                try {
-                    if (closed) {
-                        logger.error("logger is closed");
-                        return;
-                    }
-                    connection = (HttpURLConnection) new URL(url).openConnection();
-                    connection.setDoOutput(true);
-                    connection.setRequestMethod("POST");
-                    connection.setRequestProperty("content-type", "application/x-ndjson");
-                    StringBuilder sb = new StringBuilder();
-                    int i = maxActionsPerBulkRequest;
-                    String request;
-                    while ((request = requests.poll()) != null && (i-- >= 0)) {
-                        sb.append(request);
-                    }
-                    OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
-                    writer.write(sb.toString());
-                    writer.close();
-                    if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                        // read response
-                        if (logresponses) {
-                            sb.setLength(0);
-                            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-                            String s;
-                            while ((s = in.readLine()) != null) {
-                                sb.append(s);
-                            }
-                            in.close();
-                            logger.info(sb.toString());
-                        }
-                    } else {
-                        throw new AppenderLoggingException("no OK response: "
-                                + connection.getResponseCode() + " " + connection.getResponseMessage());
-                    }
+    /**
+     * Replace a message that is a JSON object by its fields, as the JSON encoding does.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> expandMessage(Map<String, Object> map) {
+        Object message = map.get("message");
+        if (message == null) {
+            return map;
+        }
+        Map<String, Object> fields;
+        if (message instanceof Message) {
+            fields = messageFields((Message) message);
+            if (fields == null) {
+                Map<String, Object> copy = new LinkedHashMap<String, Object>(map);
+                copy.put("message", messageValue((Message) message));
+                return copy;
+            }
+        } else {
+            try {
+                fields = (Map<String, Object>) new JsonParser(new StringReader(message.toString())).parse();
+            } catch (Throwable e) {
+                return map;
+            }
+        }
+        Map<String, Object> expanded = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Object> me : map.entrySet()) {
+            if ("message".equals(me.getKey())) {
+                expanded.putAll(eventFields(fields, map));
+            } else {
+                expanded.put(me.getKey(), me.getValue());
+            }
+        }
+        return expanded;
+    }
 
-                } finally {
-                    if (connection != null) {
-                        connection.disconnect();
-                    }
+    /**
+     * The action metadata for an index, encoded once and shared by all actions for the index.
+     * With document IDs, only the ID is spliced into the encoded metadata.
+     */
+    private class ActionMetadata {
+
+        private static final String ID_PLACEHOLDER = "00000000000000000000";
+
+        private final String index;
+
+        private final byte[] line;
+
+        private final byte[] idPrefix;
+
+        private final byte[] idSuffix;
+
+        ActionMetadata(String index, String type, boolean create) {
+            this.index = index;
+            Map<String, Object> action = new LinkedHashMap<String, Object>();
+            if (!indexInUrl) {
+                action.put("_index", index);
+                if (!typeless) {
+                    action.put("_type", type);
                 }
             }
-        } catch (Throwable t) {
-            logger.error(t);
-            closed = true;
-            throw new AppenderLoggingException("Elasticsearch HTTP error", t);
-        } finally {
-            lock.unlock();
+            Map<String, Object> metadata = new LinkedHashMap<String, Object>();
+            metadata.put(create ? "create" : "index", action);
+            this.line = encode(metadata);
+            // generated IDs have a fixed length and need no escaping, so they fit in place of a placeholder
+            action.put("_id", ID_PLACEHOLDER);
+            byte[] b = encode(metadata);
+            int pos = indexOf(b, ID_PLACEHOLDER.getBytes(UTF8));
+            this.idPrefix = Arrays.copyOfRange(b, 0, pos);
+            this.idSuffix = Arrays.copyOfRange(b, pos + ID_PLACEHOLDER.length(), b.length);
         }
-    }
 
-    public void close() throws IOException {
-        if (!closed) {
-            service.shutdownNow();
-            flush();
-            connection.getOutputStream().close();
-            connection.disconnect();
+        byte[] withId(String id) {
+            byte[] b = new byte[idPrefix.length + id.length() + idSuffix.length];
+            System.arraycopy(idPrefix, 0, b, 0, idPrefix.length);
+            int pos = idPrefix.length;
+            // IDs are ASCII
+            for (int i = 0; i < id.length(); i++) {
+                b[pos++] = (byte) id.charAt(i);
+            }
+            System.arraycopy(idSuffix, 0, b, pos, idSuffix.length);
+            return b;
         }
-        closed = true;
-    }
 
-    private String build(String index, String type, boolean create, Map<String, Object> source) {
-        index = index.indexOf('\'') < 0 ? index : getIndexNameDateFormat(index).format(new Date());
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"").append(create ? "create" : "index")
-                .append("\":{\"_index\":\"").append(index)
-                .append("\",\"_type\":\"").append(type)
-                .append("\"}}\n{");
-        build(sb, source);
-        sb.append("}\n");
-        return sb.toString();
+        private int indexOf(byte[] b, byte[] pattern) {
+            outer:
+            for (int i = 0; i <= b.length - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (b[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            throw new IllegalStateException("ID placeholder not found");
+        }
     }
 
     @SuppressWarnings("unchecked")
-    private void build(StringBuilder sb, Object object) {
+    private void build(JsonOutput out, Object object, boolean cached, boolean schema) {
         if (object instanceof Map) {
-            sb.append('{');
-            build(sb, (Map<String, Object>) object);
-            sb.append('}');
+            out.write('{');
+            build(out, (Map<String, Object>) object, schema);
+            out.write('}');
         } else if (object instanceof List) {
-            sb.append("[");
-            build(sb, (List<Object>) object);
-            sb.append("]");
+            out.write('[');
+            build(out, (List<Object>) object, schema);
+            out.write(']');
         } else if (object != null) {
             if (object instanceof Number) {
-                sb.append(object);
+                out.writeAscii(object.toString());
             } else if (object instanceof Boolean) {
-                sb.append(((Boolean) object) ? "true" : "false");
+                out.writeAscii(((Boolean) object) ? "true" : "false");
             } else if (object instanceof Date) {
-                sb.append('"');
-                sb.append(format((Date) object));
-                sb.append('"');
+                out.write('"');
+                out.writeAscii(format((Date) object));
+                out.write('"');
+            } else if (cached) {
+                writeCached(out, object.toString());
             } else {
-                sb.append('"');
-                escape(sb, object.toString());
-                sb.append('"');
+                out.writeString(object.toString());
             }
         } else {
-            sb.append("null");
+            out.writeAscii("null");
         }
     }
 
-    private void build(StringBuilder sb, List<Object> list) {
+    private void build(JsonOutput out, List<Object> list, boolean schema) {
         boolean started = false;
         for (Object object : list) {
             if (started) {
-                sb.append(',');
+                out.write(',');
             }
-            build(sb, object);
+            build(out, object, false, schema);
             started = true;
         }
     }
 
-    private void build(StringBuilder sb, Map<String, Object> map) {
+    /**
+     * @param schema true for the event and the objects of its schema, false for the fields of a message
+     */
+    @SuppressWarnings("unchecked")
+    private void build(JsonOutput out, Map<String, Object> map, boolean schema) {
         boolean started = false;
         for (Map.Entry<String, Object> me : map.entrySet()) {
             if (started) {
-                sb.append(',');
+                out.write(',');
             }
-            // try to parse message as JSON
-            if ("message".equals(me.getKey()) && me.getValue() != null) {
+            if ("message".equals(me.getKey()) && me.getValue() instanceof Message) {
+                Message message = (Message) me.getValue();
+                Map<String, Object> fields = messageFields(message);
+                if (fields != null) {
+                    build(out, eventFields(fields, map), false);
+                } else {
+                    writeCached(out, me.getKey());
+                    out.write(':');
+                    build(out, messageValue(message), false, false);
+                }
+            } else if ("message".equals(me.getKey()) && me.getValue() != null) {
+                // try to parse message as JSON
                 JsonParser parser = new JsonParser(new StringReader(me.getValue().toString()));
                 try {
-                    build(sb, (Map<String, Object>) parser.parse());
+                    build(out, eventFields((Map<String, Object>) parser.parse(), map), false);
                 } catch (Throwable e) {
-                    sb.append("\"").append(me.getKey()).append("\":");
-                    build(sb, me.getValue());
+                    writeCached(out, me.getKey());
+                    out.write(':');
+                    build(out, me.getValue(), false, false);
                 }
             } else {
-                sb.append("\"").append(me.getKey()).append("\":");
-                build(sb, me.getValue());
+                writeCached(out, me.getKey());
+                out.write(':');
+                build(out, me.getValue(), schema && CACHED_VALUES.contains(me.getKey()),
+                        schema && SCHEMA_OBJECTS.contains(me.getKey()));
             }
             started = true;
         }
     }
 
-    private void escape(StringBuilder out, CharSequence plainText) {
-        int pos = 0;
-        int len = plainText.length();
-        for (int charCount, i = 0; i < len; i += charCount) {
-            int codePoint = Character.codePointAt(plainText, i);
-            charCount = Character.charCount(codePoint);
-            if (!isControlCharacter(codePoint) && !mustEscapeCharInJsString(codePoint)) {
-                continue;
+    /**
+     * The fields of a structured message, which are written as fields of the event, so they need
+     * not be formatted as text and parsed again, and keep their types.
+     *
+     * @param message the message
+     * @return the fields, or null if the message is written as a value
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> messageFields(Message message) {
+        Map<String, Object> fields = null;
+        if (message instanceof StructuredDataMessage) {
+            StructuredDataMessage sd = (StructuredDataMessage) message;
+            fields = new LinkedHashMap<String, Object>(sd.getData());
+            if (sd.getId() != null) {
+                fields.put("structuredDataId", sd.getId().getName());
             }
-            out.append(plainText, pos, i);
-            pos = i + charCount;
-            switch (codePoint) {
-                case '\b':
-                    out.append("\\b");
-                    break;
-                case '\t':
-                    out.append("\\t");
-                    break;
-                case '\n':
-                    out.append("\\n");
-                    break;
-                case '\f':
-                    out.append("\\f");
-                    break;
-                case '\r':
-                    out.append("\\r");
-                    break;
-                case '\\':
-                    out.append("\\\\");
-                    break;
-                case '/':
-                    out.append("\\/");
-                    break;
-                case '"':
-                    out.append("\\\"");
-                    break;
-                default:
-                    appendHexJavaScriptRepresentation(out, codePoint);
-                    break;
+            if (sd.getType() != null) {
+                fields.put("structuredDataType", sd.getType());
+            }
+        } else if (message instanceof MapMessage) {
+            // the values are strings, the data of the message is written as it is
+            fields = (Map<String, Object>) (Map<String, ?>) ((MapMessage) message).getData();
+        } else if (message instanceof ObjectMessage) {
+            Object object = parameter(message);
+            if (object instanceof Map) {
+                fields = new LinkedHashMap<String, Object>();
+                for (Map.Entry<?, ?> me : ((Map<?, ?>) object).entrySet()) {
+                    fields.put(String.valueOf(me.getKey()), me.getValue());
+                }
             }
         }
-        out.append(plainText, pos, len);
+        return fields != null && !fields.isEmpty() ? fields : null;
     }
 
-    private boolean isControlCharacter(int codePoint) {
-        return codePoint < 0x20
-                || codePoint == 0x2028  // Line separator
-                || codePoint == 0x2029  // Paragraph separator
-                || (codePoint >= 0x7f && codePoint <= 0x9f);
+    /**
+     * The fields of a message as fields of an event. A message field with the name of another field
+     * of the event, like level or date, would be a duplicate key of the document, so it gets a prefix.
+     *
+     * @param fields the fields of the message
+     * @param event  the event
+     * @return the fields, renamed if needed
+     */
+    static Map<String, Object> eventFields(Map<String, Object> fields, Map<String, Object> event) {
+        boolean collides = false;
+        for (String name : fields.keySet()) {
+            if (!"message".equals(name) && event.containsKey(name)) {
+                collides = true;
+                break;
+            }
+        }
+        if (!collides) {
+            return fields;
+        }
+        Map<String, Object> renamed = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Object> me : fields.entrySet()) {
+            String name = me.getKey();
+            renamed.put(!"message".equals(name) && event.containsKey(name) ? MESSAGE_FIELD_PREFIX + name : name,
+                    me.getValue());
+        }
+        return renamed;
     }
 
+    /**
+     * The value of a message that has no fields: the object of an object message if it is a number,
+     * boolean, date or list, otherwise the formatted message.
+     *
+     * @param message the message
+     * @return the value
+     */
+    static Object messageValue(Message message) {
+        if (message instanceof ObjectMessage) {
+            Object object = parameter(message);
+            if (object instanceof Number || object instanceof Boolean || object instanceof Date
+                    || object instanceof List) {
+                return object;
+            }
+        }
+        return message.getFormattedMessage();
+    }
 
-    private void appendHexJavaScriptRepresentation(StringBuilder sb, int codePoint) {
-        sb.append("\\u")
-                .append(HEX_CHARS[(codePoint >>> 12) & 0xf])
-                .append(HEX_CHARS[(codePoint >>> 8) & 0xf])
-                .append(HEX_CHARS[(codePoint >>> 4) & 0xf])
-                .append(HEX_CHARS[codePoint & 0xf]);
+    private static Object parameter(Message message) {
+        Object[] parameters = message.getParameters();
+        return parameters != null && parameters.length > 0 ? parameters[0] : null;
     }
 
-    private boolean mustEscapeCharInJsString(int codepoint) {
-        if (!Character.isSupplementaryCodePoint(codepoint)) {
-            char c = (char) codepoint;
-            return JS_ESCAPE_CHARS.contains(c);
+    private static void writeCached(JsonOutput out, String s) {
+        byte[] b = utf8Cache.get(s);
+        if (b != null) {
+            out.writeBytes(b);
+        } else {
+            out.writeString(s);
         }
-        return false;
     }
 
     private static final String ISO_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.S'Z'";
@@ -370,6 +2055,550 @@ public class ElasticsearchHttpClient {
         return getDateFormat(ISO_FORMAT).format(date);
     }
 
+    /**
+     * Builder for an Elasticsearch HTTP client.
+     */
+    public static class Builder {
+
+        private String url = "http://localhost:9200/_bulk";
+
+        private String index = "log4j2";
+
+        private String type = "log4j2";
+
+        private boolean create = false;
+
+        private int maxActionsPerBulkRequest = 1000;
+
+        private long flushSecs = 5;
+
+        private boolean logresponses = false;
+
+        private boolean generateIds = false;
+
+        private boolean pipelining = false;
+
+        private String transport = "urlconnection";
+
+        private int maxConcurrentRequests = 1;
+
+        private boolean virtualThreads = false;
+
+        private long shutdownTimeoutMillis = 30000L;
+
+        private int shutdownConcurrency = 4;
+
+        private String spillFile;
+
+        private boolean adaptive = false;
+
+        private int minActionsPerBulkRequest = 100;
+
+        private long minFlushIntervalMillis = 200L;
+
+        private long targetLatencyMillis = 1000L;
+
+        private String priorityLevel;
+
+        private int maxQueuedEvents = 0;
+
+        private boolean indexInUrl = false;
+
+        private boolean typeless = false;
+
+        private String format = "json";
+
+        private long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+
+        private long softQueuedBytes = 0L;
+
+        private String shedLevel = null;
+
+        private int heapPressureThreshold = 0;
+
+        private long offHeapBytes = 0L;
+
+        private int offHeapChunkSize = 1024 * 1024;
+
+        private int maxBytesPerBulkRequest = 10 * 1024 * 1024;
+
+        private int maxEventBytes = 0;
+
+        private int fairShareDepth = 0;
+
+        private String fairShareWeights;
+
+        private int fairShareMaxQueuedEvents = 0;
+
+        private long rollupIntervalMillis = 0L;
+
+        private String rollupIndex;
+
+        private String rollupLevel;
+
+        private int maxRollupKeys = 10000;
+
+        private String ring;
+
+        private int ringSize = 16 * 1024 * 1024;
+
+        private Builder() {
+        }
+
+        public Builder url(String url) {
+            this.url = url;
+            return this;
+        }
+
+        public Builder index(String index) {
+            this.index = index;
+            return this;
+        }
+
+        public Builder type(String type) {
+            this.type = type;
+            return this;
+        }
+
+        public Builder create(boolean create) {
+            this.create = create;
+            return this;
+        }
+
+        public Builder maxActionsPerBulkRequest(int maxActionsPerBulkRequest) {
+            this.maxActionsPerBulkRequest = maxActionsPerBulkRequest;
+            return this;
+        }
+
+        public Builder flushSecs(long flushSecs) {
+            this.flushSecs = flushSecs;
+            return this;
+        }
+
+        public Builder logResponses(boolean logresponses) {
+            this.logresponses = logresponses;
+            return this;
+        }
+
+        /**
+         * Emit a client-side document ID with every bulk action, so a resent bulk request
+         * overwrites (or, in create mode, conflicts with) the documents of the first attempt
+         * instead of duplicating them.
+         *
+         * @param generateIds true if document IDs should be generated
+         * @return this builder
+         */
+        public Builder generateIds(boolean generateIds) {
+            this.generateIds = generateIds;
+            return this;
+        }
+
+        /**
+         * Send bulk requests from a separate sender thread, so the next batch is drained and encoded
+         * while the current one is still on the wire. Bulk requests are still sent one at a time and in order.
+         *
+         * @param pipelining true if bulk requests should be pipelined
+         * @return this builder
+         */
+        public Builder pipelining(boolean pipelining) {
+            this.pipelining = pipelining;
+            return this;
+        }
+
+        /**
+         * The HTTP transport. "urlconnection" uses the blocking JDK HTTP client, "nio" uses
+         * a non-blocking transport where one selector thread drives the connections of all clients,
+         * "http2" uses the java.net.http client of Java 11 and later. Any other value is taken
+         * as the class name of a {@link HttpTransport} implementation.
+         *
+         * @param transport the transport name
+         * @return this builder
+         */
+        public Builder transport(String transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * The maximum number of bulk requests on the wire at the same time. With more than one,
+         * bulk requests may be indexed out of order.
+         *
+         * @param maxConcurrentRequests the maximum number of concurrent bulk requests
+         * @return this builder
+         */
+        public Builder maxConcurrentRequests(int maxConcurrentRequests) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        /**
+         * Send each bulk request on its own virtual thread, and run the flush scheduler on a virtual
+         * thread, too. Falls back to platform threads before Java 21.
+         *
+         * @param virtualThreads true if virtual threads should be used
+         * @return this builder
+         */
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * The time that closing the client may take to send the backlog.
+         *
+         * @param shutdownTimeoutMillis the shutdown timeout in milliseconds
+         * @return this builder
+         */
+        public Builder shutdownTimeoutMillis(long shutdownTimeoutMillis) {
+            this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * The number of parallel senders that send the backlog when the client is closed.
+         *
+         * @param shutdownConcurrency the number of senders
+         * @return this builder
+         */
+        public Builder shutdownConcurrency(int shutdownConcurrency) {
+            this.shutdownConcurrency = shutdownConcurrency;
+            return this;
+        }
+
+        /**
+         * A file where bulk requests that could not be sent before the shutdown deadline are appended,
+         * in the newline-delimited format of the bulk API.
+         *
+         * @param spillFile the path of the spill file, or null if such events should be dropped
+         * @return this builder
+         */
+        public Builder spillFile(String spillFile) {
+            this.spillFile = spillFile;
+            return this;
+        }
+
+        /**
+         * Adapt the number of actions per bulk request and the flush interval to the cluster.
+         * Bulk requests grow and are sent more often while responses arrive within the target latency,
+         * and are halved and sent less often on 429 or 503 responses, rejected items or slow responses.
+         * The maximum number of actions and the flush interval are the upper bounds.
+         *
+         * @param adaptive true if bulk size and flush interval should adapt
+         * @return this builder
+         */
+        public Builder adaptive(boolean adaptive) {
+            this.adaptive = adaptive;
+            return this;
+        }
+
+        public Builder minActionsPerBulkRequest(int minActionsPerBulkRequest) {
+            this.minActionsPerBulkRequest = minActionsPerBulkRequest;
+            return this;
+        }
+
+        public Builder minFlushIntervalMillis(long minFlushIntervalMillis) {
+            this.minFlushIntervalMillis = minFlushIntervalMillis;
+            return this;
+        }
+
+        public Builder targetLatencyMillis(long targetLatencyMillis) {
+            this.targetLatencyMillis = targetLatencyMillis;
+            return this;
+        }
+
+        /**
+         * Events at this level or more severe go to a priority lane. They are sent in a small bulk request
+         * of their own right away, and are the last to be dropped when the queue is full.
+         *
+         * @param priorityLevel the level name, for example "ERROR", or null for no priority lane
+         * @return this builder
+         */
+        public Builder priorityLevel(String priorityLevel) {
+            this.priorityLevel = priorityLevel;
+            return this;
+        }
+
+        /**
+         * The maximum number of queued events. When the queue is full, new events are dropped,
+         * except priority events, which replace the oldest normal event.
+         *
+         * @param maxQueuedEvents the maximum number of queued events, or 0 for no limit
+         * @return this builder
+         */
+        public Builder maxQueuedEvents(int maxQueuedEvents) {
+            this.maxQueuedEvents = maxQueuedEvents;
+            return this;
+        }
+
+        /**
+         * Send bulk requests to the bulk endpoint of the index, for example {@code /log4j2/_bulk},
+         * so the action lines do not repeat index and type. A bulk request then contains
+         * actions for one index only.
+         *
+         * @param indexInUrl true if the index should be in the URL
+         * @return this builder
+         */
+        public Builder indexInUrl(boolean indexInUrl) {
+            this.indexInUrl = indexInUrl;
+            return this;
+        }
+
+        /**
+         * Do not send a document type, as required by Elasticsearch 8 and OpenSearch.
+         *
+         * @param typeless true if no document type should be sent
+         * @return this builder
+         */
+        public Builder typeless(boolean typeless) {
+            this.typeless = typeless;
+            return this;
+        }
+
+        /**
+         * The encoding of bulk requests, "json" for newline-delimited JSON or "smile" for the
+         * SMILE binary format, which is smaller and cheaper to parse.
+         *
+         * @param format the bulk format
+         * @return this builder
+         */
+        public Builder format(String format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * The maximum number of bytes of queued events. At this limit, new events are dropped,
+         * except priority events, which replace the oldest normal events. The default is 64 MiB.
+         *
+         * @param maxQueuedBytes the maximum number of bytes, or 0 for no limit
+         * @return this builder
+         */
+        public Builder maxQueuedBytes(long maxQueuedBytes) {
+            this.maxQueuedBytes = maxQueuedBytes;
+            return this;
+        }
+
+        /**
+         * The number of bytes of queued events above which sheddable events are dropped.
+         *
+         * @param softQueuedBytes the soft limit, or 0 for three quarters of the maximum
+         * @return this builder
+         */
+        public Builder softQueuedBytes(long softQueuedBytes) {
+            this.softQueuedBytes = softQueuedBytes;
+            return this;
+        }
+
+        /**
+         * Events at this level or less severe are sheddable. They are dropped above the soft
+         * byte limit and while the heap is under pressure. By default, no events are sheddable.
+         *
+         * @param shedLevel the level name, or null if no events are sheddable
+         * @return this builder
+         */
+        public Builder shedLevel(String shedLevel) {
+            this.shedLevel = shedLevel;
+            return this;
+        }
+
+        /**
+         * Put the queue under pressure when heap usage after garbage collection exceeds
+         * this percentage of the maximum heap pool size. Under pressure, queued sheddable
+         * events are dropped and new ones are refused.
+         *
+         * @param heapPressureThreshold the threshold in percent, or 0 to not watch the heap
+         * @return this builder
+         */
+        public Builder heapPressureThreshold(int heapPressureThreshold) {
+            this.heapPressureThreshold = heapPressureThreshold;
+            return this;
+        }
+
+        /**
+         * Keep queued events in a direct memory arena instead of the heap. The arena is made of
+         * chunks, which are recycled when the bulk requests of their events are acknowledged.
+         * When the arena is full, new events are dropped.
+         *
+         * @param offHeapBytes the maximum size of the arena in bytes, or 0 to queue events on the heap
+         * @return this builder
+         */
+        public Builder offHeapBytes(long offHeapBytes) {
+            this.offHeapBytes = offHeapBytes;
+            return this;
+        }
+
+        /**
+         * The size of a chunk of the direct memory arena. Events larger than a chunk get
+         * direct memory of their own.
+         *
+         * @param offHeapChunkSize the chunk size in bytes
+         * @return this builder
+         */
+        public Builder offHeapChunkSize(int offHeapChunkSize) {
+            this.offHeapChunkSize = offHeapChunkSize;
+            return this;
+        }
+
+        /**
+         * The maximum size of the body of a bulk request. Batches are closed before they grow larger,
+         * so they stay below the {@code http.max_content_length} of the cluster. A bulk request that
+         * the cluster rejects as too large anyway is split and sent again.
+         *
+         * @param maxBytesPerBulkRequest the maximum size in bytes, or 0 for no limit
+         * @return this builder
+         */
+        public Builder maxBytesPerBulkRequest(int maxBytesPerBulkRequest) {
+            this.maxBytesPerBulkRequest = maxBytesPerBulkRequest;
+            return this;
+        }
+
+        /**
+         * The maximum size of an encoded event. The longest strings of a larger event are truncated
+         * and marked with {@value ElasticsearchHttpClient#TRUNCATION_MARKER}. Events that do not fit even
+         * then are dropped.
+         *
+         * @param maxEventBytes the maximum size in bytes, or 0 for no limit
+         * @return this builder
+         */
+        public Builder maxEventBytes(int maxEventBytes) {
+            this.maxEventBytes = maxEventBytes;
+            return this;
+        }
+
+        /**
+         * Queue events by logger name prefix, and take them round-robin from these queues into
+         * bulk requests, so a logger that floods the client does not delay or crowd out the events
+         * of other loggers. Priority events keep their own lane.
+         *
+         * @param fairShareDepth the number of logger name segments of a prefix, such as 2 for
+         *                       {@code org.example}, or 0 to queue first in, first out
+         * @return this builder
+         */
+        public Builder fairShareDepth(int fairShareDepth) {
+            this.fairShareDepth = fairShareDepth;
+            return this;
+        }
+
+        /**
+         * The number of events a logger name prefix gives per round, like {@code org.hibernate=1,org.example=4}.
+         * Prefixes that are not listed give one event per round.
+         *
+         * @param fairShareWeights the weights
+         * @return this builder
+         */
+        public Builder fairShareWeights(String fairShareWeights) {
+            this.fairShareWeights = fairShareWeights;
+            return this;
+        }
+
+        /**
+         * @param fairShareMaxQueuedEvents the maximum number of queued events per logger name prefix,
+         *                                 or 0 for no limit
+         * @return this builder
+         */
+        public Builder fairShareMaxQueuedEvents(int fairShareMaxQueuedEvents) {
+            this.fairShareMaxQueuedEvents = fairShareMaxQueuedEvents;
+            return this;
+        }
+
+        /**
+         * Count events by logger name, level and exception class, and queue a rollup document with
+         * the count of each combination at the end of each interval.
+         *
+         * @param rollupIntervalMillis the interval in milliseconds, or 0 for no rollups
+         * @return this builder
+         */
+        public Builder rollupIntervalMillis(long rollupIntervalMillis) {
+            this.rollupIntervalMillis = rollupIntervalMillis;
+            return this;
+        }
+
+        /**
+         * @param rollupIndex the index for rollup documents, by default the index of the client with the suffix -rollup
+         * @return this builder
+         */
+        public Builder rollupIndex(String rollupIndex) {
+            this.rollupIndex = rollupIndex;
+            return this;
+        }
+
+        /**
+         * Events at this level or less severe are only counted for rollups, not indexed.
+         *
+         * @param rollupLevel the level, or null to index all events
+         * @return this builder
+         */
+        public Builder rollupLevel(String rollupLevel) {
+            this.rollupLevel = rollupLevel;
+            return this;
+        }
+
+        /**
+         * @param maxRollupKeys the maximum number of combinations of logger name, level and exception
+         *                      class, further combinations are counted together
+         * @return this builder
+         */
+        public Builder maxRollupKeys(int maxRollupKeys) {
+            this.maxRollupKeys = maxRollupKeys;
+            return this;
+        }
+
+        /**
+         * Write bulk requests to a ring file in a directory shared by the processes on this host,
+         * instead of sending them. A {@link RingShipper} sends the bulk requests of all rings.
+         *
+         * @param ring the ring directory, or null to send bulk requests with the transport
+         * @return this builder
+         */
+        public Builder ring(String ring) {
+            this.ring = ring;
+            return this;
+        }
+
+        /**
+         * @param ringSize the size of the ring in bytes
+         * @return this builder
+         */
+        public Builder ringSize(int ringSize) {
+            this.ringSize = ringSize;
+            return this;
+        }
+
+        public ElasticsearchHttpClient build() {
+            ElasticsearchHttpClient client = new ElasticsearchHttpClient(this);
+            ElasticsearchHttpClients.register(client);
+            return client;
+        }
+
+        /**
+         * The options in which another builder differs from this one, except index, type and create option,
+         * which each appender of a shared client keeps for itself.
+         *
+         * @param other the other builder
+         * @return the names of the options that differ
+         */
+        List<String> differences(Builder other) {
+            List<String> names = new ArrayList<String>();
+            for (Field field : Builder.class.getDeclaredFields()) {
+                String name = field.getName();
+                if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()
+                        || name.equals("index") || name.equals("type") || name.equals("create")) {
+                    continue;
+                }
+                try {
+                    Object value = field.get(this);
+                    Object otherValue = field.get(other);
+                    if (value == null ? otherValue != null : !value.equals(otherValue)) {
+                        names.add(name);
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return names;
+        }
+    }
+
     class JsonParser {
 
         private static final int DEFAULT_BUFFER_SIZE = 1024;
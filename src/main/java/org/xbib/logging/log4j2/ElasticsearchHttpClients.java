@@ -0,0 +1,160 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Shares clients between appenders that send to the same cluster endpoint.
+ *
+ * A shared client is created by the first appender for an endpoint, with the options of that
+ * appender, and is closed when the last appender closes it. All appenders for the endpoint
+ * share its queue, flush thread, sender threads and connections, and their events are mixed
+ * in the same bulk requests. Each appender keeps its own index, type and create option.
+ *
+ * All open clients are known here, so a client that is closed by a reconfiguration can hand its
+ * queued events and connections over to the client that the new configuration created for the
+ * same endpoint, and a barrier can wait for the events queued in all of them.
+ *
+ * Appenders with a delivery marker send the events with that marker right away and keep the future of
+ * their delivery for the thread that logged them, see {@link #delivery()}.
+ */
+public class ElasticsearchHttpClients {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private static final Map<String, ElasticsearchHttpClient> clients = new HashMap<String, ElasticsearchHttpClient>();
+
+    private static final Map<String, ElasticsearchHttpClient.Builder> builders =
+            new HashMap<String, ElasticsearchHttpClient.Builder>();
+
+    private static final List<ElasticsearchHttpClient> open = new ArrayList<ElasticsearchHttpClient>();
+
+    private static final ThreadLocal<Future<Boolean>> delivery = new ThreadLocal<Future<Boolean>>();
+
+    private ElasticsearchHttpClients() {
+    }
+
+    /**
+     * Return the shared client for an endpoint, or build one. A shared client keeps the options of
+     * the builder that built it; each option of a later builder that differs is logged as ignored.
+     *
+     * @param url     the bulk endpoint URL
+     * @param builder the builder for the client, used if there is no shared client for the URL yet
+     * @return the client, to be closed when no longer used
+     */
+    public static synchronized ElasticsearchHttpClient acquire(String url, ElasticsearchHttpClient.Builder builder) {
+        ElasticsearchHttpClient client = clients.get(url);
+        if (client != null && client.retain()) {
+            logger.debug("sharing Elasticsearch HTTP client for " + url);
+            for (String option : builders.get(url).differences(builder)) {
+                logger.warn("shared Elasticsearch HTTP client for " + url + " ignores option " + option
+                        + ", it keeps the option of the first appender");
+            }
+            return client;
+        }
+        client = builder.build();
+        clients.put(url, client);
+        builders.put(url, builder);
+        return client;
+    }
+
+    /**
+     * A barrier in all open clients, for code that logs with the Log4j API and must know that its
+     * events were indexed before it goes on, for example audit events.
+     *
+     * @return a future that completes when the events queued so far were acknowledged or dropped;
+     * it is false if an event queued since the previous barrier was dropped
+     */
+    public static Future<Boolean> barrier() {
+        List<ElasticsearchHttpClient> list;
+        synchronized (ElasticsearchHttpClients.class) {
+            list = new ArrayList<ElasticsearchHttpClient>(open);
+        }
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (ElasticsearchHttpClient client : list) {
+            futures.add(client.barrier());
+        }
+        return DeliveryFuture.all(futures);
+    }
+
+    /**
+     * The delivery of the last event that the current thread logged with the delivery marker of an
+     * appender, for code that must know that this event was indexed before it goes on. The event is sent
+     * right away, so this is cheaper than a barrier, which waits for all events queued so far.
+     *
+     * The future is kept for the thread that called the appender, so asynchronous loggers must use
+     * {@link #barrier()} instead.
+     *
+     * @return a future that is true when the event was acknowledged, or false if it was dropped, or null if
+     * the thread logged no event with a delivery marker since the previous call
+     */
+    public static Future<Boolean> delivery() {
+        Future<Boolean> future = delivery.get();
+        delivery.remove();
+        return future;
+    }
+
+    /**
+     * Keep the delivery of an event with the delivery marker for the current thread.
+     *
+     * @param future the future of the delivery
+     */
+    static void delivered(Future<Boolean> future) {
+        delivery.set(future);
+    }
+
+    static synchronized void register(ElasticsearchHttpClient client) {
+        open.add(client);
+    }
+
+    static synchronized void remove(ElasticsearchHttpClient client) {
+        Iterator<Map.Entry<String, ElasticsearchHttpClient>> it = clients.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ElasticsearchHttpClient> entry = it.next();
+            if (entry.getValue() == client) {
+                builders.remove(entry.getKey());
+                it.remove();
+            }
+        }
+        open.remove(client);
+    }
+
+    /**
+     * Find the client that takes over from a client that is closed, which is the newest open client
+     * for the same endpoint that encodes events the same way.
+     *
+     * @param client the client that is closed
+     * @return the successor, or null
+     */
+    static synchronized ElasticsearchHttpClient successor(ElasticsearchHttpClient client) {
+        for (int i = open.size() - 1; i >= 0; i--) {
+            ElasticsearchHttpClient other = open.get(i);
+            if (other != client && client.canHandOverTo(other)) {
+                return other;
+            }
+        }
+        return null;
+    }
+}
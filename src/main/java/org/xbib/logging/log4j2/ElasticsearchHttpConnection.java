@@ -27,10 +27,26 @@ public class ElasticsearchHttpConnection implements NoSqlConnection<Map<String,
 
     private final ElasticsearchHttpClient client;
 
+    private final ElasticsearchHttpClient.Target target;
+
+    private final String deliveryMarker;
+
     private final AtomicBoolean closed = new AtomicBoolean(false);
 
     public ElasticsearchHttpConnection(final ElasticsearchHttpClient client) {
+        this(client, null);
+    }
+
+    public ElasticsearchHttpConnection(final ElasticsearchHttpClient client,
+                                       final ElasticsearchHttpClient.Target target) {
+        this(client, target, null);
+    }
+
+    public ElasticsearchHttpConnection(final ElasticsearchHttpClient client,
+                                       final ElasticsearchHttpClient.Target target, final String deliveryMarker) {
         this.client = client;
+        this.target = target;
+        this.deliveryMarker = deliveryMarker;
     }
 
     @Override
@@ -46,12 +62,23 @@ public class ElasticsearchHttpConnection implements NoSqlConnection<Map<String,
     @Override
     public void insertObject(final NoSqlObject<Map<String, Object>> object) {
         try {
-            client.index(object.unwrap());
+            if (target != null && deliveryMarker != null && hasDeliveryMarker(object.unwrap())) {
+                ElasticsearchHttpClients.delivered(client.deliver(target, object.unwrap()));
+            } else if (target != null) {
+                client.index(target, object.unwrap());
+            } else {
+                client.index(object.unwrap());
+            }
         } catch (Exception e) {
             throw new AppenderLoggingException("failed to write log event to Elasticsearch HTTP: " + e.getMessage(), e);
         }
     }
 
+    private boolean hasDeliveryMarker(Map<String, Object> event) {
+        Object marker = event.get("marker");
+        return marker instanceof Map && deliveryMarker.equals(((Map<?, ?>) marker).get("name"));
+    }
+
     @Override
     public void close() {
         if (closed.compareAndSet(false, true)) {
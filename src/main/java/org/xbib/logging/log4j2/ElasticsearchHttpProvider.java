@@ -25,16 +25,36 @@ public class ElasticsearchHttpProvider implements NoSqlProvider<ElasticsearchHtt
 
     private final ElasticsearchHttpClient client;
 
+    private final ElasticsearchHttpClient.Target target;
+
+    private final String deliveryMarker;
+
     private final String description;
 
-    private ElasticsearchHttpProvider(final ElasticsearchHttpClient client, final String description) {
+    private ElasticsearchHttpProvider(final ElasticsearchHttpClient client,
+                                      final ElasticsearchHttpClient.Target target, final String deliveryMarker,
+                                      final String description) {
         this.client = client;
+        this.target = target;
+        this.deliveryMarker = deliveryMarker;
         this.description = "elasticsearch-http{ " + description + " }";
     }
 
     @Override
     public ElasticsearchHttpConnection getConnection() {
-        return new ElasticsearchHttpConnection(client);
+        return new ElasticsearchHttpConnection(client, target, deliveryMarker);
+    }
+
+    ElasticsearchHttpClient getClient() {
+        return client;
+    }
+
+    ElasticsearchHttpClient.Target getTarget() {
+        return target;
+    }
+
+    String getDeliveryMarker() {
+        return deliveryMarker;
     }
 
     @Override
@@ -51,6 +71,42 @@ public class ElasticsearchHttpProvider implements NoSqlProvider<ElasticsearchHtt
      * @param create true if log documents must be created or false if log docs are allowed to be updated
      * @param maxActionsPerBulkRequest maximum number of actions per bulk request
      * @param logResponses true if responses should be logged
+     * @param generateIds true if time-ordered document IDs should be generated on the client side
+     * @param pipelining true if the next bulk request should be prepared while the current one is sent
+     * @param transport the HTTP transport, "urlconnection", "nio", "http2" or a transport class name
+     * @param maxConcurrentRequests maximum number of bulk requests on the wire at the same time
+     * @param virtualThreads true if bulk requests should be sent on virtual threads (Java 21 or later)
+     * @param shutdownTimeout maximum number of seconds to send the backlog when the appender is stopped
+     * @param shutdownConcurrency number of parallel senders for the backlog when the appender is stopped
+     * @param spillFile file for bulk requests that could not be sent when the appender is stopped
+     * @param adaptive true if bulk request size and flush interval should adapt to cluster feedback
+     * @param minActionsPerBulkRequest minimum number of actions per bulk request in adaptive mode
+     * @param minFlushInterval minimum flush interval in milliseconds in adaptive mode
+     * @param targetLatency bulk response time in milliseconds that adaptive mode aims to stay under
+     * @param priorityLevel events at this level or more severe are sent right away and dropped last
+     * @param maxQueuedEvents maximum number of queued events, 0 for no limit
+     * @param indexInUrl true if bulk requests should be sent to the bulk endpoint of the index
+     * @param typeless true if no document type should be sent
+     * @param format the bulk request encoding, "json" or "smile"
+     * @param maxQueuedBytes maximum number of bytes of queued events, 0 for no limit, 64 MiB by default
+     * @param softQueuedBytes number of bytes of queued events above which sheddable events are dropped
+     * @param shedLevel events at this level or less severe are dropped first when memory runs short, none by default
+     * @param heapPressureThreshold heap usage after GC in percent above which sheddable events are dropped
+     * @param offHeapBytes maximum size of the direct memory arena for queued events, 0 to queue on the heap
+     * @param offHeapChunkSize size of a chunk of the direct memory arena
+     * @param maxBytesPerBulkRequest maximum size of a bulk request in bytes, 0 for no limit
+     * @param maxEventBytes maximum size of an event in bytes, the longest strings of larger events are truncated
+     * @param fairShareDepth number of logger name segments by which events are queued fairly, 0 for FIFO
+     * @param fairShareWeights events per round for logger name prefixes, like "org.hibernate=1,org.example=4"
+     * @param fairShareMaxQueuedEvents maximum number of queued events per logger name prefix, 0 for no limit
+     * @param rollupInterval seconds between rollup documents with event counts, 0 for no rollups
+     * @param rollupIndex index for rollup documents, by default the index of the appender with the suffix -rollup
+     * @param rollupLevel events at this level or less severe are only counted for rollups, not indexed
+     * @param maxRollupKeys maximum number of combinations of logger, level and exception class in rollups
+     * @param ring directory of the ring files that a shipper process sends, instead of sending bulk requests
+     * @param ringSize size of the ring file in bytes
+     * @param shared true if the client should be shared with the other appenders for the same URL
+     * @param deliveryMarker name of the marker of events that are sent right away, with a future for their delivery
      * @return a new Elasticsearch provider
      */
     @PluginFactory
@@ -60,7 +116,43 @@ public class ElasticsearchHttpProvider implements NoSqlProvider<ElasticsearchHtt
             @PluginAttribute("type") String type,
             @PluginAttribute("create") Boolean create,
             @PluginAttribute("maxActionsPerBulkRequest") Integer maxActionsPerBulkRequest,
-            @PluginAttribute("logResponses") Boolean logResponses) {
+            @PluginAttribute("logResponses") Boolean logResponses,
+            @PluginAttribute("generateIds") Boolean generateIds,
+            @PluginAttribute("pipelining") Boolean pipelining,
+            @PluginAttribute("transport") String transport,
+            @PluginAttribute("maxConcurrentRequests") Integer maxConcurrentRequests,
+            @PluginAttribute("virtualThreads") Boolean virtualThreads,
+            @PluginAttribute("shutdownTimeout") Integer shutdownTimeout,
+            @PluginAttribute("shutdownConcurrency") Integer shutdownConcurrency,
+            @PluginAttribute("spillFile") String spillFile,
+            @PluginAttribute("adaptive") Boolean adaptive,
+            @PluginAttribute("minActionsPerBulkRequest") Integer minActionsPerBulkRequest,
+            @PluginAttribute("minFlushInterval") Integer minFlushInterval,
+            @PluginAttribute("targetLatency") Integer targetLatency,
+            @PluginAttribute("priorityLevel") String priorityLevel,
+            @PluginAttribute("maxQueuedEvents") Integer maxQueuedEvents,
+            @PluginAttribute("indexInUrl") Boolean indexInUrl,
+            @PluginAttribute("typeless") Boolean typeless,
+            @PluginAttribute("format") String format,
+            @PluginAttribute("maxQueuedBytes") Long maxQueuedBytes,
+            @PluginAttribute("softQueuedBytes") Long softQueuedBytes,
+            @PluginAttribute("shedLevel") String shedLevel,
+            @PluginAttribute("heapPressureThreshold") Integer heapPressureThreshold,
+            @PluginAttribute("offHeapBytes") Long offHeapBytes,
+            @PluginAttribute("offHeapChunkSize") Integer offHeapChunkSize,
+            @PluginAttribute("maxBytesPerBulkRequest") Integer maxBytesPerBulkRequest,
+            @PluginAttribute("maxEventBytes") Integer maxEventBytes,
+            @PluginAttribute("fairShareDepth") Integer fairShareDepth,
+            @PluginAttribute("fairShareWeights") String fairShareWeights,
+            @PluginAttribute("fairShareMaxQueuedEvents") Integer fairShareMaxQueuedEvents,
+            @PluginAttribute("rollupInterval") Integer rollupInterval,
+            @PluginAttribute("rollupIndex") String rollupIndex,
+            @PluginAttribute("rollupLevel") String rollupLevel,
+            @PluginAttribute("maxRollupKeys") Integer maxRollupKeys,
+            @PluginAttribute("ring") String ring,
+            @PluginAttribute("ringSize") Integer ringSize,
+            @PluginAttribute("shared") Boolean shared,
+            @PluginAttribute("deliveryMarker") String deliveryMarker) {
         if (url == null || url.isEmpty()) {
             url = "http://localhost:9200/_bulk";
         }
@@ -70,16 +162,164 @@ public class ElasticsearchHttpProvider implements NoSqlProvider<ElasticsearchHtt
         if (type == null || type.isEmpty()) {
             type = "log4j2";
         }
+        if (create == null) {
+            create = false;
+        }
         if (maxActionsPerBulkRequest == null || maxActionsPerBulkRequest == 0) {
             maxActionsPerBulkRequest = 1000;
         }
         if (logResponses == null) {
             logResponses = false;
         }
+        if (generateIds == null) {
+            generateIds = false;
+        }
+        if (pipelining == null) {
+            pipelining = false;
+        }
+        if (transport == null || transport.isEmpty()) {
+            transport = "urlconnection";
+        }
+        if (maxConcurrentRequests == null || maxConcurrentRequests < 1) {
+            maxConcurrentRequests = 1;
+        }
+        if (virtualThreads == null) {
+            virtualThreads = false;
+        }
+        if (shutdownTimeout == null || shutdownTimeout < 0) {
+            shutdownTimeout = 30;
+        }
+        if (shutdownConcurrency == null || shutdownConcurrency < 1) {
+            shutdownConcurrency = 4;
+        }
+        if (spillFile != null && spillFile.isEmpty()) {
+            spillFile = null;
+        }
+        if (adaptive == null) {
+            adaptive = false;
+        }
+        if (minActionsPerBulkRequest == null || minActionsPerBulkRequest < 1) {
+            minActionsPerBulkRequest = Math.min(100, maxActionsPerBulkRequest);
+        }
+        if (minFlushInterval == null || minFlushInterval < 1) {
+            minFlushInterval = 200;
+        }
+        if (targetLatency == null || targetLatency < 1) {
+            targetLatency = 1000;
+        }
+        if (priorityLevel != null && priorityLevel.isEmpty()) {
+            priorityLevel = null;
+        }
+        if (maxQueuedEvents == null || maxQueuedEvents < 0) {
+            maxQueuedEvents = 0;
+        }
+        if (indexInUrl == null) {
+            indexInUrl = false;
+        }
+        if (typeless == null) {
+            typeless = false;
+        }
+        if (format == null || format.isEmpty()) {
+            format = "json";
+        }
+        if (maxQueuedBytes == null || maxQueuedBytes < 0) {
+            maxQueuedBytes = ElasticsearchHttpClient.DEFAULT_MAX_QUEUED_BYTES;
+        }
+        if (softQueuedBytes == null || softQueuedBytes < 0) {
+            softQueuedBytes = 0L;
+        }
+        if (shedLevel != null && shedLevel.isEmpty()) {
+            shedLevel = null;
+        }
+        if (heapPressureThreshold == null || heapPressureThreshold < 0 || heapPressureThreshold > 100) {
+            heapPressureThreshold = 0;
+        }
+        if (offHeapBytes == null || offHeapBytes < 0) {
+            offHeapBytes = 0L;
+        }
+        if (offHeapChunkSize == null || offHeapChunkSize < 1024) {
+            offHeapChunkSize = 1024 * 1024;
+        }
+        if (maxBytesPerBulkRequest == null || maxBytesPerBulkRequest < 0) {
+            maxBytesPerBulkRequest = 10 * 1024 * 1024;
+        }
+        if (maxEventBytes == null || maxEventBytes < 0) {
+            maxEventBytes = 0;
+        }
+        if (fairShareDepth == null || fairShareDepth < 0) {
+            fairShareDepth = 0;
+        }
+        if (fairShareMaxQueuedEvents == null || fairShareMaxQueuedEvents < 0) {
+            fairShareMaxQueuedEvents = 0;
+        }
+        if (rollupInterval == null || rollupInterval < 0) {
+            rollupInterval = 0;
+        }
+        if (rollupIndex != null && rollupIndex.isEmpty()) {
+            rollupIndex = null;
+        }
+        if (maxRollupKeys == null || maxRollupKeys <= 0) {
+            maxRollupKeys = 10000;
+        }
+        if (ring != null && ring.isEmpty()) {
+            ring = null;
+        }
+        if (ringSize == null || ringSize <= 0) {
+            ringSize = 16 * 1024 * 1024;
+        }
+        if (shared == null) {
+            shared = false;
+        }
+        if (deliveryMarker != null && deliveryMarker.isEmpty()) {
+            deliveryMarker = null;
+        }
         String description = "url=" + url + ",index=" + index + ",type=" + type;
-        ElasticsearchHttpClient elasticsearchClient = new ElasticsearchHttpClient(url, index, type, create,
-                maxActionsPerBulkRequest, 5, logResponses);
-        return new ElasticsearchHttpProvider(elasticsearchClient, description);
+        ElasticsearchHttpClient.Builder builder = ElasticsearchHttpClient.builder()
+                .url(url)
+                .index(index)
+                .type(type)
+                .create(create)
+                .maxActionsPerBulkRequest(maxActionsPerBulkRequest)
+                .flushSecs(5)
+                .logResponses(logResponses)
+                .generateIds(generateIds)
+                .pipelining(pipelining)
+                .transport(transport)
+                .maxConcurrentRequests(maxConcurrentRequests)
+                .virtualThreads(virtualThreads)
+                .shutdownTimeoutMillis(shutdownTimeout * 1000L)
+                .shutdownConcurrency(shutdownConcurrency)
+                .spillFile(spillFile)
+                .adaptive(adaptive)
+                .minActionsPerBulkRequest(minActionsPerBulkRequest)
+                .minFlushIntervalMillis(minFlushInterval)
+                .targetLatencyMillis(targetLatency)
+                .priorityLevel(priorityLevel)
+                .maxQueuedEvents(maxQueuedEvents)
+                .indexInUrl(indexInUrl)
+                .typeless(typeless)
+                .format(format)
+                .maxQueuedBytes(maxQueuedBytes)
+                .softQueuedBytes(softQueuedBytes)
+                .shedLevel(shedLevel)
+                .heapPressureThreshold(heapPressureThreshold)
+                .offHeapBytes(offHeapBytes)
+                .offHeapChunkSize(offHeapChunkSize)
+                .maxBytesPerBulkRequest(maxBytesPerBulkRequest)
+                .maxEventBytes(maxEventBytes)
+                .fairShareDepth(fairShareDepth)
+                .fairShareWeights(fairShareWeights)
+                .fairShareMaxQueuedEvents(fairShareMaxQueuedEvents)
+                .rollupIntervalMillis(rollupInterval * 1000L)
+                .rollupIndex(rollupIndex)
+                .rollupLevel(rollupLevel)
+                .maxRollupKeys(maxRollupKeys)
+                .ring(ring)
+                .ringSize(ringSize);
+        ElasticsearchHttpClient elasticsearchClient = shared ?
+                ElasticsearchHttpClients.acquire(url, builder) : builder.build();
+        return new ElasticsearchHttpProvider(elasticsearchClient,
+                new ElasticsearchHttpClient.Target(index, type, create), deliveryMarker, description);
     }
 
 }
@@ -0,0 +1,220 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The queue of bulk actions waiting to be sent, with a priority lane and a normal lane.
+ *
+ * Actions in the priority lane are polled first. The queue can be bounded by number of actions
+ * and by bytes. Above the soft byte limit, or while the heap is under pressure, sheddable actions
+ * are dropped. At the hard limits, a priority action evicts the oldest normal action, and other
+ * actions are dropped, so priority actions are the last to be lost. Limits are checked without
+ * locking and may be exceeded slightly under contention.
+ *
+ * With a {@link FairShareLane}, normal actions are polled round-robin by key instead of first
+ * in, first out, and a full queue drops from the key with the most queued actions.
+ */
+class EventQueue {
+
+    private final Queue<BulkAction> priority = new ConcurrentLinkedQueue<BulkAction>();
+
+    private final Queue<BulkAction> normal = new ConcurrentLinkedQueue<BulkAction>();
+
+    private final FairShareLane fair;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final int capacity;
+
+    private final long maxBytes;
+
+    private final long softBytes;
+
+    private volatile boolean pressure;
+
+    /**
+     * @param capacity the maximum number of queued actions, or 0 for no limit
+     * @param maxBytes the maximum number of queued bytes, or 0 for no limit
+     * @param softBytes the number of queued bytes above which sheddable actions are dropped, or 0 for no limit
+     */
+    EventQueue(int capacity, long maxBytes, long softBytes) {
+        this(capacity, maxBytes, softBytes, null);
+    }
+
+    /**
+     * @param capacity the maximum number of queued actions, or 0 for no limit
+     * @param maxBytes the maximum number of queued bytes, or 0 for no limit
+     * @param softBytes the number of queued bytes above which sheddable actions are dropped, or 0 for no limit
+     * @param fair the lane for normal actions, or null for first in, first out
+     */
+    EventQueue(int capacity, long maxBytes, long softBytes, FairShareLane fair) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.softBytes = softBytes;
+        this.fair = fair;
+    }
+
+    /**
+     * Add an action to the queue.
+     *
+     * @param action       the bulk action
+     * @param highPriority true if the action belongs to the priority lane
+     * @return false if the action was dropped because the queue is full, the caller must then free it
+     */
+    boolean offer(BulkAction action, boolean highPriority) {
+        int length = action.length();
+        if (!highPriority && action.sheddable
+                && (pressure || (softBytes > 0 && bytes.get() + length > softBytes))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (!highPriority && fair != null && fair.isFull(action)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        while ((capacity > 0 && size.get() >= capacity) || (maxBytes > 0 && bytes.get() + length > maxBytes)) {
+            BulkAction evicted = fair != null ? fair.evict(highPriority ? null : action) :
+                    highPriority ? normal.poll() : null;
+            dropped.incrementAndGet();
+            if (evicted == null) {
+                return false;
+            }
+            release(evicted);
+            evicted.drop();
+        }
+        size.incrementAndGet();
+        bytes.addAndGet(length);
+        if (highPriority) {
+            priority.add(action);
+        } else if (fair != null) {
+            fair.add(action);
+        } else {
+            normal.add(action);
+        }
+        return true;
+    }
+
+    /**
+     * Take the next action, priority actions first.
+     *
+     * @return the action, or null if the queue is empty
+     */
+    BulkAction poll() {
+        BulkAction action = priority.poll();
+        if (action == null) {
+            action = fair != null ? fair.poll() : normal.poll();
+        }
+        if (action != null) {
+            release(action);
+        }
+        return action;
+    }
+
+    /**
+     * Take the next action from the priority lane.
+     *
+     * @return the action, or null if the priority lane is empty
+     */
+    BulkAction pollPriority() {
+        BulkAction action = priority.poll();
+        if (action != null) {
+            release(action);
+        }
+        return action;
+    }
+
+    /**
+     * Set the heap pressure state. When pressure begins, all queued sheddable actions are dropped.
+     *
+     * @param pressure true if the heap is under pressure
+     * @return the number of actions dropped
+     */
+    int pressure(boolean pressure) {
+        boolean begins = pressure && !this.pressure;
+        this.pressure = pressure;
+        int n = 0;
+        if (begins && fair != null) {
+            for (BulkAction action : fair.removeSheddable()) {
+                release(action);
+                action.drop();
+                n++;
+            }
+            dropped.addAndGet(n);
+        } else if (begins) {
+            Iterator<BulkAction> it = normal.iterator();
+            while (it.hasNext()) {
+                BulkAction action = it.next();
+                if (action.sheddable && normal.remove(action)) {
+                    release(action);
+                    action.drop();
+                    n++;
+                }
+            }
+            dropped.addAndGet(n);
+        }
+        return n;
+    }
+
+    private void release(BulkAction action) {
+        size.decrementAndGet();
+        bytes.addAndGet(-action.length());
+    }
+
+    boolean isEmpty() {
+        return priority.isEmpty() && (fair != null ? fair.isEmpty() : normal.isEmpty());
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Count an action that was dropped before it could be offered.
+     *
+     * @return the number of dropped actions so far
+     */
+    long drop() {
+        return dropped.incrementAndGet();
+    }
+
+    /**
+     * Count actions that were dropped after they left the queue.
+     *
+     * @param n the number of actions
+     * @return the number of dropped actions so far
+     */
+    long drop(int n) {
+        return dropped.addAndGet(n);
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+}
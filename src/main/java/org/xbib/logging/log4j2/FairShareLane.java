@@ -0,0 +1,260 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A normal lane with a sub-queue for each key, such as a logger name prefix, which are polled
+ * round-robin. In each round, a key gives up to its weight actions, so a flood of actions for
+ * one key does not delay the actions for other keys by more than a round.
+ *
+ * When the queue is full, an action for a key evicts the oldest action of the key with the most
+ * queued actions, so the dropped actions are taken from the flood, too. Each key can be bounded
+ * by number of actions.
+ */
+class FairShareLane {
+
+    private static final String DEFAULT_KEY = "";
+
+    private final ConcurrentMap<String, SubQueue> queues = new ConcurrentHashMap<String, SubQueue>();
+
+    /**
+     * The sub-queues with actions, in round-robin order.
+     */
+    private final Queue<SubQueue> active = new ConcurrentLinkedQueue<SubQueue>();
+
+    private final Map<String, Integer> weights;
+
+    private final int maxPerKey;
+
+    private SubQueue current;
+
+    /**
+     * @param weights   the number of actions a key gives per round, 1 for keys that are not listed
+     * @param maxPerKey the maximum number of queued actions per key, or 0 for no limit
+     */
+    FairShareLane(Map<String, Integer> weights, int maxPerKey) {
+        this.weights = weights != null ? weights : Collections.<String, Integer>emptyMap();
+        this.maxPerKey = maxPerKey;
+    }
+
+    /**
+     * The key of a logger name: its first segments, separated by dots.
+     *
+     * @param loggerName the logger name, or null
+     * @param depth      the number of segments
+     * @return the key
+     */
+    static String key(String loggerName, int depth) {
+        if (loggerName == null) {
+            return DEFAULT_KEY;
+        }
+        int pos = -1;
+        for (int i = 0; i < depth; i++) {
+            pos = loggerName.indexOf('.', pos + 1);
+            if (pos < 0) {
+                return loggerName;
+            }
+        }
+        return loggerName.substring(0, pos);
+    }
+
+    /**
+     * Parse weights like {@code org.hibernate=1,com.example.billing=4}.
+     *
+     * @param s the weights, or null
+     * @return the weights by key
+     */
+    static Map<String, Integer> parseWeights(String s) {
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        if (s == null) {
+            return weights;
+        }
+        for (String entry : s.split(",")) {
+            int pos = entry.indexOf('=');
+            if (pos > 0) {
+                try {
+                    weights.put(entry.substring(0, pos).trim(),
+                            Math.max(1, Integer.parseInt(entry.substring(pos + 1).trim())));
+                } catch (NumberFormatException e) {
+                    // the key keeps the default weight
+                }
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * @param action the action
+     * @return true if the key of the action has no more room
+     */
+    boolean isFull(BulkAction action) {
+        if (maxPerKey <= 0) {
+            return false;
+        }
+        SubQueue queue = queues.get(keyOf(action));
+        return queue != null && queue.size.get() >= maxPerKey;
+    }
+
+    void add(BulkAction action) {
+        SubQueue queue = subQueue(keyOf(action));
+        queue.size.incrementAndGet();
+        queue.queue.add(action);
+        if (queue.active.compareAndSet(false, true)) {
+            active.add(queue);
+        }
+    }
+
+    /**
+     * Take the next action in round-robin order.
+     *
+     * @return the action, or null if the lane is empty
+     */
+    synchronized BulkAction poll() {
+        while (true) {
+            if (current == null) {
+                current = active.poll();
+                if (current == null) {
+                    return null;
+                }
+                current.credit = current.weight;
+            }
+            BulkAction action = current.queue.poll();
+            if (action == null) {
+                deactivate(current);
+                current = null;
+                continue;
+            }
+            current.size.decrementAndGet();
+            if (--current.credit <= 0) {
+                // the turn of the next key, this one is still active
+                active.add(current);
+                current = null;
+            }
+            return action;
+        }
+    }
+
+    /**
+     * Take the oldest action of the key with the most queued actions, unless that is the key
+     * of the given action.
+     *
+     * @param action the action that needs room, or null to evict from any key
+     * @return the evicted action, or null
+     */
+    BulkAction evict(BulkAction action) {
+        SubQueue largest = null;
+        for (SubQueue queue : queues.values()) {
+            if (largest == null || queue.size.get() > largest.size.get()) {
+                largest = queue;
+            }
+        }
+        if (largest == null || (action != null && largest.key.equals(keyOf(action)))) {
+            return null;
+        }
+        BulkAction evicted = largest.queue.poll();
+        if (evicted != null) {
+            largest.size.decrementAndGet();
+        }
+        return evicted;
+    }
+
+    /**
+     * Remove all sheddable actions.
+     *
+     * @return the removed actions
+     */
+    List<BulkAction> removeSheddable() {
+        List<BulkAction> removed = new ArrayList<BulkAction>();
+        for (SubQueue queue : queues.values()) {
+            Iterator<BulkAction> it = queue.queue.iterator();
+            while (it.hasNext()) {
+                BulkAction action = it.next();
+                if (action.sheddable && queue.queue.remove(action)) {
+                    queue.size.decrementAndGet();
+                    removed.add(action);
+                }
+            }
+        }
+        return removed;
+    }
+
+    boolean isEmpty() {
+        for (SubQueue queue : queues.values()) {
+            if (!queue.queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deactivate(SubQueue queue) {
+        queue.active.set(false);
+        // an action may have been added after the poll and before the flag was cleared
+        if (!queue.queue.isEmpty() && queue.active.compareAndSet(false, true)) {
+            active.add(queue);
+        }
+    }
+
+    private SubQueue subQueue(String key) {
+        SubQueue queue = queues.get(key);
+        if (queue == null) {
+            Integer weight = weights.get(key);
+            SubQueue q = new SubQueue(key, weight != null ? weight : 1);
+            queue = queues.putIfAbsent(key, q);
+            if (queue == null) {
+                queue = q;
+            }
+        }
+        return queue;
+    }
+
+    private static String keyOf(BulkAction action) {
+        return action.key != null ? action.key : DEFAULT_KEY;
+    }
+
+    private static class SubQueue {
+
+        private final String key;
+
+        private final int weight;
+
+        private final Queue<BulkAction> queue = new ConcurrentLinkedQueue<BulkAction>();
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        private final AtomicBoolean active = new AtomicBoolean();
+
+        private int credit;
+
+        SubQueue(String key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+/**
+ * Hooks for Java Flight Recorder events about the work of the client: sending bulk requests,
+ * draining the queue, retries of rejected bulk requests, backoff state changes, and encoding
+ * of large events.
+ *
+ * This implementation records nothing. On Java 11 and later, the JFR implementation, which is
+ * compiled by the {@code java11} Maven profile, is used instead. Its begin methods return null
+ * while an event type is disabled in the recording settings, so a disabled event costs a check.
+ */
+class FlightEvents {
+
+    private static final String JFR_FLIGHT_EVENTS = "org.xbib.logging.log4j2.JfrFlightEvents";
+
+    private static final FlightEvents instance = load();
+
+    /**
+     * Encoded events at least this large are recorded.
+     */
+    static final int LARGE_EVENT_BYTES = 64 * 1024;
+
+    static FlightEvents getInstance() {
+        return instance;
+    }
+
+    private static FlightEvents load() {
+        try {
+            return (FlightEvents) Class.forName(JFR_FLIGHT_EVENTS, true, FlightEvents.class.getClassLoader())
+                    .newInstance();
+        } catch (LinkageError e) {
+            // compiled for Java 11, or the JDK has no jdk.jfr module
+            return new FlightEvents();
+        } catch (Exception e) {
+            return new FlightEvents();
+        }
+    }
+
+    Object beginSend() {
+        return null;
+    }
+
+    void endSend(Object event, String node, int bytes, int actions, int status) {
+    }
+
+    Object beginDrain() {
+        return null;
+    }
+
+    void endDrain(Object event, int bytes, int actions) {
+    }
+
+    Object beginEncode() {
+        return null;
+    }
+
+    void endEncode(Object event, int bytes) {
+    }
+
+    void retry(String node, int bytes, int actions, int status) {
+    }
+
+    void backoff(boolean backoff, int pending) {
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watches the tenured heap memory pools for usage after garbage collection above a threshold.
+ *
+ * When a collection usage threshold is exceeded, the registered queues are put under pressure
+ * and drop their sheddable actions. The pressure ends when the usage after the latest
+ * collection is below the threshold again.
+ *
+ * Young pools, such as eden and survivor spaces, are full after most collections by design and
+ * are not watched. They are told apart by not supporting a usage threshold. The thresholds are
+ * global to the JVM, so the monitor resets the thresholds it set when the last queue is unregistered.
+ */
+class HeapPressureMonitor implements NotificationListener {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private static HeapPressureMonitor instance;
+
+    private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+
+    private final List<MemoryPoolMXBean> thresholds = new ArrayList<MemoryPoolMXBean>();
+
+    private final List<EventQueue> queues = new CopyOnWriteArrayList<EventQueue>();
+
+    private HeapPressureMonitor(int percent) {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && pool.isUsageThresholdSupported()) {
+                long max = pool.getUsage().getMax();
+                if (max <= 0) {
+                    continue;
+                }
+                // respect a threshold that someone else has already set
+                if (pool.getCollectionUsageThreshold() == 0) {
+                    pool.setCollectionUsageThreshold(max / 100 * percent);
+                    thresholds.add(pool);
+                }
+                pools.add(pool);
+            }
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    }
+
+    /**
+     * Register a queue with the monitor. The threshold is set by the first caller.
+     *
+     * @param percent the threshold for heap usage after garbage collection, in percent of the maximum
+     * @param queue   the queue to put under pressure
+     * @return the monitor
+     */
+    static synchronized HeapPressureMonitor register(int percent, EventQueue queue) {
+        if (instance == null) {
+            instance = new HeapPressureMonitor(percent);
+        }
+        instance.queues.add(queue);
+        return instance;
+    }
+
+    /**
+     * Unregister a queue. After the last queue, the monitor stops listening and resets the thresholds
+     * it set, and the next queue starts a new monitor.
+     *
+     * @param queue the queue
+     */
+    void unregister(EventQueue queue) {
+        synchronized (HeapPressureMonitor.class) {
+            queues.remove(queue);
+            if (!queues.isEmpty() || instance != this) {
+                return;
+            }
+            instance = null;
+        }
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        } catch (ListenerNotFoundException e) {
+            // not registered
+        }
+        for (MemoryPoolMXBean pool : thresholds) {
+            pool.setCollectionUsageThreshold(0L);
+        }
+    }
+
+    /**
+     * Check if the heap is under pressure now.
+     *
+     * @return true if the usage after the latest collection of a heap pool is above its threshold
+     */
+    boolean isUnderPressure() {
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.isCollectionUsageThresholdExceeded()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            int n = 0;
+            for (EventQueue queue : queues) {
+                n += queue.pressure(true);
+            }
+            logger.warn("heap usage after GC above threshold, dropped " + n + " queued events");
+        }
+    }
+}
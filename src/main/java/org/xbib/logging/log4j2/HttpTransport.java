@@ -0,0 +1,75 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Future;
+
+/**
+ * The transport that sends bulk requests to Elasticsearch.
+ *
+ * Implementations must have a public no-argument constructor, so they can be selected
+ * by class name in the {@code transport} attribute of the provider configuration.
+ */
+public interface HttpTransport {
+
+    /**
+     * Send a POST request. The body must not be modified until the returned future is done.
+     *
+     * @param url         the URL
+     * @param contentType the content type of the body
+     * @param body        the body
+     * @return a future for the response
+     * @throws IOException if the request can not be sent
+     */
+    Future<Response> post(URL url, String contentType, BulkBuffer body) throws IOException;
+
+    /**
+     * Release the transport. The transport must not be used after it has been closed.
+     */
+    void close();
+
+    /**
+     * An HTTP response.
+     */
+    class Response {
+
+        private final int status;
+
+        private final String reason;
+
+        private final byte[] body;
+
+        public Response(int status, String reason, byte[] body) {
+            this.status = status;
+            this.reason = reason;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
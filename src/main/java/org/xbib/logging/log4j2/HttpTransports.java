@@ -0,0 +1,86 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+
+/**
+ * Creates transports by name.
+ *
+ * Known names are "urlconnection" (the default), "nio" and "http2". Any other name
+ * is taken as the class name of an {@link HttpTransport} implementation.
+ */
+public class HttpTransports {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private static final String JDK_HTTP_TRANSPORT = "org.xbib.logging.log4j2.JdkHttpTransport";
+
+    private HttpTransports() {
+    }
+
+    public static HttpTransport create(String name) throws IOException {
+        return create(name, JDK_HTTP_TRANSPORT);
+    }
+
+    /**
+     * Create a transport, with the class of the "http2" transport given.
+     *
+     * @param name       the name or class name of the transport
+     * @param http2Class the class name of the "http2" transport
+     * @return the transport
+     * @throws IOException if the transport can not be created
+     */
+    static HttpTransport create(String name, String http2Class) throws IOException {
+        if (name == null || name.isEmpty() || "urlconnection".equals(name)) {
+            return new UrlConnectionHttpTransport();
+        }
+        if ("nio".equals(name)) {
+            return NioHttpTransport.getInstance();
+        }
+        if ("http2".equals(name)) {
+            try {
+                return newInstance(http2Class);
+            } catch (LinkageError e) {
+                // the java.net.http transport is compiled for Java 11
+                logger.warn("HTTP/2 transport requires Java 11 or later, falling back to urlconnection");
+                return new UrlConnectionHttpTransport();
+            } catch (IOException e) {
+                logger.warn("HTTP/2 transport not available, falling back to urlconnection: " + e.getMessage());
+                return new UrlConnectionHttpTransport();
+            }
+        }
+        return newInstance(name);
+    }
+
+    private static HttpTransport newInstance(String className) throws IOException {
+        try {
+            Class<?> cl = Class.forName(className, true, HttpTransports.class.getClassLoader());
+            return (HttpTransport) cl.newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("transport class not found: " + className, e);
+        } catch (InstantiationException e) {
+            throw new IOException("unable to create transport: " + className, e);
+        } catch (IllegalAccessException e) {
+            throw new IOException("unable to create transport: " + className, e);
+        } catch (ClassCastException e) {
+            throw new IOException("not a transport: " + className, e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.util.Arrays;
+
+/**
+ * A reusable buffer for a JSON document, encoded as UTF-8 while it is written.
+ *
+ * Strings are escaped as in JavaScript: quotation mark, reverse solidus, control characters
+ * and the line and paragraph separators. Unpaired surrogates are written as {@code ?}, as
+ * {@link String#getBytes(java.nio.charset.Charset)} does.
+ *
+ * The buffer is used by one thread at a time, so unlike a {@link java.io.ByteArrayOutputStream}
+ * it writes each byte without taking a lock.
+ */
+class JsonOutput {
+
+    private static final byte[] HEX = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private byte[] buf;
+
+    private int count;
+
+    JsonOutput() {
+        buf = new byte[1024];
+    }
+
+    int capacity() {
+        return buf.length;
+    }
+
+    int size() {
+        return count;
+    }
+
+    void reset() {
+        count = 0;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length << 1));
+        }
+    }
+
+    void write(int b) {
+        if (count == buf.length) {
+            ensureCapacity(count + 1);
+        }
+        buf[count++] = (byte) b;
+    }
+
+    void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Write a string that needs neither escaping nor encoding, such as a number.
+     *
+     * @param s the ASCII string
+     */
+    void writeAscii(String s) {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    void writeBytes(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    /**
+     * Write a string in quotation marks, escaped and encoded.
+     *
+     * @param s the string
+     */
+    void writeString(CharSequence s) {
+        write('"');
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c < 0x20 || c == 0x7f) {
+                    writeControl(c);
+                } else if (c == '"' || c == '\\') {
+                    write('\\');
+                    write(c);
+                } else {
+                    write(c);
+                }
+            } else if (c < 0x800) {
+                if (c <= 0x9f) {
+                    writeHex(c);
+                } else {
+                    write(0xc0 | (c >> 6));
+                    write(0x80 | (c & 0x3f));
+                }
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                write(0xf0 | (codePoint >> 18));
+                write(0x80 | ((codePoint >> 12) & 0x3f));
+                write(0x80 | ((codePoint >> 6) & 0x3f));
+                write(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                write('?');
+            } else if (c == 0x2028 || c == 0x2029) {
+                writeHex(c);
+            } else {
+                write(0xe0 | (c >> 12));
+                write(0x80 | ((c >> 6) & 0x3f));
+                write(0x80 | (c & 0x3f));
+            }
+        }
+        write('"');
+    }
+
+    private void writeControl(char c) {
+        switch (c) {
+            case '\b':
+                write('\\');
+                write('b');
+                break;
+            case '\t':
+                write('\\');
+                write('t');
+                break;
+            case '\n':
+                write('\\');
+                write('n');
+                break;
+            case '\f':
+                write('\\');
+                write('f');
+                break;
+            case '\r':
+                write('\\');
+                write('r');
+                break;
+            default:
+                writeHex(c);
+                break;
+        }
+    }
+
+    private void writeHex(char c) {
+        write('\\');
+        write('u');
+        write(HEX[(c >>> 12) & 0xf]);
+        write(HEX[(c >>> 8) & 0xf]);
+        write(HEX[(c >>> 4) & 0xf]);
+        write(HEX[c & 0xf]);
+    }
+
+    /**
+     * Return a string in quotation marks, escaped and encoded.
+     *
+     * @param s the string
+     * @return the encoded string
+     */
+    static byte[] quote(CharSequence s) {
+        JsonOutput out = new JsonOutput();
+        out.writeString(s);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,627 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+
+/**
+ * A non-blocking HTTP/1.1 transport for bulk requests.
+ *
+ * A single selector thread drives all connections to all nodes. Request bodies are written
+ * from (direct) byte buffers with gathering writes, responses are parsed incrementally as
+ * bytes arrive, and keep-alive connections are pooled per node. The shared instance is used
+ * by all clients in the JVM, so many appenders need only one I/O thread.
+ *
+ * Only plain {@code http} URLs are supported, there is no TLS. A response that arrives while the body is
+ * still being written, for example a 413 before the server closes the connection, is taken as the response.
+ */
+public class NioHttpTransport implements HttpTransport {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = 60000L;
+
+    private static NioHttpTransport instance;
+
+    private final Selector selector;
+
+    private final Queue<Exchange> pending = new ConcurrentLinkedQueue<Exchange>();
+
+    private final Map<String, Deque<SocketChannel>> idle = new HashMap<String, Deque<SocketChannel>>();
+
+    private final Set<Exchange> active = new HashSet<Exchange>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    private final long timeoutMillis;
+
+    private volatile boolean closed;
+
+    private int refs;
+
+    public NioHttpTransport() throws IOException {
+        this(DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public NioHttpTransport(long timeoutMillis) throws IOException {
+        this.timeoutMillis = timeoutMillis;
+        this.refs = 1;
+        this.selector = Selector.open();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "elasticsearch-http-nio");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Return the shared transport. Every caller must close the shared transport when done,
+     * the selector thread stops when the last user has closed it.
+     *
+     * @return the shared transport
+     * @throws IOException if the selector can not be opened
+     */
+    public static NioHttpTransport getInstance() throws IOException {
+        synchronized (NioHttpTransport.class) {
+            if (instance != null && instance.retain()) {
+                return instance;
+            }
+            instance = new NioHttpTransport(DEFAULT_TIMEOUT_MILLIS);
+            return instance;
+        }
+    }
+
+    private synchronized boolean retain() {
+        if (closed) {
+            return false;
+        }
+        refs++;
+        return true;
+    }
+
+    @Override
+    public Future<Response> post(URL url, String contentType, BulkBuffer body) {
+        return post(url, contentType, body.toDirectByteBuffers());
+    }
+
+    /**
+     * Send a POST request. The body buffers must not be modified until the returned future is done.
+     *
+     * @param url         the URL
+     * @param contentType the content type of the body
+     * @param body        the body buffers, written with a single gathering write where possible
+     * @return a future for the response
+     * @throws IllegalArgumentException if the URL is not an http URL
+     */
+    public Future<Response> post(URL url, String contentType, ByteBuffer... body) {
+        if (!"http".equals(url.getProtocol())) {
+            // never send a request that was meant to be encrypted in plain text
+            throw new IllegalArgumentException("NIO transport supports http URLs only: " + url);
+        }
+        long length = 0L;
+        for (ByteBuffer b : body) {
+            length += b.remaining();
+        }
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        String header = "POST " + path + " HTTP/1.1\r\n"
+                + "Host: " + url.getHost() + ":" + port + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Accept: application/json\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "Connection: keep-alive\r\n\r\n";
+        ByteBuffer[] buffers = new ByteBuffer[body.length + 1];
+        buffers[0] = ByteBuffer.wrap(header.getBytes(ISO_8859_1));
+        System.arraycopy(body, 0, buffers, 1, body.length);
+        // resolve the address in the caller thread, never block the selector thread on DNS
+        Exchange exchange = new Exchange(new InetSocketAddress(url.getHost(), port), buffers);
+        if (closed) {
+            exchange.fail(new ClosedChannelException());
+            return exchange;
+        }
+        pending.add(exchange);
+        selector.wakeup();
+        return exchange;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (--refs <= 0) {
+            closed = true;
+            selector.wakeup();
+        }
+    }
+
+    private void loop() {
+        try {
+            while (!closed) {
+                selector.select(1000L);
+                Exchange exchange;
+                while ((exchange = pending.poll()) != null) {
+                    start(exchange);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handle(key);
+                }
+                expire();
+            }
+        } catch (Throwable t) {
+            logger.error("NIO transport failed: " + t.getMessage(), t);
+        } finally {
+            closed = true;
+            IOException e = new ClosedChannelException();
+            Exchange exchange;
+            while ((exchange = pending.poll()) != null) {
+                exchange.fail(e);
+            }
+            for (Exchange a : active) {
+                a.fail(e);
+            }
+            for (SelectionKey key : selector.keys()) {
+                close(key.channel());
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    private void start(Exchange exchange) {
+        exchange.deadline = System.currentTimeMillis() + timeoutMillis;
+        active.add(exchange);
+        try {
+            SocketChannel channel = pollIdle(exchange.key);
+            if (channel != null) {
+                exchange.channel = channel;
+                channel.keyFor(selector).attach(exchange);
+                channel.keyFor(selector).interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+                return;
+            }
+            channel = SocketChannel.open();
+            exchange.channel = channel;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (channel.connect(exchange.address)) {
+                channel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ, exchange);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, exchange);
+            }
+        } catch (IOException e) {
+            finish(exchange, null, e);
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Exchange exchange = (Exchange) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (exchange == null) {
+            // an idle keep-alive connection became readable, the server has closed it
+            removeIdle(channel);
+            close(channel);
+            return;
+        }
+        try {
+            if (!key.isValid()) {
+                throw new ClosedChannelException();
+            }
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                // read while writing, the server may answer before it has read the whole body
+                key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+                return;
+            }
+            if (key.isReadable() && read(exchange, channel)) {
+                return;
+            }
+            if (key.isWritable() && !exchange.isWritten()) {
+                try {
+                    channel.write(exchange.buffers);
+                } catch (IOException e) {
+                    // the server may have answered and closed the connection, for example with 413
+                    if (read(exchange, channel)) {
+                        return;
+                    }
+                    throw e;
+                }
+                if (exchange.isWritten()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        } catch (IOException e) {
+            finish(exchange, null, e);
+        } catch (RuntimeException e) {
+            // a misbehaving peer must only cost its own connection, never the shared selector thread
+            finish(exchange, null, new IOException("failed to handle response from " + exchange.address, e));
+        }
+    }
+
+    /**
+     * Read the response of an exchange as far as it has arrived.
+     *
+     * @return true if the exchange is finished
+     * @throws IOException if the connection failed or was closed before the response was complete
+     */
+    private boolean read(Exchange exchange, SocketChannel channel) throws IOException {
+        ((Buffer) readBuffer).clear();
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            if (!exchange.parser.endOfStream()) {
+                throw new EOFException("connection closed by " + exchange.address);
+            }
+            finish(exchange, exchange.parser.response(), null);
+            return true;
+        }
+        ((Buffer) readBuffer).flip();
+        if (exchange.parser.parse(readBuffer)) {
+            finish(exchange, exchange.parser.response(), null);
+            return true;
+        }
+        return false;
+    }
+
+    private void finish(Exchange exchange, Response response, IOException e) {
+        active.remove(exchange);
+        SocketChannel channel = exchange.channel;
+        if (channel != null) {
+            // a connection that answered before the whole body was written is in an unknown state
+            if (e == null && exchange.parser.keepAlive() && exchange.isWritten() && channel.isOpen()) {
+                SelectionKey key = channel.keyFor(selector);
+                key.attach(null);
+                key.interestOps(SelectionKey.OP_READ);
+                Deque<SocketChannel> channels = idle.get(exchange.key);
+                if (channels == null) {
+                    channels = new ArrayDeque<SocketChannel>();
+                    idle.put(exchange.key, channels);
+                }
+                channels.push(channel);
+            } else {
+                close(channel);
+            }
+        }
+        if (e != null) {
+            exchange.fail(e);
+        } else {
+            exchange.complete(response);
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Exchange> it = active.iterator();
+        while (it.hasNext()) {
+            Exchange exchange = it.next();
+            if (now > exchange.deadline) {
+                it.remove();
+                close(exchange.channel);
+                exchange.fail(new SocketTimeoutException("no response from " + exchange.address
+                        + " within " + timeoutMillis + " ms"));
+            }
+        }
+    }
+
+    private SocketChannel pollIdle(String key) {
+        Deque<SocketChannel> channels = idle.get(key);
+        if (channels != null) {
+            SocketChannel channel;
+            while ((channel = channels.poll()) != null) {
+                if (channel.isOpen()) {
+                    return channel;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void removeIdle(SocketChannel channel) {
+        for (Deque<SocketChannel> channels : idle.values()) {
+            channels.remove(channel);
+        }
+    }
+
+    private static void close(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static class Exchange extends ResponseFuture {
+
+        private final InetSocketAddress address;
+
+        private final String key;
+
+        private final ByteBuffer[] buffers;
+
+        private final ResponseParser parser = new ResponseParser();
+
+        private SocketChannel channel;
+
+        private long deadline;
+
+        Exchange(InetSocketAddress address, ByteBuffer[] buffers) {
+            this.address = address;
+            this.key = address.getHostString() + ":" + address.getPort();
+            this.buffers = buffers;
+        }
+
+        boolean isWritten() {
+            // the last buffer may be empty from the start
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Incremental HTTP/1.1 response parser. Bytes are fed as they arrive from the socket.
+     */
+    static class ResponseParser {
+
+        private static final int STATUS_LINE = 0;
+
+        private static final int HEADERS = 1;
+
+        private static final int BODY = 2;
+
+        private static final int CHUNK_SIZE = 3;
+
+        private static final int CHUNK_DATA = 4;
+
+        private static final int CHUNK_END = 5;
+
+        private static final int TRAILERS = 6;
+
+        private static final int BODY_UNTIL_CLOSE = 7;
+
+        private static final int DONE = 8;
+
+        private final StringBuilder line = new StringBuilder();
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        private int state = STATUS_LINE;
+
+        private int status;
+
+        private String reason;
+
+        private long remaining = -1L;
+
+        private boolean chunked;
+
+        private boolean keepAlive = true;
+
+        /**
+         * Feed bytes to the parser.
+         *
+         * @param buffer the bytes
+         * @return true if the response is complete
+         * @throws IOException if the response is malformed
+         */
+        boolean parse(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining() && state != DONE) {
+                switch (state) {
+                    case STATUS_LINE:
+                        if (readLine(buffer)) {
+                            parseStatusLine(line.toString());
+                            line.setLength(0);
+                            state = HEADERS;
+                        }
+                        break;
+                    case HEADERS:
+                        if (readLine(buffer)) {
+                            if (line.length() == 0) {
+                                endOfHeaders();
+                            } else {
+                                parseHeader(line.toString());
+                                line.setLength(0);
+                            }
+                        }
+                        break;
+                    case BODY:
+                    case CHUNK_DATA:
+                        int n = (int) Math.min(remaining, buffer.remaining());
+                        copy(buffer, n);
+                        remaining -= n;
+                        if (remaining == 0) {
+                            state = state == BODY ? DONE : CHUNK_END;
+                        }
+                        break;
+                    case CHUNK_SIZE:
+                        if (readLine(buffer)) {
+                            String s = line.toString();
+                            int pos = s.indexOf(';');
+                            try {
+                                remaining = Long.parseLong((pos < 0 ? s : s.substring(0, pos)).trim(), 16);
+                            } catch (NumberFormatException e) {
+                                throw new IOException("invalid chunk size: " + s);
+                            }
+                            if (remaining < 0) {
+                                throw new IOException("invalid chunk size: " + s);
+                            }
+                            line.setLength(0);
+                            state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+                        }
+                        break;
+                    case CHUNK_END:
+                        if (readLine(buffer)) {
+                            line.setLength(0);
+                            state = CHUNK_SIZE;
+                        }
+                        break;
+                    case TRAILERS:
+                        if (readLine(buffer)) {
+                            if (line.length() == 0) {
+                                state = DONE;
+                            }
+                            line.setLength(0);
+                        }
+                        break;
+                    case BODY_UNTIL_CLOSE:
+                        copy(buffer, buffer.remaining());
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return state == DONE;
+        }
+
+        boolean endOfStream() {
+            if (state == BODY_UNTIL_CLOSE) {
+                state = DONE;
+                keepAlive = false;
+            }
+            return state == DONE;
+        }
+
+        boolean keepAlive() {
+            return keepAlive && state == DONE;
+        }
+
+        Response response() {
+            return new Response(status, reason, body.toByteArray());
+        }
+
+        private boolean readLine(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                char ch = (char) (buffer.get() & 0xff);
+                if (ch == '\n') {
+                    int len = line.length();
+                    if (len > 0 && line.charAt(len - 1) == '\r') {
+                        line.setLength(len - 1);
+                    }
+                    return true;
+                }
+                if (line.length() > 8192) {
+                    throw new IOException("HTTP response line too long");
+                }
+                line.append(ch);
+            }
+            return false;
+        }
+
+        private void copy(ByteBuffer buffer, int n) {
+            if (buffer.hasArray()) {
+                body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+                ((Buffer) buffer).position(buffer.position() + n);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    body.write(buffer.get());
+                }
+            }
+        }
+
+        private void parseStatusLine(String s) throws IOException {
+            // HTTP/1.1 200 OK
+            String[] parts = s.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("invalid HTTP status line: " + s);
+            }
+            try {
+                status = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid HTTP status line: " + s);
+            }
+            reason = parts.length > 2 ? parts[2] : "";
+            keepAlive = !"HTTP/1.0".equals(parts[0]);
+        }
+
+        private void parseHeader(String s) throws IOException {
+            int pos = s.indexOf(':');
+            if (pos < 0) {
+                return;
+            }
+            String name = s.substring(0, pos).trim();
+            String value = s.substring(pos + 1).trim();
+            if ("content-length".equalsIgnoreCase(name)) {
+                try {
+                    remaining = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad Content-Length: " + value);
+                }
+                if (remaining < 0) {
+                    throw new IOException("bad Content-Length: " + value);
+                }
+            } else if ("transfer-encoding".equalsIgnoreCase(name)) {
+                chunked = value.toLowerCase().contains("chunked");
+            } else if ("connection".equalsIgnoreCase(name)) {
+                if ("close".equalsIgnoreCase(value)) {
+                    keepAlive = false;
+                } else if ("keep-alive".equalsIgnoreCase(value)) {
+                    keepAlive = true;
+                }
+            }
+        }
+
+        private void endOfHeaders() {
+            line.setLength(0);
+            if (status == 204 || status == 304 || (status >= 100 && status < 200)) {
+                state = status < 200 ? STATUS_LINE : DONE;
+            } else if (chunked) {
+                state = CHUNK_SIZE;
+            } else if (remaining >= 0) {
+                state = remaining == 0 ? DONE : BODY;
+            } else {
+                state = BODY_UNTIL_CLOSE;
+                keepAlive = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A direct memory arena for queued bulk actions, made of fixed-size chunks.
+ *
+ * Actions are appended to the current chunk, so the actions of a batch usually lie next to each
+ * other and can be written to the socket in a few large slices. A chunk is recycled when it is no
+ * longer current and all actions in it have been released, that is, when the bulk requests that
+ * carried them have been acknowledged or the actions have been dropped. The number of chunks is
+ * capped. An action larger than a chunk gets a direct buffer of its own, which counts against the
+ * cap as the number of chunks it would fill.
+ */
+class OffHeapArena {
+
+    private final int chunkSize;
+
+    private final int maxChunks;
+
+    private final Queue<Chunk> free = new ConcurrentLinkedQueue<Chunk>();
+
+    private final AtomicInteger chunks = new AtomicInteger();
+
+    private Chunk current;
+
+    /**
+     * @param chunkSize the size of a chunk in bytes
+     * @param maxBytes  the maximum size of the arena in bytes
+     */
+    OffHeapArena(int chunkSize, long maxBytes) {
+        this.chunkSize = chunkSize;
+        this.maxChunks = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, maxBytes / chunkSize));
+    }
+
+    /**
+     * Copy an action into the arena.
+     *
+     * @param index     the index of the action
+     * @param metadata  the encoded action metadata
+     * @param source    the encoded document source
+     * @param sheddable true if the action may be dropped when memory runs short
+     * @return the action, or null if the arena is full
+     */
+    synchronized BulkAction allocate(String index, byte[] metadata, byte[] source, boolean sheddable) {
+        int length = metadata.length + source.length;
+        Chunk chunk;
+        if (length > chunkSize) {
+            int n = (length + chunkSize - 1) / chunkSize;
+            if (!reserve(n)) {
+                return null;
+            }
+            chunk = new Chunk(ByteBuffer.allocateDirect(length), n);
+        } else {
+            if (current == null || current.buffer.remaining() < length) {
+                Chunk next = free.poll();
+                if (next == null) {
+                    if (!reserve(1)) {
+                        return null;
+                    }
+                    next = new Chunk(ByteBuffer.allocateDirect(chunkSize), 1);
+                }
+                if (current != null) {
+                    release(current);
+                }
+                // the current chunk holds a reference of its own until it is replaced
+                next.refs.incrementAndGet();
+                current = next;
+            }
+            chunk = current;
+        }
+        int offset = chunk.buffer.position();
+        chunk.buffer.put(metadata).put(source);
+        chunk.refs.incrementAndGet();
+        return new BulkAction(index, this, chunk, offset, length, sheddable);
+    }
+
+    /**
+     * Release an action. The chunk of the action is recycled when all its actions are released.
+     *
+     * @param chunk the chunk of the action
+     */
+    void release(Chunk chunk) {
+        if (chunk.refs.decrementAndGet() == 0) {
+            if (chunk.count > 1) {
+                // a buffer of its own, left to the garbage collector
+                chunks.addAndGet(-chunk.count);
+            } else {
+                ((Buffer) chunk.buffer).clear();
+                free.add(chunk);
+            }
+        }
+    }
+
+    /**
+     * The number of bytes of direct memory held by the arena.
+     *
+     * @return the number of bytes
+     */
+    long capacity() {
+        return (long) chunks.get() * chunkSize;
+    }
+
+    private boolean reserve(int n) {
+        int c;
+        do {
+            c = chunks.get();
+            if (c + n > maxChunks) {
+                return false;
+            }
+        } while (!chunks.compareAndSet(c, c + n));
+        return true;
+    }
+
+    /**
+     * A chunk of direct memory. Actions are appended at the position of the buffer.
+     */
+    static class Chunk {
+
+        final ByteBuffer buffer;
+
+        /**
+         * The number of chunks this buffer counts for.
+         */
+        final int count;
+
+        final AtomicInteger refs = new AtomicInteger();
+
+        Chunk(ByteBuffer buffer, int count) {
+            this.buffer = buffer;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ships the bulk requests that the processes on a host write to their rings, see {@link RingTransport}.
+ *
+ * The shipper reads the records of all rings in a directory and sends them in large bulk requests.
+ * Consecutive records with the same bulk URL path and content type are joined, up to the maximum
+ * size of a bulk request. Each bulk request starts with the next ring in turn, so all rings get their
+ * share even if one of them alone could fill every bulk request. The bodies are staged as slices of the mapped rings, so with the {@code nio}
+ * transport they are written to the socket without copying. The space of the records is freed after the
+ * cluster answered, so a shipper that is stopped or killed sends the unanswered records again when it
+ * is started again. Bulk requests that are rejected with 429 or 503, or that fail with an I/O error,
+ * are sent again with exponential backoff until they succeed; meanwhile the rings fill up, and the
+ * clients keep their events as they do when the cluster rejects them.
+ *
+ * Rings of processes that closed them, or that exited, are deleted when they are empty. Only one
+ * shipper runs per directory. Throughput is reported every ten seconds.
+ *
+ * <pre>
+ * java org.xbib.logging.log4j2.RingShipper [options] directory
+ *   --url url            the cluster URL, against which the paths of the bulk requests are resolved
+ *                        (default: http://localhost:9200/)
+ *   --transport name     the HTTP transport (default: nio)
+ *   --maxBytes n         the maximum size of a bulk request in bytes (default: 5242880)
+ *   --pollMillis n       the wait when all rings are empty (default: 100)
+ * </pre>
+ */
+public class RingShipper implements Runnable {
+
+    private static final long SCAN_INTERVAL_MILLIS = 1000L;
+
+    private static final long REPORT_INTERVAL_MILLIS = 10000L;
+
+    private final File directory;
+
+    private final URL url;
+
+    private final HttpTransport transport;
+
+    private final int maxBytes;
+
+    private final long pollMillis;
+
+    private final Map<File, ShippingRing> rings = new LinkedHashMap<File, ShippingRing>();
+
+    private final AtomicLong docs = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile boolean stopped;
+
+    private long lastScan;
+
+    /**
+     * The ring that comes first in the next bulk request, so a busy ring does not starve the others.
+     */
+    private int first;
+
+    private long t0;
+
+    public RingShipper(File directory, String url, String transport, int maxBytes, long pollMillis)
+            throws IOException {
+        this.directory = directory;
+        this.url = new URL(url);
+        this.transport = HttpTransports.create(transport);
+        this.maxBytes = maxBytes;
+        this.pollMillis = pollMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:9200/";
+        String transport = "nio";
+        int maxBytes = 5 * 1024 * 1024;
+        long pollMillis = 100L;
+        File directory = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    if (directory != null) {
+                        throw new IllegalArgumentException("more than one directory");
+                    }
+                    directory = new File(arg);
+                } else if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value for " + arg);
+                } else if ("--url".equals(arg)) {
+                    url = args[++i];
+                } else if ("--transport".equals(arg)) {
+                    transport = args[++i];
+                } else if ("--maxBytes".equals(arg)) {
+                    maxBytes = Math.max(1024, Integer.parseInt(args[++i]));
+                } else if ("--pollMillis".equals(arg)) {
+                    pollMillis = Math.max(1L, Long.parseLong(args[++i]));
+                } else {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+            if (directory == null) {
+                throw new IllegalArgumentException("no directory");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: java " + RingShipper.class.getName()
+                    + " [--url url] [--transport name] [--maxBytes n] [--pollMillis n] directory");
+            System.exit(2);
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("unable to create directory " + directory);
+            System.exit(1);
+            return;
+        }
+        final RingShipper shipper = new RingShipper(directory, url, transport, maxBytes, pollMillis);
+        RandomAccessFile lockFile = new RandomAccessFile(new File(directory, "shipper.lock"), "rw");
+        FileLock lock = lockFile.getChannel().tryLock();
+        if (lock == null) {
+            System.err.println("another shipper is running for " + directory);
+            System.exit(1);
+            return;
+        }
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                shipper.stop();
+                try {
+                    main.join(30000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        shipper.run();
+        lock.release();
+        lockFile.close();
+    }
+
+    /**
+     * Ship until stopped.
+     */
+    @Override
+    public void run() {
+        t0 = System.nanoTime();
+        long lastReport = System.currentTimeMillis();
+        try {
+            while (!stopped) {
+                long now = System.currentTimeMillis();
+                if (now - lastScan >= SCAN_INTERVAL_MILLIS) {
+                    scan();
+                    lastScan = now;
+                }
+                if (now - lastReport >= REPORT_INTERVAL_MILLIS) {
+                    report();
+                    lastReport = now;
+                }
+                if (!ship()) {
+                    Thread.sleep(pollMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (ShippingRing ring : rings.values()) {
+                try {
+                    ring.close();
+                } catch (IOException e) {
+                    System.err.println("unable to close ring " + ring.getFile() + ": " + e.getMessage());
+                }
+            }
+            rings.clear();
+            transport.close();
+            report();
+        }
+    }
+
+    /**
+     * Stop shipping after the current bulk request.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    long getDocs() {
+        return docs.get();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Open new rings, and delete the rings of processes that are gone when they are empty.
+     */
+    void scan() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(ShippingRing.SUFFIX);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                if (!rings.containsKey(file)) {
+                    try {
+                        rings.put(file, ShippingRing.open(file));
+                    } catch (IOException e) {
+                        System.err.println("unable to open ring " + file + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        Iterator<ShippingRing> it = rings.values().iterator();
+        while (it.hasNext()) {
+            ShippingRing ring = it.next();
+            if (!ring.getFile().exists()) {
+                it.remove();
+                close(ring);
+            } else if (ring.isAbandoned() && ring.isEmpty()) {
+                it.remove();
+                close(ring);
+                if (!ring.getFile().delete()) {
+                    System.err.println("unable to delete ring " + ring.getFile());
+                }
+            }
+        }
+    }
+
+    /**
+     * Send one bulk request with the next records of the rings.
+     *
+     * @return true if a bulk request was sent, false if the rings are empty
+     * @throws InterruptedException if interrupted while waiting to send again
+     */
+    boolean ship() throws InterruptedException {
+        List<ShippingRing> shipped = new ArrayList<ShippingRing>();
+        List<Long> positions = new ArrayList<Long>();
+        List<ShippingRing.Record> records = new ArrayList<ShippingRing.Record>();
+        long size = 0L;
+        String path = null;
+        String contentType = null;
+        List<ShippingRing> order = new ArrayList<ShippingRing>(rings.values());
+        if (!order.isEmpty()) {
+            first = (first + 1) % order.size();
+        }
+        for (int i = 0; i < order.size(); i++) {
+            ShippingRing ring = order.get((first + i) % order.size());
+            if (size >= maxBytes) {
+                break;
+            }
+            long position = ring.readPosition();
+            long start = position;
+            try {
+                ShippingRing.Record record;
+                while ((record = ring.read(position)) != null) {
+                    if (path == null) {
+                        path = record.path;
+                        contentType = record.contentType;
+                    } else if (!path.equals(record.path) || !contentType.equals(record.contentType)
+                            || size + record.body.remaining() > maxBytes) {
+                        break;
+                    }
+                    records.add(record);
+                    size += record.body.remaining();
+                    position = record.next;
+                }
+            } catch (IOException e) {
+                if (position == start) {
+                    // a corrupt record can not be shipped, skip it up to the next record
+                    long next = ring.skip(position);
+                    System.err.println(e.getMessage() + ", skipping " + (next - position) + " bytes");
+                    ring.commit(next);
+                    continue;
+                }
+                // ship the records before the corrupt one first
+            }
+            if (position > start) {
+                shipped.add(ring);
+                positions.add(position);
+            }
+        }
+        if (records.isEmpty()) {
+            return false;
+        }
+        URL bulkUrl;
+        try {
+            bulkUrl = new URL(url, path);
+        } catch (IOException e) {
+            System.err.println("invalid bulk URL path " + path + ": " + e.getMessage());
+            bulkUrl = null;
+        }
+        if (bulkUrl != null) {
+            send(bulkUrl, contentType, records);
+        }
+        for (int i = 0; i < shipped.size(); i++) {
+            shipped.get(i).commit(positions.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * Send records in one bulk request, or in halves if the cluster refuses a request that large.
+     */
+    private void send(URL bulkUrl, String contentType, List<ShippingRing.Record> records)
+            throws InterruptedException {
+        BulkBuffer buffer = new BulkBuffer();
+        int count = 0;
+        for (ShippingRing.Record record : records) {
+            buffer.stage(record.body);
+            count += record.actions;
+        }
+        long backoffMillis = 100L;
+        String error;
+        while (true) {
+            try {
+                HttpTransport.Response response = transport.post(bulkUrl, contentType, buffer).get();
+                int status = response.getStatus();
+                if (status == HttpURLConnection.HTTP_OK) {
+                    rejected.addAndGet(ElasticsearchHttpClient.countRejectedItems(response.getBody()));
+                    docs.addAndGet(count);
+                    bytes.addAndGet(buffer.size());
+                    requests.incrementAndGet();
+                    return;
+                }
+                error = status + " " + response.getReason();
+                if (status == 413 && records.size() > 1) {
+                    int half = records.size() / 2;
+                    send(bulkUrl, contentType, records.subList(0, half));
+                    send(bulkUrl, contentType, records.subList(half, records.size()));
+                    return;
+                }
+                if (status != 429 && status != HttpURLConnection.HTTP_UNAVAILABLE) {
+                    break;
+                }
+            } catch (ExecutionException e) {
+                error = String.valueOf(e.getCause());
+            } catch (IOException e) {
+                error = e.toString();
+            }
+            if (stopped) {
+                // the records are not committed and are sent again by the next shipper
+                throw new InterruptedException("stopped while sending again: " + error);
+            }
+            System.err.println("bulk request to " + bulkUrl.getAuthority() + " failed, sending again in "
+                    + backoffMillis + " ms: " + error);
+            Thread.sleep(backoffMillis);
+            backoffMillis = Math.min(30000L, 2 * backoffMillis);
+        }
+        failed.addAndGet(count);
+        System.err.println("bulk request to " + bulkUrl + " failed, " + count + " docs dropped: " + error);
+    }
+
+    private static void close(ShippingRing ring) {
+        try {
+            ring.close();
+        } catch (IOException e) {
+            System.err.println("unable to close ring " + ring.getFile() + ": " + e.getMessage());
+        }
+    }
+
+    private void report() {
+        double secs = Math.max(0.001, (System.nanoTime() - t0) / 1e9);
+        double mb = bytes.get() / (1024.0 * 1024.0);
+        System.out.println(String.format(Locale.ROOT,
+                "%d rings, %d docs, %.1f MB in %d bulk requests in %.1f s: %.0f docs/s, %.1f MB/s, "
+                        + "%d docs failed, %d items rejected",
+                rings.size(), docs.get(), mb, requests.get(), secs, docs.get() / secs, mb / secs,
+                failed.get(), rejected.get()));
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport that hands bulk requests to a {@link RingShipper} on the same host. Each transport
+ * writes a {@link ShippingRing} of its own in a directory that all processes on the host share, so
+ * a bulk request is copied to shared memory, without locks between processes and without a connection
+ * to the cluster. The shipper sends the bulk requests of all rings in large bulk requests.
+ *
+ * The ring answers for the cluster: a bulk request that does not fit in the free space of the ring
+ * answers 429, so the client sends it again later, and a bulk request larger than half the ring
+ * answers 413, so the client splits it. Items rejected by the cluster are reported by the shipper.
+ *
+ * A bulk request in the ring is answered with 200, so delivery futures and barriers of the client
+ * complete as soon as their events are in the ring, before the cluster has acknowledged them.
+ *
+ * This transport is selected with the {@code ring} option of the client, not by name.
+ */
+public class RingTransport implements HttpTransport {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private static final byte[] OK = "{\"took\":0,\"errors\":false,\"items\":[]}".getBytes();
+
+    private final ShippingRing ring;
+
+    public RingTransport(File directory, int capacity) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create ring directory " + directory);
+        }
+        String name = processId() + "-" + Long.toString(System.currentTimeMillis(), 36)
+                + "-" + counter.incrementAndGet();
+        this.ring = ShippingRing.create(new File(directory, name + ShippingRing.SUFFIX), capacity);
+    }
+
+    @Override
+    public Future<Response> post(URL url, String contentType, BulkBuffer body) throws IOException {
+        ResponseFuture future = new ResponseFuture();
+        String path = url.getFile();
+        if (ShippingRing.recordSize(path, contentType, body.size()) > ring.maxRecordSize()) {
+            future.complete(new Response(413, "Request Entity Too Large", new byte[0]));
+        } else if (!ring.offer(path, contentType, body)) {
+            future.complete(new Response(429, "Ring Full", new byte[0]));
+        } else {
+            future.complete(new Response(200, "OK", OK));
+        }
+        return future;
+    }
+
+    @Override
+    public void close() {
+        try {
+            ring.close();
+        } catch (IOException e) {
+            logger.warn("unable to close ring " + ring.getFile() + ": " + e.getMessage());
+        }
+    }
+
+    private static String processId() {
+        // "pid@host" on the JDKs we know
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int pos = name.indexOf('@');
+        return pos > 0 ? name.substring(0, pos) : Integer.toHexString(name.hashCode());
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counts events by logger name, level and exception class, and turns the counts of an
+ * interval into rollup documents, one per combination that occurred in the interval.
+ *
+ * Rollup documents have the fields of events that dashboards group by, {@code date},
+ * {@code loggerName}, {@code level} and {@code thrown.type}, and the number of events in
+ * {@code count}. Past the maximum number of combinations, events are counted with the
+ * logger name {@value #OTHER}.
+ */
+class RollupAggregator {
+
+    static final String OTHER = "_other";
+
+    private final ConcurrentMap<Key, StripedCounter> counters = new ConcurrentHashMap<Key, StripedCounter>();
+
+    private final long intervalMillis;
+
+    private final int maxKeys;
+
+    private long intervalStart;
+
+    /**
+     * The index for rollup documents if none is configured: the index of the events with the suffix
+     * {@code -rollup}, so the counts do not mix with the events. A date pattern gets the suffix as a literal.
+     *
+     * @param index the index of the events, which may be a date pattern
+     * @return the rollup index
+     */
+    static String defaultIndex(String index) {
+        return index.indexOf('\'') < 0 ? index + "-rollup" : index + "'-rollup'";
+    }
+
+    /**
+     * @param intervalMillis the length of an interval
+     * @param maxKeys        the maximum number of combinations of logger name, level and exception class
+     */
+    RollupAggregator(long intervalMillis, int maxKeys) {
+        this.intervalMillis = intervalMillis;
+        this.maxKeys = maxKeys;
+        this.intervalStart = System.currentTimeMillis();
+    }
+
+    void count(String loggerName, String level, String thrownType) {
+        Key key = new Key(loggerName, level, thrownType);
+        StripedCounter counter = counters.get(key);
+        if (counter == null) {
+            if (counters.size() >= maxKeys) {
+                key = new Key(OTHER, level, null);
+                counter = counters.get(key);
+            }
+            if (counter == null) {
+                counter = new StripedCounter();
+                StripedCounter existing = counters.putIfAbsent(key, counter);
+                if (existing != null) {
+                    counter = existing;
+                }
+            }
+        }
+        counter.increment();
+    }
+
+    /**
+     * Take the counts of the interval that ends now and start the next interval.
+     *
+     * @param now the end of the interval
+     * @return the rollup documents
+     */
+    synchronized List<Map<String, Object>> rollup(long now) {
+        List<Map<String, Object>> docs = new ArrayList<Map<String, Object>>();
+        for (Map.Entry<Key, StripedCounter> me : counters.entrySet()) {
+            long n = me.getValue().sumThenReset();
+            if (n == 0L) {
+                continue;
+            }
+            Key key = me.getKey();
+            Map<String, Object> doc = new LinkedHashMap<String, Object>();
+            doc.put("date", new Date(intervalStart));
+            doc.put("millis", intervalStart);
+            doc.put("level", key.level);
+            doc.put("loggerName", key.loggerName);
+            if (key.thrownType != null) {
+                Map<String, Object> thrown = new LinkedHashMap<String, Object>();
+                thrown.put("type", key.thrownType);
+                doc.put("thrown", thrown);
+            }
+            doc.put("count", n);
+            doc.put("intervalMillis", now - intervalStart);
+            doc.put("rollup", true);
+            docs.add(doc);
+        }
+        intervalStart = now;
+        return docs;
+    }
+
+    long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    private static class Key {
+
+        private final String loggerName;
+
+        private final String level;
+
+        private final String thrownType;
+
+        private final int hash;
+
+        Key(String loggerName, String level, String thrownType) {
+            this.loggerName = loggerName;
+            this.level = level;
+            this.thrownType = thrownType;
+            int h = loggerName != null ? loggerName.hashCode() : 0;
+            h = 31 * h + (level != null ? level.hashCode() : 0);
+            this.hash = 31 * h + (thrownType != null ? thrownType.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && equals(loggerName, other.loggerName) && equals(level, other.level)
+                    && equals(thrownType, other.thrownType);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
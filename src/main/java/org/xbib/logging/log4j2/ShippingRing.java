@@ -0,0 +1,472 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+
+/**
+ * A ring of bulk requests in a memory-mapped file, written by one process and read by a
+ * {@link RingShipper} in another process on the same host.
+ *
+ * The file starts with a header that holds the capacity, the write position of the producer and
+ * the read position of the shipper, each on a cache line of its own. Positions grow without wrapping,
+ * the offset of a position is the position modulo the capacity. A record holds its length, a checksum,
+ * the number of actions, the path of the bulk URL, the content type and the body, and starts on an 8-byte
+ * boundary. A record that does not fit before the end of the ring is written at the start, after a padding
+ * mark.
+ *
+ * The producer publishes a record by writing the write position after the record, the shipper frees
+ * the space of records by writing the read position after they were sent. Positions are aligned longs,
+ * which are written with a single store. The stores to the mapped file are plain stores, and a monitor
+ * only orders memory within one process, so the shipper may see the new write position before the bytes
+ * of the record. The checksum covers the record and its position, which tells a record that is not
+ * visible yet, or the record of a previous lap at the same offset, from a complete one. The shipper
+ * reads such a record again later, and takes it as corrupt only if it stays invalid. In the other
+ * direction, the shipper writes the read position only after the cluster answered, when the records
+ * were read onto the wire long before, so the producer never overwrites a record that is still read.
+ *
+ * The producer holds a lock on the file while it is open, so the shipper can tell that a ring was
+ * left behind by a process that exited without closing it.
+ */
+class ShippingRing implements Closeable {
+
+    static final String SUFFIX = ".ring";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x4c344a52;
+
+    private static final int VERSION = 2;
+
+    private static final int MAGIC_OFFSET = 0;
+
+    private static final int VERSION_OFFSET = 4;
+
+    private static final int CAPACITY_OFFSET = 8;
+
+    private static final int WRITE_POSITION = 64;
+
+    private static final int READ_POSITION = 128;
+
+    private static final int CLOSED = 192;
+
+    private static final int HEADER = 256;
+
+    private static final int PADDING = -1;
+
+    /**
+     * How long a published record may fail its checksum before it is taken as corrupt.
+     */
+    static final long INVALID_GRACE_MILLIS = 1000L;
+
+    private final File file;
+
+    private final RandomAccessFile raf;
+
+    private final MappedByteBuffer map;
+
+    private final ByteBuffer data;
+
+    private final int capacity;
+
+    private final boolean producer;
+
+    private FileLock lock;
+
+    private long writePosition;
+
+    private long invalidPosition = -1L;
+
+    private long invalidSince;
+
+    private ShippingRing(File file, RandomAccessFile raf, MappedByteBuffer map, int capacity, boolean producer) {
+        this.file = file;
+        this.raf = raf;
+        this.map = map;
+        this.capacity = capacity;
+        this.producer = producer;
+        ((Buffer) map).position(HEADER);
+        this.data = map.slice();
+        ((Buffer) map).position(0);
+    }
+
+    /**
+     * Create a ring for a producer. The file is written under a temporary name and renamed when
+     * the header is complete, so the shipper never sees a ring that is not ready.
+     *
+     * @param file     the ring file
+     * @param capacity the capacity in bytes, rounded up to a multiple of 8
+     * @return the ring
+     * @throws IOException if the file can not be created
+     */
+    static ShippingRing create(File file, int capacity) throws IOException {
+        capacity = (Math.max(capacity, 4096) + 7) & ~7;
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(HEADER + (long) capacity);
+            FileLock lock = raf.getChannel().lock(0L, HEADER, false);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, HEADER + (long) capacity);
+            map.putLong(WRITE_POSITION, 0L);
+            map.putLong(READ_POSITION, 0L);
+            map.putInt(CLOSED, 0);
+            map.putInt(CAPACITY_OFFSET, capacity);
+            map.putInt(VERSION_OFFSET, VERSION);
+            map.putInt(MAGIC_OFFSET, MAGIC);
+            if (!tmp.renameTo(file)) {
+                throw new IOException("unable to rename " + tmp + " to " + file);
+            }
+            ShippingRing ring = new ShippingRing(file, raf, map, capacity, true);
+            ring.lock = lock;
+            return ring;
+        } catch (IOException e) {
+            raf.close();
+            tmp.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Open the ring of a producer for shipping.
+     *
+     * @param file the ring file
+     * @return the ring
+     * @throws IOException if the file can not be opened or is not a ring
+     */
+    static ShippingRing open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            if (length < HEADER) {
+                throw new IOException(file + " is not a ring");
+            }
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, length);
+            int capacity = map.getInt(CAPACITY_OFFSET);
+            if (map.getInt(MAGIC_OFFSET) != MAGIC || map.getInt(VERSION_OFFSET) != VERSION
+                    || capacity <= 0 || HEADER + (long) capacity > length) {
+                throw new IOException(file + " is not a ring");
+            }
+            return new ShippingRing(file, raf, map, capacity, false);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * The size of the largest record. A record that is larger than half the ring may not fit
+     * before the end of an empty ring, and not at the start either.
+     *
+     * @return the size in bytes
+     */
+    int maxRecordSize() {
+        return capacity / 2;
+    }
+
+    /**
+     * The size of a record in the ring.
+     *
+     * @param path        the path of the bulk URL
+     * @param contentType the content type
+     * @param bodySize    the size of the body
+     * @return the size in bytes
+     */
+    static long recordSize(String path, String contentType, int bodySize) {
+        return recordSize(path.getBytes(UTF8).length, contentType.getBytes(UTF8).length, bodySize);
+    }
+
+    private static long recordSize(int pathBytes, int contentTypeBytes, int bodySize) {
+        return (4L + 4 + 4 + 2 + pathBytes + 2 + contentTypeBytes + 4 + bodySize + 7) & ~7L;
+    }
+
+    /**
+     * Add a bulk request.
+     *
+     * @param path        the path of the bulk URL
+     * @param contentType the content type
+     * @param body        the body
+     * @return true if the bulk request was added, false if the ring has no room for it
+     */
+    synchronized boolean offer(String path, String contentType, BulkBuffer body) {
+        byte[] p = path.getBytes(UTF8);
+        byte[] c = contentType.getBytes(UTF8);
+        int size = body.size();
+        if (recordSize(p.length, c.length, size) > maxRecordSize()) {
+            return false;
+        }
+        int length = (int) recordSize(p.length, c.length, size);
+        int offset = (int) (writePosition % capacity);
+        int tail = capacity - offset;
+        int skip = tail < length ? tail : 0;
+        if (writePosition + skip + length - map.getLong(READ_POSITION) > capacity) {
+            return false;
+        }
+        if (skip > 0) {
+            data.putInt(offset, PADDING);
+            offset = 0;
+        }
+        data.putInt(offset + 8, body.actions);
+        data.putShort(offset + 12, (short) p.length);
+        ByteBuffer record = data.duplicate();
+        ((Buffer) record).position(offset + 14);
+        record.put(p);
+        record.putShort((short) c.length);
+        record.put(c);
+        record.putInt(size);
+        try {
+            body.writeTo(new ByteBufferOutputStream(record));
+        } catch (IOException e) {
+            // writing to a byte buffer does not fail
+            throw new IllegalStateException(e);
+        }
+        while (record.position() < offset + length) {
+            record.put((byte) 0);
+        }
+        data.putInt(offset + 4, checksum(writePosition + skip, offset, length));
+        data.putInt(offset, length);
+        writePosition += skip + length;
+        map.putLong(WRITE_POSITION, writePosition);
+        return true;
+    }
+
+    /**
+     * The position up to which the records were shipped.
+     *
+     * @return the read position
+     */
+    synchronized long readPosition() {
+        return map.getLong(READ_POSITION);
+    }
+
+    /**
+     * The position up to which the producer has written records.
+     *
+     * @return the write position
+     */
+    synchronized long writePosition() {
+        return map.getLong(WRITE_POSITION);
+    }
+
+    /**
+     * Read the record at a position, without shipping it.
+     *
+     * @param position the position of the record, the read position or the next position of a record
+     * @return the record, or null if there is no record at this position yet, or it is not visible yet
+     * @throws IOException if the ring is corrupt
+     */
+    synchronized Record read(long position) throws IOException {
+        long end = map.getLong(WRITE_POSITION);
+        if (position >= end) {
+            return null;
+        }
+        Record record = parse(position, end);
+        if (record != null) {
+            invalidPosition = -1L;
+            return record;
+        }
+        long now = System.currentTimeMillis();
+        if (invalidPosition != position) {
+            invalidPosition = position;
+            invalidSince = now;
+        } else if (now - invalidSince > INVALID_GRACE_MILLIS) {
+            throw new IOException(file + ": corrupt record at position " + position);
+        }
+        return null;
+    }
+
+    private Record parse(long position, long end) {
+        int offset = (int) (position % capacity);
+        int length = data.getInt(offset);
+        if (length == PADDING) {
+            position += capacity - offset;
+            offset = 0;
+            length = data.getInt(offset);
+        }
+        if (length < 24 || (length & 7) != 0 || length > capacity - offset || position + length > end
+                || data.getInt(offset + 4) != checksum(position, offset, length)) {
+            return null;
+        }
+        int actions = data.getInt(offset + 8);
+        ByteBuffer record = data.duplicate();
+        ((Buffer) record).limit(offset + length).position(offset + 12);
+        String path = readString(record);
+        String contentType = readString(record);
+        if (record.remaining() < 4) {
+            return null;
+        }
+        int size = record.getInt();
+        if (size < 0 || size > record.remaining()) {
+            return null;
+        }
+        ((Buffer) record).limit(record.position() + size);
+        return new Record(path, contentType, record.slice(), actions, position + length);
+    }
+
+    /**
+     * The checksum of a record, from the actions to the end of the record, and its position.
+     */
+    private int checksum(long position, int offset, int length) {
+        long h = position * 0x9e3779b97f4a7c15L + length;
+        for (int i = offset + 8; i < offset + length; i += 8) {
+            h = (h ^ data.getLong(i)) * 0x100000001b3L;
+            h ^= h >>> 29;
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] b = new byte[buffer.getShort() & 0xffff];
+        buffer.get(b);
+        return new String(b, UTF8);
+    }
+
+    /**
+     * The position of the next complete record after a corrupt one. Records start on 8-byte boundaries,
+     * and a checksum only matches at the position of its record, so the next position with a valid
+     * record is the next record boundary.
+     *
+     * @param position the position of the corrupt record
+     * @return the position of the next record, or the write position if there is none
+     */
+    synchronized long skip(long position) {
+        long end = map.getLong(WRITE_POSITION);
+        for (long p = position + 8; p < end; p += 8) {
+            if (parse(p, end) != null) {
+                return p;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Free the space of the records before a position, after they were shipped.
+     *
+     * @param position the next position of the last shipped record
+     */
+    synchronized void commit(long position) {
+        map.putLong(READ_POSITION, position);
+    }
+
+    /**
+     * Whether all records were shipped.
+     *
+     * @return true if the ring is empty
+     */
+    synchronized boolean isEmpty() {
+        return map.getLong(READ_POSITION) >= map.getLong(WRITE_POSITION);
+    }
+
+    /**
+     * Whether the producer closed the ring, or exited without closing it.
+     *
+     * @return true if no more records will be added
+     */
+    boolean isAbandoned() {
+        if (map.getInt(CLOSED) != 0) {
+            return true;
+        }
+        try {
+            FileLock l = raf.getChannel().tryLock(0L, HEADER, false);
+            if (l == null) {
+                return false;
+            }
+            l.release();
+            return true;
+        } catch (OverlappingFileLockException e) {
+            // the producer is in this process
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (producer) {
+                map.putInt(CLOSED, 1);
+                if (lock != null) {
+                    lock.release();
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * A bulk request in the ring. The body is a slice of the ring, which is valid until the
+     * record is committed.
+     */
+    static class Record {
+
+        final String path;
+
+        final String contentType;
+
+        final ByteBuffer body;
+
+        final int actions;
+
+        final long next;
+
+        Record(String path, String contentType, ByteBuffer body, int actions, long next) {
+            this.path = path;
+            this.contentType = contentType;
+            this.body = body;
+            this.actions = actions;
+            this.next = next;
+        }
+    }
+
+    private static class ByteBufferOutputStream extends OutputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
+        }
+    }
+}
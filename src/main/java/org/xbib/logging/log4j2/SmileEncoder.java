@@ -0,0 +1,242 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Encodes documents in the SMILE binary format, as accepted by the Elasticsearch bulk API
+ * with content type {@code application/smile}.
+ *
+ * Every document starts with a SMILE header and ends with the 0xFF stream separator, which
+ * Elasticsearch uses to split a bulk body. Property names are shared: a name that occurs again
+ * within a document is written as a one or two byte back-reference. Elasticsearch parses each
+ * document of a bulk body with a new parser, so back-references can not span documents.
+ */
+class SmileEncoder {
+
+    static final String CONTENT_TYPE = "application/smile";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // ":)\n", version 0, shared property names enabled, shared string values disabled
+    private static final byte[] HEADER = {':', ')', '\n', 0x01};
+
+    private static final int STREAM_SEPARATOR = 0xFF;
+
+    private static final int END_OF_STRING = 0xFC;
+
+    private static final int MAX_SHARED_NAMES = 1024;
+
+    private static final ThreadLocal<SimpleDateFormat> ISO_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    byte[] encode(Map<String, Object> map) {
+        Encoding encoding = new Encoding();
+        encoding.out.write(HEADER, 0, HEADER.length);
+        encoding.writeValue(map);
+        encoding.out.write(STREAM_SEPARATOR);
+        return encoding.out.toByteArray();
+    }
+
+    /**
+     * The state of encoding one document.
+     */
+    private static class Encoding {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+        private final Map<String, Integer> sharedNames = new HashMap<String, Integer>();
+
+        private final List<String> seenNames = new ArrayList<String>();
+
+        @SuppressWarnings("unchecked")
+        void writeValue(Object value) {
+            if (value == null) {
+                out.write(0x21);
+            } else if (value instanceof Map) {
+                out.write(0xFA);
+                for (Map.Entry<String, Object> me : ((Map<String, Object>) value).entrySet()) {
+                    writeName(me.getKey());
+                    writeValue(me.getValue());
+                }
+                out.write(0xFB);
+            } else if (value instanceof List) {
+                out.write(0xF8);
+                for (Object o : (List<Object>) value) {
+                    writeValue(o);
+                }
+                out.write(0xF9);
+            } else if (value instanceof Boolean) {
+                out.write((Boolean) value ? 0x23 : 0x22);
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writeInt(((Number) value).intValue());
+            } else if (value instanceof Long) {
+                writeLong((Long) value);
+            } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+                writeLong(((BigInteger) value).longValue());
+            } else if (value instanceof Float) {
+                writeFloat((Float) value);
+            } else if (value instanceof Double) {
+                writeDouble((Double) value);
+            } else if (value instanceof Date) {
+                writeString(ISO_FORMAT.get().format((Date) value));
+            } else {
+                // big numbers are sent as text, Elasticsearch coerces them into numeric fields
+                writeString(value.toString());
+            }
+        }
+
+        private void writeName(String name) {
+            if (name.isEmpty()) {
+                out.write(0x20);
+                return;
+            }
+            Integer ix = sharedNames.get(name);
+            // never emit 0xFE or 0xFF as second byte of a reference, 0xFF is the stream separator
+            if (ix != null && (ix < 64 || (ix & 0xFF) < 0xFE)) {
+                if (ix < 64) {
+                    out.write(0x40 + ix);
+                } else {
+                    out.write(0x30 | (ix >> 8));
+                    out.write(ix & 0xFF);
+                }
+                return;
+            }
+            byte[] b = name.getBytes(UTF8);
+            boolean ascii = b.length == name.length();
+            if (ascii && b.length <= 64) {
+                out.write(0x80 + b.length - 1);
+                out.write(b, 0, b.length);
+            } else if (!ascii && b.length <= 57) {
+                out.write(0xC0 + b.length - 2);
+                out.write(b, 0, b.length);
+            } else {
+                out.write(0x34);
+                out.write(b, 0, b.length);
+                out.write(END_OF_STRING);
+            }
+            // the decoder adds every name that is not a back-reference, keep the tables in step
+            if (seenNames.size() == MAX_SHARED_NAMES) {
+                seenNames.clear();
+                sharedNames.clear();
+            }
+            sharedNames.put(name, seenNames.size());
+            seenNames.add(name);
+        }
+
+        private void writeString(String s) {
+            if (s.isEmpty()) {
+                out.write(0x20);
+                return;
+            }
+            byte[] b = s.getBytes(UTF8);
+            boolean ascii = b.length == s.length();
+            if (ascii) {
+                if (b.length <= 32) {
+                    out.write(0x40 + b.length - 1);
+                } else if (b.length <= 64) {
+                    out.write(0x60 + b.length - 33);
+                } else {
+                    out.write(0xE0);
+                    out.write(b, 0, b.length);
+                    out.write(END_OF_STRING);
+                    return;
+                }
+            } else {
+                if (b.length <= 33) {
+                    out.write(0x80 + b.length - 2);
+                } else if (b.length <= 65) {
+                    out.write(0xA0 + b.length - 34);
+                } else {
+                    out.write(0xE4);
+                    out.write(b, 0, b.length);
+                    out.write(END_OF_STRING);
+                    return;
+                }
+            }
+            out.write(b, 0, b.length);
+        }
+
+        private void writeInt(int i) {
+            int zigzag = (i << 1) ^ (i >> 31);
+            if (i >= -16 && i <= 15) {
+                out.write(0xC0 + zigzag);
+            } else {
+                out.write(0x24);
+                writeVInt(zigzag & 0xFFFFFFFFL);
+            }
+        }
+
+        private void writeLong(long l) {
+            if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+                writeInt((int) l);
+                return;
+            }
+            out.write(0x25);
+            writeVInt((l << 1) ^ (l >> 63));
+        }
+
+        /**
+         * Write an unsigned variable length integer: 7 bits per byte, big-endian, and 6 bits
+         * in the last byte, which is marked by its high bit.
+         */
+        private void writeVInt(long v) {
+            byte[] b = new byte[10];
+            int pos = b.length - 1;
+            b[pos] = (byte) (0x80 | (v & 0x3F));
+            v >>>= 6;
+            while (v != 0) {
+                b[--pos] = (byte) (v & 0x7F);
+                v >>>= 7;
+            }
+            out.write(b, pos, b.length - pos);
+        }
+
+        private void writeFloat(float f) {
+            int bits = Float.floatToRawIntBits(f);
+            out.write(0x28);
+            // 32 bits in five 7-bit groups
+            for (int i = 4; i >= 0; i--) {
+                out.write((bits >>> (7 * i)) & 0x7F);
+            }
+        }
+
+        private void writeDouble(double d) {
+            long bits = Double.doubleToRawLongBits(d);
+            out.write(0x29);
+            // 64 bits in ten 7-bit groups
+            for (int i = 9; i >= 0; i--) {
+                out.write((int) ((bits >>> (7 * i)) & 0x7F));
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A counter that threads increment without contention. Without contention, it is a single
+ * long. When threads collide on it, they spread over cells, which lie in different cache lines
+ * and double in number with each further collision, up to the number of processors. Reading
+ * the counter adds up the cells.
+ *
+ * It works like {@code java.util.concurrent.atomic.LongAdder} of Java 8, which this Java 7 build can not use.
+ */
+class StripedCounter {
+
+    private static final int MAX_CELLS = cells(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLong base = new AtomicLong();
+
+    private volatile Cell[] cells;
+
+    void increment() {
+        Cell[] cs = cells;
+        if (cs == null) {
+            long b = base.get();
+            if (base.compareAndSet(b, b + 1L)) {
+                return;
+            }
+            cs = expand(null);
+        }
+        Cell cell = cs[index() & (cs.length - 1)];
+        long v = cell.get();
+        if (!cell.compareAndSet(v, v + 1L)) {
+            if (cs.length < MAX_CELLS) {
+                cs = expand(cs);
+                cell = cs[index() & (cs.length - 1)];
+            }
+            cell.incrementAndGet();
+        }
+    }
+
+    /**
+     * Read the counter and set it to zero. Increments that happen meanwhile are counted
+     * either now or at the next read, but never lost.
+     *
+     * @return the count since the last reset
+     */
+    long sumThenReset() {
+        long sum = base.getAndSet(0L);
+        Cell[] cs = cells;
+        if (cs != null) {
+            for (Cell cell : cs) {
+                sum += cell.getAndSet(0L);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of cells, 0 until threads collide
+     */
+    int cells() {
+        Cell[] cs = cells;
+        return cs != null ? cs.length : 0;
+    }
+
+    /**
+     * Double the cells after a collision. The cells are kept, so increments of threads that
+     * still use the old array are not lost.
+     *
+     * @param current the cells in which the collision happened
+     * @return the cells to use
+     */
+    private synchronized Cell[] expand(Cell[] current) {
+        Cell[] cs = cells;
+        if (cs != current) {
+            // expanded by another thread meanwhile
+            return cs;
+        }
+        int n = cs == null ? Math.min(2, MAX_CELLS) : cs.length * 2;
+        Cell[] expanded = new Cell[n];
+        for (int i = 0; i < n; i++) {
+            expanded[i] = cs != null && i < cs.length ? cs[i] : new Cell();
+        }
+        cells = expanded;
+        return expanded;
+    }
+
+    private static int index() {
+        // spread thread IDs, which are often consecutive, over the cells
+        int h = (int) (Thread.currentThread().getId() * 0x9E3779B9L);
+        return h ^ (h >>> 16);
+    }
+
+    private static int cells(int processors) {
+        int n = 1;
+        while (n < processors && n < 64) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    /**
+     * A cell padded to a cache line, so the cells of different threads do not share one.
+     */
+    @SuppressWarnings("unused")
+    private static class Cell extends AtomicLong {
+
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
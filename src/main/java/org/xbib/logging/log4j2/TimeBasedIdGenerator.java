@@ -0,0 +1,127 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates compact, time-ordered unique document IDs without locking.
+ *
+ * An ID consists of 15 bytes: a 6 byte millisecond timestamp, a 6 byte node address and
+ * a 3 byte sequence number. The bytes are encoded into 20 characters from an alphabet
+ * that preserves the byte order, so IDs sort lexicographically by creation time.
+ */
+public class TimeBasedIdGenerator {
+
+    private static final char[] ALPHABET =
+            "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    private static final TimeBasedIdGenerator INSTANCE = new TimeBasedIdGenerator();
+
+    private final byte[] nodeAddress;
+
+    private final AtomicInteger sequenceNumber;
+
+    private final AtomicLong lastTimestamp = new AtomicLong();
+
+    public TimeBasedIdGenerator() {
+        this(nodeAddress());
+    }
+
+    TimeBasedIdGenerator(byte[] nodeAddress) {
+        this.nodeAddress = nodeAddress;
+        this.sequenceNumber = new AtomicInteger(new SecureRandom().nextInt());
+    }
+
+    public static TimeBasedIdGenerator getInstance() {
+        return INSTANCE;
+    }
+
+    public String getId() {
+        final int sequenceId = sequenceNumber.incrementAndGet() & 0xffffff;
+        long now = System.currentTimeMillis();
+        long timestamp;
+        while (true) {
+            long last = lastTimestamp.get();
+            // never go back in time, and advance by one millisecond when the sequence wraps,
+            // so a (timestamp, sequence) pair can never repeat
+            timestamp = Math.max(last, now);
+            if (sequenceId == 0) {
+                timestamp++;
+            }
+            if (timestamp == last || lastTimestamp.compareAndSet(last, timestamp)) {
+                break;
+            }
+        }
+        byte[] bytes = new byte[15];
+        bytes[0] = (byte) (timestamp >>> 40);
+        bytes[1] = (byte) (timestamp >>> 32);
+        bytes[2] = (byte) (timestamp >>> 24);
+        bytes[3] = (byte) (timestamp >>> 16);
+        bytes[4] = (byte) (timestamp >>> 8);
+        bytes[5] = (byte) timestamp;
+        System.arraycopy(nodeAddress, 0, bytes, 6, 6);
+        bytes[12] = (byte) (sequenceId >>> 16);
+        bytes[13] = (byte) (sequenceId >>> 8);
+        bytes[14] = (byte) sequenceId;
+        return encode(bytes);
+    }
+
+    private static String encode(byte[] bytes) {
+        char[] chars = new char[bytes.length / 3 * 4];
+        for (int i = 0, j = 0; i < bytes.length; i += 3) {
+            int n = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            chars[j++] = ALPHABET[(n >>> 18) & 0x3f];
+            chars[j++] = ALPHABET[(n >>> 12) & 0x3f];
+            chars[j++] = ALPHABET[(n >>> 6) & 0x3f];
+            chars[j++] = ALPHABET[n & 0x3f];
+        }
+        return new String(chars);
+    }
+
+    private static byte[] nodeAddress() {
+        try {
+            Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces();
+            while (en != null && en.hasMoreElements()) {
+                NetworkInterface nint = en.nextElement();
+                if (!nint.isLoopback()) {
+                    byte[] address = nint.getHardwareAddress();
+                    if (address != null && address.length == 6) {
+                        // mix in randomness so several JVMs on one host get different node addresses
+                        byte[] random = new byte[6];
+                        new SecureRandom().nextBytes(random);
+                        for (int i = 0; i < 6; i++) {
+                            address[i] ^= random[i] & 0x0f;
+                        }
+                        return address;
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            // ignore, fall back to random address
+        }
+        byte[] address = new byte[6];
+        new SecureRandom().nextBytes(address);
+        // set multicast bit, so a random address never collides with a real MAC address
+        address[0] |= 0x01;
+        return address;
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Future;
+
+/**
+ * The default transport, based on the blocking JDK {@link HttpURLConnection}.
+ *
+ * Requests are sent in the calling thread, the returned future is already done.
+ * Response bodies are always read to the end, so the JDK can keep the connection alive.
+ */
+public class UrlConnectionHttpTransport implements HttpTransport {
+
+    private volatile long deadline;
+
+    /**
+     * Bound the requests that are sent from now on by a deadline, such as the shutdown deadline
+     * of the client. A blocked read does not notice an interrupt, so the deadline is the only way
+     * to stop waiting for a cluster that does not answer.
+     *
+     * @param deadline the time in milliseconds by which requests give up, or 0 for no deadline
+     */
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    @Override
+    public Future<Response> post(URL url, String contentType, BulkBuffer body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        long deadline = this.deadline;
+        if (deadline > 0L) {
+            // a timeout of 0 would wait forever
+            int timeout = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, deadline - System.currentTimeMillis()));
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+        }
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("content-type", contentType);
+        // bulk responses are read as JSON, also for SMILE requests
+        connection.setRequestProperty("accept", "application/json");
+        connection.setFixedLengthStreamingMode(body.size());
+        OutputStream out = connection.getOutputStream();
+        body.writeTo(out);
+        out.close();
+        int status = connection.getResponseCode();
+        InputStream in = status < HttpURLConnection.HTTP_BAD_REQUEST ?
+                connection.getInputStream() : connection.getErrorStream();
+        byte[] bytes = in != null ? read(in) : new byte[0];
+        int length = connection.getContentLength();
+        if (length > bytes.length) {
+            // the connection broke off, the JDK reports the end of the stream as the end of the body
+            throw new IOException("response ended after " + bytes.length + " of " + length + " bytes");
+        }
+        ResponseFuture future = new ResponseFuture();
+        future.complete(new Response(status, connection.getResponseMessage(), bytes));
+        return future;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = in.read(b)) != -1) {
+                out.write(b, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of the quoted, escaped UTF-8 encoding of strings that repeat from event to event,
+ * such as field names, logger names, thread names and level names.
+ *
+ * The cache is direct-mapped: each string has one slot, chosen by its hash code, and a string that
+ * is not cached evicts the string in its slot. A lookup compares references first, which hits for
+ * the constant and long-lived strings the cache is made for, and contents only after that. Slots
+ * are replaced without locking.
+ */
+class Utf8Cache {
+
+    /**
+     * Longer strings are not cached, they are unlikely to repeat.
+     */
+    private static final int MAX_LENGTH = 256;
+
+    private final AtomicReferenceArray<Entry> entries;
+
+    private final int mask;
+
+    /**
+     * @param size the number of slots, rounded up to a power of two
+     */
+    Utf8Cache(int size) {
+        int n = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.entries = new AtomicReferenceArray<Entry>(n);
+        this.mask = n - 1;
+    }
+
+    /**
+     * Return the quoted, escaped UTF-8 encoding of a string.
+     *
+     * @param s the string
+     * @return the encoded string, or null if the string is too long to be cached
+     */
+    byte[] get(String s) {
+        int h = s.hashCode();
+        int i = (h ^ (h >>> 16)) & mask;
+        Entry entry = entries.get(i);
+        if (entry != null && (entry.key == s || entry.key.equals(s))) {
+            return entry.bytes;
+        }
+        if (s.length() > MAX_LENGTH) {
+            return null;
+        }
+        byte[] bytes = JsonOutput.quote(s);
+        entries.set(i, new Entry(s, bytes));
+        return bytes;
+    }
+
+    private static class Entry {
+
+        final String key;
+
+        final byte[] bytes;
+
+        Entry(String key, byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.Future;
+
+/**
+ * A transport based on the java.net.http client of Java 11 and later.
+ *
+ * Requests are sent asynchronously and prefer HTTP/2, so concurrent bulk requests to a node
+ * are multiplexed over a single connection where the server or proxy supports it. Plain
+ * HTTP/1.1 servers are served over HTTP/1.1.
+ */
+public class JdkHttpTransport implements HttpTransport {
+
+    private final HttpClient client;
+
+    public JdkHttpTransport() {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+    }
+
+    @Override
+    public Future<Response> post(URL url, String contentType, BulkBuffer body) throws IOException {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(url.toURI())
+                    .header("content-type", contentType)
+                    .header("accept", "application/json")
+                    .timeout(Duration.ofSeconds(60))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body.array(), 0, body.size()))
+                    .build();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> new Response(response.statusCode(), "", response.body()));
+    }
+
+    @Override
+    public void close() {
+    }
+}
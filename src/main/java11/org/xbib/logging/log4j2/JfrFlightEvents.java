@@ -0,0 +1,217 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight events recorded with Java Flight Recorder. The events are in the category
+ * "Log4j2 / Elasticsearch" and are disabled unless enabled in the recording settings,
+ * for example with {@code jfr configure} or in a .jfc file.
+ */
+public class JfrFlightEvents extends FlightEvents {
+
+    private static final EventType SEND = EventType.getEventType(BulkSendEvent.class);
+
+    private static final EventType DRAIN = EventType.getEventType(QueueDrainEvent.class);
+
+    private static final EventType ENCODE = EventType.getEventType(EncodeEvent.class);
+
+    @Override
+    Object beginSend() {
+        if (!SEND.isEnabled()) {
+            return null;
+        }
+        BulkSendEvent event = new BulkSendEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endSend(Object event, String node, int bytes, int actions, int status) {
+        if (event == null) {
+            return;
+        }
+        BulkSendEvent e = (BulkSendEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.node = node;
+            e.bytes = bytes;
+            e.actions = actions;
+            e.status = status;
+            e.commit();
+        }
+    }
+
+    @Override
+    Object beginDrain() {
+        if (!DRAIN.isEnabled()) {
+            return null;
+        }
+        QueueDrainEvent event = new QueueDrainEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endDrain(Object event, int bytes, int actions) {
+        if (event == null || actions == 0) {
+            return;
+        }
+        QueueDrainEvent e = (QueueDrainEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.bytes = bytes;
+            e.actions = actions;
+            e.commit();
+        }
+    }
+
+    @Override
+    Object beginEncode() {
+        if (!ENCODE.isEnabled()) {
+            return null;
+        }
+        EncodeEvent event = new EncodeEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endEncode(Object event, int bytes) {
+        if (event == null || bytes < LARGE_EVENT_BYTES) {
+            return;
+        }
+        EncodeEvent e = (EncodeEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.bytes = bytes;
+            e.commit();
+        }
+    }
+
+    @Override
+    void retry(String node, int bytes, int actions, int status) {
+        BulkRetryEvent event = new BulkRetryEvent();
+        if (event.shouldCommit()) {
+            event.node = node;
+            event.bytes = bytes;
+            event.actions = actions;
+            event.status = status;
+            event.commit();
+        }
+    }
+
+    @Override
+    void backoff(boolean backoff, int pending) {
+        BackoffEvent event = new BackoffEvent();
+        if (event.shouldCommit()) {
+            event.backoff = backoff;
+            event.pending = pending;
+            event.commit();
+        }
+    }
+
+    @Name("org.xbib.logging.log4j2.BulkSend")
+    @Label("Bulk Request")
+    @Description("A bulk request sent to Elasticsearch")
+    @Category({"Log4j2", "Elasticsearch"})
+    @Enabled(false)
+    static class BulkSendEvent extends Event {
+
+        @Label("Node")
+        String node;
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+
+        @Label("Actions")
+        int actions;
+
+        @Label("Status")
+        int status;
+    }
+
+    @Name("org.xbib.logging.log4j2.QueueDrain")
+    @Label("Queue Drain")
+    @Description("Queued events taken into a bulk request")
+    @Category({"Log4j2", "Elasticsearch"})
+    @Enabled(false)
+    static class QueueDrainEvent extends Event {
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+
+        @Label("Actions")
+        int actions;
+    }
+
+    @Name("org.xbib.logging.log4j2.Encode")
+    @Label("Large Event Encoding")
+    @Description("Encoding of an event of at least 64 KiB")
+    @Category({"Log4j2", "Elasticsearch"})
+    @Enabled(false)
+    static class EncodeEvent extends Event {
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("org.xbib.logging.log4j2.BulkRetry")
+    @Label("Bulk Request Rejected")
+    @Description("A bulk request rejected by an overloaded cluster, to be sent again")
+    @Category({"Log4j2", "Elasticsearch"})
+    @Enabled(false)
+    static class BulkRetryEvent extends Event {
+
+        @Label("Node")
+        String node;
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+
+        @Label("Actions")
+        int actions;
+
+        @Label("Status")
+        int status;
+    }
+
+    @Name("org.xbib.logging.log4j2.Backoff")
+    @Label("Backoff")
+    @Description("The client stops or resumes sending new bulk requests after rejections")
+    @Category({"Log4j2", "Elasticsearch"})
+    @Enabled(false)
+    static class BackoffEvent extends Event {
+
+        @Label("Backoff")
+        boolean backoff;
+
+        @Label("Pending Bulk Requests")
+        int pending;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveBulkControllerTest {
+
+    @Test
+    public void testBackoffAndRecovery() {
+        AdaptiveBulkController controller = new AdaptiveBulkController(100, 1000, 200L, 5000L, 1000L);
+        assertEquals(1000, controller.getActions());
+        assertEquals(5000L, controller.getIntervalMillis());
+        // fast responses shorten the interval down to the minimum
+        for (int i = 0; i < 100; i++) {
+            controller.onResponse(10L, 0);
+        }
+        assertEquals(1000, controller.getActions());
+        assertEquals(200L, controller.getIntervalMillis());
+        // rejections halve the batch size and double the interval, within bounds
+        controller.onRejected();
+        assertEquals(500, controller.getActions());
+        assertEquals(400L, controller.getIntervalMillis());
+        for (int i = 0; i < 10; i++) {
+            controller.onResponse(10L, 3);
+        }
+        assertEquals(100, controller.getActions());
+        assertEquals(5000L, controller.getIntervalMillis());
+        // additive increase
+        controller.onResponse(10L, 0);
+        assertEquals(156, controller.getActions());
+        // slow responses count as pushback
+        controller.onResponse(2000L, 0);
+        assertEquals(100, controller.getActions());
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BulkBufferTest {
+
+    @Test
+    public void testSplitAndAppend() throws Exception {
+        BulkBuffer buffer = new BulkBuffer();
+        buffer.index = "test";
+        for (int i = 0; i < 5; i++) {
+            new BulkAction("test", "{}\n".getBytes(), ("{\"n\":" + i + "}\n").getBytes(), false).writeTo(buffer);
+        }
+        BulkBuffer[] halves = buffer.split();
+        assertEquals(2, halves[0].actions);
+        assertEquals(3, halves[1].actions);
+        assertEquals("test", halves[1].index);
+        assertEquals("{}\n{\"n\":0}\n{}\n{\"n\":1}\n", new String(halves[0].toByteArray(), "UTF-8"));
+        BulkBuffer[] quarters = halves[1].split();
+        assertEquals("{}\n{\"n\":2}\n", new String(quarters[0].toByteArray(), "UTF-8"));
+        assertNull(quarters[0].split());
+        BulkBuffer joined = new BulkBuffer();
+        joined.append(halves[0]);
+        joined.append(halves[1]);
+        assertEquals(5, joined.actions);
+        assertEquals(new String(buffer.toByteArray(), "UTF-8"), new String(joined.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testSplitStaged() throws Exception {
+        OffHeapArena arena = new OffHeapArena(1024, 4096);
+        BulkBuffer buffer = new BulkBuffer();
+        for (int i = 0; i < 4; i++) {
+            arena.allocate("test", "{}\n".getBytes(), ("{\"n\":" + i + "}\n").getBytes(), false).writeTo(buffer);
+        }
+        BulkBuffer[] halves = buffer.split();
+        // the halves are copies, the staged actions are released with the original buffer
+        buffer.reset();
+        arena.allocate("test", "{}\n".getBytes(), "{\"n\":4}\n".getBytes(), false);
+        assertEquals(2, halves[1].actions);
+        assertEquals("{}\n{\"n\":2}\n{}\n{\"n\":3}\n", new String(halves[1].toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testMixedKeepsOrder() throws Exception {
+        OffHeapArena arena = new OffHeapArena(1024, 4096);
+        BulkBuffer buffer = new BulkBuffer();
+        new BulkAction("test", "{}\n".getBytes(), "{\"n\":0}\n".getBytes(), false).writeTo(buffer);
+        arena.allocate("test", "{}\n".getBytes(), "{\"n\":1}\n".getBytes(), false).writeTo(buffer);
+        new BulkAction("test", "{}\n".getBytes(), "{\"n\":2}\n".getBytes(), false).writeTo(buffer);
+        String expected = "{}\n{\"n\":0}\n{}\n{\"n\":1}\n{}\n{\"n\":2}\n";
+        assertEquals(expected, new String(buffer.toByteArray(), "UTF-8"));
+        StringBuilder sb = new StringBuilder();
+        for (ByteBuffer bb : buffer.toDirectByteBuffers()) {
+            byte[] b = new byte[bb.remaining()];
+            bb.get(b);
+            sb.append(new String(b, "UTF-8"));
+        }
+        assertEquals(expected, sb.toString());
+        assertEquals("{}\n{\"n\":2}\n", new String(buffer.split()[1].split()[1].toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testItemResults() throws Exception {
+        DeliveryTracker tracker = new DeliveryTracker();
+        DeliveryTracker.Epoch[] singles = new DeliveryTracker.Epoch[3];
+        BulkBuffer buffer = new BulkBuffer();
+        for (int i = 0; i < 3; i++) {
+            BulkAction action = new BulkAction("test", "{}\n".getBytes(), ("{\"n\":" + i + "}\n").getBytes(), false);
+            action.epoch = singles[i] = tracker.enterSingle();
+            action.writeTo(buffer);
+        }
+        String body = "{\"took\":3,\"errors\":true,\"items\":[{\"index\":{\"status\":201}},"
+                + "{\"index\":{\"status\":429,\"error\":{\"reason\":\"rejected \\\"status\\\":1\"}}},"
+                + "{\"index\":{\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\"}}}]}";
+        int[] statuses = ElasticsearchHttpClient.itemStatuses(body.getBytes("UTF-8"));
+        assertEquals(3, statuses.length);
+        assertEquals(429, statuses[1]);
+        assertEquals(1, ElasticsearchHttpClient.countRejectedItems(body.getBytes("UTF-8")));
+        assertNull(ElasticsearchHttpClient.itemStatuses("{\"took\":3,\"errors\":false,\"items\":[]}".getBytes("UTF-8")));
+        // the rejected item moves to a retry, the failed one is dropped
+        BulkBuffer retry = buffer.extract(new boolean[] { false, true, false });
+        buffer.delivered(new boolean[] { false, false, true });
+        assertTrue(singles[0].getFuture().get());
+        assertFalse(singles[2].getFuture().get());
+        assertFalse(singles[1].getFuture().isDone());
+        assertEquals(1, retry.actions);
+        assertEquals("{}\n{\"n\":1}\n", new String(retry.toByteArray(), "UTF-8"));
+        retry.delivered(true);
+        assertTrue(singles[1].getFuture().get());
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkLoaderTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int DOCS = 200;
+
+    @Test
+    public void testLoadNdjson() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < DOCS; i++) {
+            out.write(("{\"index\":{\"_index\":\"logs\",\"_type\":\"event\"}}\n{\"seq\":" + i
+                    + ",\"message\":\"event " + i + "\"}\n").getBytes(UTF8));
+        }
+        byte[] content = out.toByteArray();
+        FaultInjectingBulkEndpoint endpoint = load(content, ".json");
+        try {
+            assertEquals(DOCS, endpoint.delivered());
+            assertArrayEquals(content, endpoint.bodies());
+        } finally {
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testLoadSmile() throws Exception {
+        SmileEncoder encoder = new SmileEncoder();
+        Map<String, Object> index = new LinkedHashMap<String, Object>();
+        index.put("_index", "logs");
+        index.put("_type", "event");
+        byte[] action = encoder.encode(Collections.<String, Object>singletonMap("index", index));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < DOCS; i++) {
+            Map<String, Object> doc = new LinkedHashMap<String, Object>();
+            doc.put("seq", i);
+            doc.put("message", "event " + i);
+            out.write(action);
+            out.write(encoder.encode(doc));
+        }
+        byte[] content = out.toByteArray();
+        FaultInjectingBulkEndpoint endpoint = load(content, ".smile");
+        try {
+            // split at the stream separators, not inside the documents
+            assertArrayEquals(content, endpoint.bodies());
+        } finally {
+            endpoint.close();
+        }
+    }
+
+    /**
+     * Load a file into an endpoint that refuses bulk requests of more than 1500 bytes, so the bulk
+     * requests of 4096 bytes are split.
+     */
+    private static FaultInjectingBulkEndpoint load(byte[] content, String suffix) throws Exception {
+        File file = File.createTempFile("test", suffix);
+        FaultInjectingBulkEndpoint endpoint = ElasticsearchHttpClientTest.quietEndpoint();
+        boolean loaded = false;
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+            endpoint.keepRequests = true;
+            endpoint.maxRequestBytes = 1500;
+            // one bulk request at a time, so the bodies arrive in the order of the file
+            BulkLoader loader = new BulkLoader(endpoint.getUrl(), null, null, "nio", 1, 4096, 5, null);
+            assertTrue(loader.load(Collections.singletonList(file)));
+            assertEquals(DOCS, loader.getDocs());
+            assertEquals(0L, loader.getFailed());
+            assertTrue(endpoint.tooLarge.get() > 0);
+            loaded = true;
+            return endpoint;
+        } finally {
+            if (!loaded) {
+                endpoint.close();
+            }
+            file.delete();
+        }
+    }
+}
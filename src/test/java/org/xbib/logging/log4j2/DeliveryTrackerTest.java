@@ -0,0 +1,117 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeliveryTrackerTest {
+
+    @Test
+    public void testBarrier() throws Exception {
+        DeliveryTracker tracker = tracking();
+        DeliveryTracker.Epoch first = tracker.enter();
+        tracker.enter();
+        Future<Boolean> barrier1 = tracker.barrier();
+        DeliveryTracker.Epoch second = tracker.enter();
+        Future<Boolean> barrier2 = tracker.barrier();
+        assertFalse(barrier1.isDone());
+        // the second epoch is empty, but waits for the first
+        second.leave(1, true);
+        assertFalse(barrier2.isDone());
+        first.leave(1, true);
+        assertFalse(barrier1.isDone());
+        first.leave(1, false);
+        assertFalse(barrier1.get());
+        // a dropped event is reported by the barrier of its own epoch only
+        assertTrue(barrier2.get());
+        assertTrue(tracker.barrier().get());
+    }
+
+    @Test
+    public void testSingle() throws Exception {
+        DeliveryTracker tracker = tracking();
+        DeliveryTracker.Epoch single = tracker.enterSingle();
+        DeliveryTracker.Epoch other = tracker.enterSingle();
+        Future<Boolean> barrier = tracker.barrier();
+        single.leave(1, true);
+        assertTrue(single.getFuture().get());
+        assertFalse(barrier.isDone());
+        other.leave(1, false);
+        assertFalse(other.getFuture().get());
+        assertFalse(barrier.get());
+    }
+
+    @Test
+    public void testFail() throws Exception {
+        DeliveryTracker tracker = tracking();
+        tracker.enter();
+        DeliveryTracker.Epoch single = tracker.enterSingle();
+        Future<Boolean> barrier = tracker.barrier();
+        tracker.enter();
+        tracker.fail();
+        assertFalse(barrier.get());
+        assertFalse(single.getFuture().get());
+        assertFalse(tracker.barrier().get());
+    }
+
+    @Test
+    public void testStandIn() throws Exception {
+        DeliveryTracker tracker = new DeliveryTracker();
+        // not counted before the first barrier
+        assertNull(tracker.enter());
+        Future<Boolean> barrier1 = tracker.barrier();
+        DeliveryTracker.Epoch second = tracker.enter();
+        Future<Boolean> barrier2 = tracker.barrier();
+        second.leave(1, true);
+        // the events queued before the first barrier have not left yet
+        assertFalse(barrier1.isDone());
+        assertFalse(barrier2.isDone());
+        assertTrue(tracker.hasStandIns());
+        tracker.release();
+        assertTrue(barrier1.get());
+        assertTrue(barrier2.get());
+        assertFalse(tracker.start());
+    }
+
+    @Test
+    public void testAdopt() throws Exception {
+        DeliveryTracker predecessor = new DeliveryTracker();
+        Future<Boolean> barrier = predecessor.barrier();
+        DeliveryTracker successor = new DeliveryTracker();
+        assertTrue(successor.adopt(predecessor));
+        assertFalse(predecessor.hasStandIns());
+        assertFalse(successor.adopt(predecessor));
+        // released by the successor, which sends the events of the predecessor now
+        successor.release();
+        assertTrue(barrier.get());
+    }
+
+    /**
+     * A tracker that counts events from the start.
+     */
+    private static DeliveryTracker tracking() {
+        DeliveryTracker tracker = new DeliveryTracker();
+        tracker.start();
+        tracker.release();
+        return tracker;
+    }
+}
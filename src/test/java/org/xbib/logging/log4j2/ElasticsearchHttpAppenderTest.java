@@ -0,0 +1,34 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ElasticsearchHttpAppenderTest {
+
+    @Test
+    public void testBulkLine() throws Exception {
+        assertEquals("{\"a\":1}\n", line("{\"a\":1}"));
+        assertEquals("{  \"message\":\"x\\ny\",    \"b\":[1, 2] }\n",
+                line("\r\n{\n \"message\":\"x\\ny\",\r\n  \"b\":[1,\n2]\n}\n,\n"));
+    }
+
+    private static String line(String s) throws Exception {
+        return new String(ElasticsearchHttpAppender.toBulkLine(s.getBytes("UTF-8")), "UTF-8");
+    }
+}
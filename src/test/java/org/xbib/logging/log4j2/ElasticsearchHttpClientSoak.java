@@ -0,0 +1,254 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a client against a bulk endpoint in a brownout for a while and fails if heap, threads or
+ * pooled bulk buffers grow without bound, or if events get lost other than by the default queue limit.
+ *
+ * A short run is part of the default test phase, a long run is started with {@code mvn -Psoak test}.
+ * System properties: {@code soak.duration} in seconds, {@code soak.transport}, {@code soak.rate} in
+ * events per second.
+ */
+public class ElasticsearchHttpClientSoak {
+
+    private static final int PRODUCERS = 4;
+
+    private static final int MAX_CONCURRENT_REQUESTS = 2;
+
+    @Test
+    public void testBrownout() throws Exception {
+        long seconds = Long.getLong("soak.duration", 60L);
+        String transport = System.getProperty("soak.transport", "urlconnection");
+        int rate = Integer.getInteger("soak.rate", 2000);
+        FaultInjectingBulkEndpoint endpoint = new FaultInjectingBulkEndpoint();
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .transport(transport)
+                .flushSecs(1)
+                .maxConcurrentRequests(MAX_CONCURRENT_REQUESTS)
+                .build();
+        // bulk responses in which every other item is rejected leave extra buffers behind
+        endpoint.partialRate = 0.05;
+        AtomicInteger seq = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int i = 0; i < PRODUCERS; i++) {
+            Thread producer = new Thread(new Producer(client, seq, stop, failure, rate / PRODUCERS),
+                    "soak-producer-" + i);
+            producers.add(producer);
+            producer.start();
+        }
+        long sampleMillis = Math.max(1000L, seconds * 1000L / 120L);
+        long stormPeriodMillis = Math.max(10000L, seconds * 1000L / 10L);
+        List<Sample> samples = new ArrayList<Sample>();
+        long start = System.currentTimeMillis();
+        long elapsed;
+        System.out.println("seconds  heap-MB  threads  buffers  queued  sent  delivered  dropped  requests  resets  broken"
+                + "  429  partial");
+        while ((elapsed = System.currentTimeMillis() - start) < seconds * 1000L && failure.get() == null) {
+            // a storm of 429 responses in the last fifth of each period
+            endpoint.storm = elapsed % stormPeriodMillis > stormPeriodMillis * 4 / 5;
+            Thread.sleep(sampleMillis);
+            Sample sample = new Sample(elapsed / 1000L, client, seq.get(), endpoint);
+            samples.add(sample);
+            System.out.println(sample);
+        }
+        stop.set(true);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertNull("producer failed: " + failure.get(), failure.get());
+        // recovery: everything that was not dropped by the queue limit must arrive
+        endpoint.faults = false;
+        int sent = seq.get();
+        long deadline = System.currentTimeMillis() + 60000L;
+        while (System.currentTimeMillis() < deadline
+                && (client.getQueuedEvents() > 0 || endpoint.delivered() + client.getDroppedEvents() < sent)) {
+            Thread.sleep(500L);
+        }
+        Sample last = new Sample((System.currentTimeMillis() - start) / 1000L, client, sent, endpoint);
+        System.out.println(last);
+        client.close();
+        endpoint.close();
+        assertEquals(0, last.queued);
+        assertTrue("lost " + (sent - last.delivered - last.dropped) + " of " + sent + " events",
+                last.delivered + last.dropped >= sent);
+        for (Sample sample : samples) {
+            assertTrue("queue grew to " + sample.queuedBytes + " bytes",
+                    sample.queuedBytes <= ElasticsearchHttpClient.DEFAULT_MAX_QUEUED_BYTES);
+            assertTrue("pool grew to " + sample.buffers + " buffers",
+                    sample.buffers <= MAX_CONCURRENT_REQUESTS + 1);
+        }
+        assertBounded(samples);
+    }
+
+    /**
+     * Compare the second half of the run to the first half, after a warm-up of a fifth of the run.
+     * Both halves go through several storms, so the backlog is about the same.
+     */
+    private static void assertBounded(List<Sample> samples) {
+        List<Sample> steady = samples.subList(samples.size() / 5, samples.size());
+        if (steady.size() < 4) {
+            System.out.println("run too short to check growth");
+            return;
+        }
+        List<Sample> first = steady.subList(0, steady.size() / 2);
+        List<Sample> second = steady.subList(steady.size() / 2, steady.size());
+        long heap1 = maxHeap(first);
+        long heap2 = maxHeap(second);
+        assertTrue("heap after GC grew from " + heap1 / (1024 * 1024) + " MB to " + heap2 / (1024 * 1024) + " MB",
+                heap2 <= heap1 + heap1 / 2 + 8L * 1024 * 1024);
+        int threads1 = maxThreads(first);
+        int threads2 = maxThreads(second);
+        assertTrue("threads grew from " + threads1 + " to " + threads2, threads2 <= threads1 + 2);
+    }
+
+    private static long maxHeap(List<Sample> samples) {
+        long max = 0L;
+        for (Sample sample : samples) {
+            max = Math.max(max, sample.heap);
+        }
+        return max;
+    }
+
+    private static int maxThreads(List<Sample> samples) {
+        int max = 0;
+        for (Sample sample : samples) {
+            max = Math.max(max, sample.threads);
+        }
+        return max;
+    }
+
+    private static class Producer implements Runnable {
+
+        private final ElasticsearchHttpClient client;
+
+        private final AtomicInteger seq;
+
+        private final AtomicBoolean stop;
+
+        private final AtomicReference<Throwable> failure;
+
+        private final int rate;
+
+        private final Random random = new Random();
+
+        Producer(ElasticsearchHttpClient client, AtomicInteger seq, AtomicBoolean stop,
+                 AtomicReference<Throwable> failure, int rate) {
+            this.client = client;
+            this.seq = seq;
+            this.stop = stop;
+            this.failure = failure;
+            this.rate = Math.max(1, rate);
+        }
+
+        @Override
+        public void run() {
+            char[] payload = new char[1000];
+            Arrays.fill(payload, 'x');
+            long t0 = System.nanoTime();
+            long n = 0;
+            try {
+                while (!stop.get()) {
+                    Map<String, Object> map = new LinkedHashMap<String, Object>();
+                    map.put("seq", seq.getAndIncrement());
+                    map.put("level", "INFO");
+                    map.put("loggerName", Thread.currentThread().getName());
+                    map.put("message", new String(payload, 0, 50 + random.nextInt(payload.length - 50)));
+                    client.index(map);
+                    // pace to the rate
+                    long due = t0 + ++n * 1000000000L / rate;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                    }
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        }
+    }
+
+    private static class Sample {
+
+        private final long seconds;
+
+        private final long heap;
+
+        private final int threads;
+
+        private final int buffers;
+
+        private final int queued;
+
+        private final long queuedBytes;
+
+        private final int sent;
+
+        private final int delivered;
+
+        private final long dropped;
+
+        private final String faults;
+
+        Sample(long seconds, ElasticsearchHttpClient client, int sent, FaultInjectingBulkEndpoint endpoint) {
+            System.gc();
+            this.seconds = seconds;
+            this.heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            int n = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                // threads of the test itself are not counted
+                if (!thread.getName().startsWith("soak-")) {
+                    n++;
+                }
+            }
+            this.threads = n;
+            this.buffers = client.getPooledBuffers();
+            this.queued = client.getQueuedEvents();
+            this.queuedBytes = client.getQueuedBytes();
+            this.sent = sent;
+            this.delivered = endpoint.delivered();
+            this.dropped = client.getDroppedEvents();
+            this.faults = endpoint.requests.get() + "  " + endpoint.resets.get() + "  " + endpoint.broken.get()
+                    + "  " + endpoint.rejected.get() + "  " + endpoint.partial.get();
+        }
+
+        @Override
+        public String toString() {
+            return seconds + "  " + heap / (1024 * 1024) + "  " + threads + "  " + buffers + "  " + queued + "  " + sent + "  "
+                    + delivered + "  " + dropped + "  " + faults;
+        }
+    }
+}
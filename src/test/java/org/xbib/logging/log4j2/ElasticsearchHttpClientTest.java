@@ -0,0 +1,507 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.ObjectMessage;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticsearchHttpClientTest {
+
+    @Test
+    public void testBufferPoolBoundedUnderPartialRejections() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = quietEndpoint();
+        endpoint.partialRate = 1.0;
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .flushSecs(3600)
+                .maxActionsPerBulkRequest(16)
+                .build();
+        try {
+            for (int i = 0; i < 200; i++) {
+                client.index(event(i));
+            }
+            // each flush sends the rejected half of the last bulk request again, which is rejected in half again
+            for (int i = 0; i < 30; i++) {
+                client.flush();
+                assertTrue("pool grew to " + client.getPooledBuffers() + " buffers", client.getPooledBuffers() <= 2);
+            }
+            endpoint.partialRate = 0.0;
+            for (int i = 0; i < 30 && endpoint.delivered() < 200; i++) {
+                client.flush();
+            }
+            assertEquals(200, endpoint.delivered());
+            assertTrue(client.getPooledBuffers() <= 2);
+        } finally {
+            client.close();
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testNoEventsShedByDefault() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = quietEndpoint();
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .flushSecs(3600)
+                .maxActionsPerBulkRequest(100000)
+                .maxQueuedBytes(16384L)
+                .build();
+        try {
+            // past the soft limit of three quarters, INFO events are kept unless a shed level is set
+            for (int i = 0; i < 1000 && client.getQueuedBytes() < 15000L; i++) {
+                client.index(event(i));
+            }
+            assertTrue(client.getQueuedBytes() >= 15000L);
+            assertEquals(0, client.getDroppedEvents());
+        } finally {
+            client.close();
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testCloseCancelsScheduledFlush() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = quietEndpoint();
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .flushSecs(3600)
+                .build();
+        try {
+            client.index(event(0));
+            client.close();
+            assertEquals(1, endpoint.delivered());
+            // the flush that was scheduled for the next interval is cancelled, its thread ends
+            long deadline = System.currentTimeMillis() + 2000L;
+            while (flushThreads() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50L);
+            }
+            assertEquals(0, flushThreads());
+        } finally {
+            endpoint.close();
+        }
+    }
+
+    private static int flushThreads() {
+        int n = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("elasticsearch-http-flush-") && thread.isAlive()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void testBarrierCoversEventsQueuedBeforeTracking() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = quietEndpoint();
+        endpoint.maxLatencyMillis = 20;
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .flushSecs(3600)
+                .maxActionsPerBulkRequest(10)
+                .priorityLevel("ERROR")
+                .build();
+        try {
+            for (int i = 0; i < 100; i++) {
+                Map<String, Object> event = event(i);
+                if (i % 10 == 0) {
+                    // sent by the priority sender
+                    event.put("level", "ERROR");
+                }
+                client.index(event);
+            }
+            // the events were queued without delivery tracking, the barrier waits for them nevertheless
+            assertTrue(client.barrier().get(10L, TimeUnit.SECONDS));
+            assertEquals(100, endpoint.delivered());
+            client.index(event(100));
+            assertTrue(client.barrier().get(10L, TimeUnit.SECONDS));
+            assertEquals(101, endpoint.delivered());
+        } finally {
+            client.close();
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testResentCreateConflictIsDelivered() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = quietEndpoint();
+        endpoint.conflicts = true;
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .flushSecs(3600)
+                .create(true)
+                .generateIds(true)
+                .build();
+        try {
+            // track the delivery of the following events
+            client.barrier();
+            for (int i = 0; i < 10; i++) {
+                client.index(event(i));
+            }
+            // the documents are indexed, but the response is lost, so the bulk request is sent again
+            endpoint.lostRate = 1.0;
+            client.flush();
+            assertEquals(10, endpoint.delivered());
+            endpoint.lostRate = 0.0;
+            client.flush();
+            assertTrue(client.barrier().get(10L, TimeUnit.SECONDS));
+            assertEquals(0, client.getDroppedEvents());
+        } finally {
+            client.close();
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testTakeOver() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = quietEndpoint();
+        ElasticsearchHttpClient old = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .flushSecs(3600)
+                .shutdownTimeoutMillis(1000L)
+                .build();
+        ElasticsearchHttpClient successor = null;
+        try {
+            // queued before delivery tracking, covered by the first barrier as a whole
+            for (int i = 0; i < 5; i++) {
+                old.index(event(i));
+            }
+            endpoint.storm = true;
+            Future<Boolean> first = old.barrier();
+            for (int i = 5; i < 10; i++) {
+                old.index(event(i));
+            }
+            // rejected with 429, so the events wait for a retry
+            old.flush();
+            Future<Boolean> second = old.barrier();
+            assertFalse(first.isDone());
+            assertFalse(second.isDone());
+            // the new configuration starts before the old one stops
+            successor = ElasticsearchHttpClient.builder()
+                    .url(endpoint.getUrl())
+                    .flushSecs(3600)
+                    .maxActionsPerBulkRequest(100)
+                    .build();
+            for (int i = 10; i < 15; i++) {
+                successor.index(event(i));
+            }
+            // still rejected, so the old client could not send its events itself before its deadline
+            old.close();
+            assertEquals(0, old.getQueuedEvents());
+            assertFalse(first.isDone());
+            endpoint.storm = false;
+            assertTrue(successor.barrier().get(10L, TimeUnit.SECONDS));
+            assertEquals(15, endpoint.delivered());
+            // the epochs of the old client are completed by the successor
+            assertTrue(first.get(10L, TimeUnit.SECONDS));
+            assertTrue(second.get(10L, TimeUnit.SECONDS));
+            assertEquals(0, old.getDroppedEvents());
+            assertEquals(0, successor.getDroppedEvents());
+        } finally {
+            old.close();
+            if (successor != null) {
+                successor.close();
+            }
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testActionLines() throws Exception {
+        assertActionLines(ElasticsearchHttpClient.builder().index("logs").type("event"),
+                "/_bulk", "{\"index\":{\"_index\":\"logs\",\"_type\":\"event\"}}");
+        assertActionLines(ElasticsearchHttpClient.builder().index("logs").type("event").typeless(true),
+                "/_bulk", "{\"index\":{\"_index\":\"logs\"}}");
+        assertActionLines(ElasticsearchHttpClient.builder().index("logs").type("event").indexInUrl(true),
+                "/logs/event/_bulk", "{\"index\":{}}");
+        assertActionLines(ElasticsearchHttpClient.builder().index("logs").type("event").indexInUrl(true)
+                .typeless(true), "/logs/_bulk", "{\"index\":{}}");
+    }
+
+    @Test
+    public void testActionLinesWithGeneratedIds() throws Exception {
+        List<String> lines = assertActionLines(ElasticsearchHttpClient.builder().index("logs").type("event")
+                .create(true).generateIds(true), "/_bulk", null);
+        Set<String> ids = new HashSet<String>();
+        for (String line : lines) {
+            assertTrue(line, line.matches("\\{\"create\":\\{\"_index\":\"logs\",\"_type\":\"event\","
+                    + "\"_id\":\"[^\"]{20}\"\\}\\}"));
+            ids.add(line);
+        }
+        // the ID is spliced into the metadata of each action
+        assertEquals(lines.size(), ids.size());
+        lines = assertActionLines(ElasticsearchHttpClient.builder().index("logs").type("event")
+                .indexInUrl(true).typeless(true).generateIds(true), "/logs/_bulk", null);
+        for (String line : lines) {
+            assertTrue(line, line.matches("\\{\"index\":\\{\"_id\":\"[^\"]{20}\"\\}\\}"));
+        }
+    }
+
+    /**
+     * Send three events and check the path and the action lines of the bulk request.
+     *
+     * @param action the expected action line, or null if it differs per action
+     * @return the action lines
+     */
+    private static List<String> assertActionLines(ElasticsearchHttpClient.Builder builder, String path,
+                                                  String action) throws Exception {
+        FaultInjectingBulkEndpoint endpoint = quietEndpoint();
+        endpoint.keepRequests = true;
+        ElasticsearchHttpClient client = builder.url(endpoint.getUrl()).flushSecs(3600).build();
+        try {
+            for (int i = 0; i < 3; i++) {
+                client.index(event(i));
+            }
+            client.flush();
+            assertEquals(3, endpoint.delivered());
+            assertEquals(1, endpoint.paths().size());
+            assertEquals(path, endpoint.paths().get(0));
+            List<String> lines = endpoint.actionLines();
+            assertEquals(3, lines.size());
+            if (action != null) {
+                for (String line : lines) {
+                    assertEquals(action, line);
+                }
+            }
+            return lines;
+        } finally {
+            client.close();
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testDeliveryMarker() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = quietEndpoint();
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .flushSecs(3600)
+                .build();
+        ElasticsearchHttpConnection connection = new ElasticsearchHttpConnection(client,
+                new ElasticsearchHttpClient.Target("test", "test", false), "AUDIT");
+        try {
+            connection.insertObject(object(0, null));
+            assertNull(ElasticsearchHttpClients.delivery());
+            connection.insertObject(object(1, "AUDIT"));
+            Future<Boolean> delivery = ElasticsearchHttpClients.delivery();
+            // sent right away, without waiting for the next flush
+            assertTrue(delivery.get(10L, TimeUnit.SECONDS));
+            assertTrue(endpoint.delivered() >= 1);
+            assertNull(ElasticsearchHttpClients.delivery());
+        } finally {
+            connection.close();
+            endpoint.close();
+        }
+    }
+
+    private static ElasticsearchObject object(int seq, String marker) {
+        ElasticsearchObject object = new ElasticsearchObject();
+        for (Map.Entry<String, Object> entry : event(seq).entrySet()) {
+            object.set(entry.getKey(), entry.getValue());
+        }
+        if (marker != null) {
+            ElasticsearchObject markerObject = new ElasticsearchObject();
+            markerObject.set("name", marker);
+            object.set("marker", markerObject);
+        }
+        return object;
+    }
+
+    @Test
+    public void testShutdownDeadlineWithHangingCluster() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = quietEndpoint();
+        endpoint.hang = true;
+        File spillFile = File.createTempFile("spill", ".json");
+        spillFile.deleteOnExit();
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .flushSecs(3600)
+                .maxActionsPerBulkRequest(10)
+                .shutdownTimeoutMillis(1000L)
+                .shutdownConcurrency(2)
+                .spillFile(spillFile.getPath())
+                .build();
+        try {
+            for (int i = 0; i < 100; i++) {
+                client.index(event(i));
+            }
+            long t0 = System.currentTimeMillis();
+            client.close();
+            long millis = System.currentTimeMillis() - t0;
+            assertTrue("close took " + millis + " ms", millis < 3000L);
+            // the bulk requests on the wire at the deadline are lost, the rest is spilled
+            BitSet spilled = readSpillFile(spillFile);
+            assertTrue("spilled " + spilled.cardinality() + " events", spilled.cardinality() >= 80);
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith("elasticsearch-http-")) {
+                    assertTrue(thread.getName() + " is not a daemon thread", thread.isDaemon());
+                }
+            }
+        } finally {
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testShutdownSpillsRejectedBulkRequests() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = quietEndpoint();
+        endpoint.storm = true;
+        File spillFile = File.createTempFile("spill", ".json");
+        spillFile.deleteOnExit();
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .flushSecs(3600)
+                .maxActionsPerBulkRequest(10)
+                .shutdownTimeoutMillis(500L)
+                .spillFile(spillFile.getPath())
+                .build();
+        try {
+            for (int i = 0; i < 100; i++) {
+                client.index(event(i));
+            }
+            // rejected bulk requests wait for a retry when the client is closed
+            client.flush();
+            client.close();
+            BitSet spilled = readSpillFile(spillFile);
+            assertEquals(100, spilled.cardinality());
+            assertEquals(0, endpoint.delivered());
+        } finally {
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testMapMessageFields() throws Exception {
+        MapMessage message = new MapMessage();
+        message.put("level", "audit");
+        message.put("message", "payment approved");
+        message.put("user", "alice");
+        Map<String, Object> event = new LinkedHashMap<String, Object>();
+        event.put("level", "INFO");
+        event.put("loggerName", "test");
+        event.put("message", message);
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder().flushSecs(3600).build();
+        try {
+            // a message field with the name of an event field gets a prefix, the message text does not
+            assertEquals("{\"level\":\"INFO\",\"loggerName\":\"test\",\"message_level\":\"audit\","
+                    + "\"message\":\"payment approved\",\"user\":\"alice\"}\n",
+                    new String(client.encode(event), "UTF-8"));
+        } finally {
+            client.close();
+        }
+        Map<String, Object> expected = new LinkedHashMap<String, Object>();
+        expected.put("level", "INFO");
+        expected.put("loggerName", "test");
+        expected.put("message_level", "audit");
+        expected.put("message", "payment approved");
+        expected.put("user", "alice");
+        client = ElasticsearchHttpClient.builder().flushSecs(3600).format("smile").build();
+        try {
+            assertArrayEquals(new SmileEncoder().encode(expected), client.encode(event));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testObjectMessageFields() throws Exception {
+        Map<String, Object> data = new LinkedHashMap<String, Object>();
+        data.put("date", "yesterday");
+        data.put("count", 3);
+        Map<String, Object> event = new LinkedHashMap<String, Object>();
+        event.put("date", "2014-01-01T00:00:00.000Z");
+        event.put("message", new ObjectMessage(data));
+        event.put("threadName", "main");
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder().flushSecs(3600).build();
+        try {
+            assertEquals("{\"date\":\"2014-01-01T00:00:00.000Z\",\"message_date\":\"yesterday\",\"count\":3,"
+                    + "\"threadName\":\"main\"}\n", new String(client.encode(event), "UTF-8"));
+            // an object message without fields is the message
+            event.put("message", new ObjectMessage(42));
+            assertEquals("{\"date\":\"2014-01-01T00:00:00.000Z\",\"message\":42,\"threadName\":\"main\"}\n",
+                    new String(client.encode(event), "UTF-8"));
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Read the events of a spill file, which must be action and document lines like a bulk request.
+     * Each event must be in the file once.
+     */
+    private static BitSet readSpillFile(File file) throws IOException {
+        BitSet seqs = new BitSet();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String action;
+            while ((action = reader.readLine()) != null) {
+                assertTrue(action, action.startsWith("{\"index\":"));
+                String source = reader.readLine();
+                int pos = source.indexOf("\"seq\":") + 6;
+                int end = pos;
+                while (Character.isDigit(source.charAt(end))) {
+                    end++;
+                }
+                int seq = Integer.parseInt(source.substring(pos, end));
+                assertFalse("event " + seq + " spilled twice", seqs.get(seq));
+                seqs.set(seq);
+            }
+        } finally {
+            reader.close();
+        }
+        return seqs;
+    }
+
+    /**
+     * An endpoint without random faults, which tests turn on one by one.
+     */
+    static FaultInjectingBulkEndpoint quietEndpoint() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = new FaultInjectingBulkEndpoint();
+        endpoint.maxLatencyMillis = 0;
+        endpoint.resetRate = 0.0;
+        endpoint.brokenRate = 0.0;
+        return endpoint;
+    }
+
+    static Map<String, Object> event(int seq) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("seq", seq);
+        map.put("level", "INFO");
+        map.put("message", "event " + seq);
+        return map;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ElasticsearchHttpClientsTest {
+
+    @Test
+    public void testSharedClientIsClosedByLastReference() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = ElasticsearchHttpClientTest.quietEndpoint();
+        String url = endpoint.getUrl();
+        try {
+            ElasticsearchHttpClient first = ElasticsearchHttpClients.acquire(url,
+                    ElasticsearchHttpClient.builder().url(url).flushSecs(3600));
+            ElasticsearchHttpClient second = ElasticsearchHttpClients.acquire(url,
+                    ElasticsearchHttpClient.builder().url(url).flushSecs(3600));
+            assertSame(first, second);
+            first.index(ElasticsearchHttpClientTest.event(0));
+            first.close();
+            // still used by the second appender, nothing is flushed yet
+            second.index(ElasticsearchHttpClientTest.event(1));
+            assertEquals(0, endpoint.delivered());
+            second.close();
+            assertEquals(2, endpoint.delivered());
+            try {
+                second.index(ElasticsearchHttpClientTest.event(2));
+                fail("closed client accepted an event");
+            } catch (AppenderLoggingException e) {
+                // expected
+            }
+            // a closed client is not shared again
+            ElasticsearchHttpClient third = ElasticsearchHttpClients.acquire(url,
+                    ElasticsearchHttpClient.builder().url(url).flushSecs(3600));
+            assertFalse(third == first);
+            third.close();
+        } finally {
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testDifferingOptions() {
+        ElasticsearchHttpClient.Builder builder = ElasticsearchHttpClient.builder()
+                .url("http://localhost:9200/_bulk")
+                .maxActionsPerBulkRequest(500);
+        ElasticsearchHttpClient.Builder other = ElasticsearchHttpClient.builder()
+                .url("http://localhost:9200/_bulk")
+                .index("other")
+                .type("other")
+                .create(true)
+                .maxActionsPerBulkRequest(100)
+                .transport("nio");
+        // index, type and create are kept per appender
+        List<String> options = builder.differences(other);
+        assertEquals(2, options.size());
+        assertTrue(options.contains("maxActionsPerBulkRequest"));
+        assertTrue(options.contains("transport"));
+        assertTrue(builder.differences(ElasticsearchHttpClient.builder().maxActionsPerBulkRequest(500)).isEmpty());
+    }
+}
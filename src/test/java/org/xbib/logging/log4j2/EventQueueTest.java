@@ -0,0 +1,129 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventQueueTest {
+
+    @Test
+    public void testPriorityFirstAndDroppedLast() {
+        EventQueue queue = new EventQueue(3, 0L, 0L);
+        BulkAction info1 = action(10, false);
+        BulkAction info2 = action(10, false);
+        BulkAction error1 = action(10, false);
+        BulkAction error2 = action(10, false);
+        assertTrue(queue.offer(info1, false));
+        assertTrue(queue.offer(info2, false));
+        assertTrue(queue.offer(error1, true));
+        // full: normal events are dropped, priority events evict the oldest normal event
+        assertFalse(queue.offer(action(10, false), false));
+        assertTrue(queue.offer(error2, true));
+        assertEquals(3, queue.size());
+        assertEquals(2L, queue.dropped());
+        assertSame(error1, queue.poll());
+        assertSame(error2, queue.poll());
+        assertSame(info2, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+        assertEquals(0L, queue.bytes());
+    }
+
+    @Test
+    public void testByteBudget() {
+        BulkAction debug = action(100, true);
+        long length = debug.length();
+        EventQueue queue = new EventQueue(0, 3 * length, 2 * length);
+        assertTrue(queue.offer(debug, false));
+        assertTrue(queue.offer(action(100, true), false));
+        // above the soft limit, only sheddable events are dropped
+        assertFalse(queue.offer(action(100, true), false));
+        assertTrue(queue.offer(action(100, false), false));
+        assertEquals(3 * length, queue.bytes());
+        // at the hard limit, everything but priority events is dropped
+        assertFalse(queue.offer(action(100, false), false));
+        assertTrue(queue.offer(action(100, false), true));
+        assertEquals(3, queue.size());
+        assertEquals(3L, queue.dropped());
+    }
+
+    @Test
+    public void testPressureShedsQueuedEvents() {
+        EventQueue queue = new EventQueue(0, 0L, 0L);
+        BulkAction warn = action(10, false);
+        assertTrue(queue.offer(action(10, true), false));
+        assertTrue(queue.offer(warn, false));
+        assertTrue(queue.offer(action(10, true), false));
+        assertEquals(2, queue.pressure(true));
+        assertEquals(0, queue.pressure(true));
+        assertFalse(queue.offer(action(10, true), false));
+        assertTrue(queue.offer(action(10, false), false));
+        queue.pressure(false);
+        assertTrue(queue.offer(action(10, true), false));
+        assertSame(warn, queue.poll());
+        assertEquals(2, queue.size());
+        assertEquals(3L, queue.dropped());
+    }
+
+    @Test
+    public void testFairShare() {
+        EventQueue queue = new EventQueue(6, 0L, 0L,
+                new FairShareLane(FairShareLane.parseWeights("org.noisy=2"), 0));
+        BulkAction[] noisy = new BulkAction[5];
+        for (int i = 0; i < noisy.length; i++) {
+            noisy[i] = action("org.noisy");
+            assertTrue(queue.offer(noisy[i], false));
+        }
+        BulkAction quiet1 = action("org.quiet");
+        assertTrue(queue.offer(quiet1, false));
+        // full: a quiet event evicts the oldest noisy event instead of being dropped
+        BulkAction quiet2 = action("org.quiet");
+        assertTrue(queue.offer(quiet2, false));
+        assertEquals(1L, queue.dropped());
+        // round-robin, two noisy events per round
+        assertSame(noisy[1], queue.poll());
+        assertSame(noisy[2], queue.poll());
+        assertSame(quiet1, queue.poll());
+        assertSame(noisy[3], queue.poll());
+        assertSame(noisy[4], queue.poll());
+        assertSame(quiet2, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testFairShareKey() {
+        assertEquals("org.example", FairShareLane.key("org.example.app.Main", 2));
+        assertEquals("Main", FairShareLane.key("Main", 2));
+        assertEquals("", FairShareLane.key(null, 2));
+    }
+
+    private static BulkAction action(String key) {
+        BulkAction action = action(10, false);
+        action.key = key;
+        return action;
+    }
+
+    private static BulkAction action(int length, boolean sheddable) {
+        return new BulkAction("test", new byte[0], new byte[length], sheddable);
+    }
+}
@@ -0,0 +1,419 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for the bulk endpoint of a cluster in a brownout. It answers with latency,
+ * connection resets, storms of 429 responses, responses that break off in the middle and
+ * responses in which every other item is rejected with 429. Optionally, it loses the responses to
+ * requests whose documents it indexed, and answers documents that were indexed before with 409,
+ * like create actions with the IDs of the first attempt.
+ *
+ * Events are recognized by a "seq" field. Only events of bulk requests that got a complete
+ * OK response count as delivered. Optionally, the paths and action lines of the requests and the
+ * bodies of the requests that got an OK response are kept, and requests above a size are refused with 413.
+ */
+class FaultInjectingBulkEndpoint implements Closeable {
+
+    static final String THREAD_NAME_PREFIX = "soak-endpoint-";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] OK_BODY = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(UTF8);
+
+    private static final byte[] REJECTED_BODY = ("{\"error\":{\"type\":\"es_rejected_execution_exception\"},"
+            + "\"status\":429}").getBytes(UTF8);
+
+    private final ServerSocket server;
+
+    private final ExecutorService executor;
+
+    private final BitSet delivered = new BitSet();
+
+    private final Random random = new Random();
+
+    final AtomicLong requests = new AtomicLong();
+
+    final AtomicLong resets = new AtomicLong();
+
+    final AtomicLong broken = new AtomicLong();
+
+    final AtomicLong rejected = new AtomicLong();
+
+    final AtomicLong partial = new AtomicLong();
+
+    final AtomicLong tooLarge = new AtomicLong();
+
+    volatile boolean faults = true;
+
+    volatile boolean storm = false;
+
+    /**
+     * Read requests but do not answer them, like a cluster that hangs.
+     */
+    volatile boolean hang = false;
+
+    volatile int maxLatencyMillis = 200;
+
+    volatile double resetRate = 0.02;
+
+    volatile double brokenRate = 0.02;
+
+    volatile double partialRate = 0.0;
+
+    /**
+     * The rate of responses that break off after the documents were indexed.
+     */
+    volatile double lostRate = 0.0;
+
+    /**
+     * Answer documents that were indexed before with 409.
+     */
+    volatile boolean conflicts = false;
+
+    /**
+     * Keep the paths and action lines of the requests, and the bodies of the requests that got an OK response.
+     */
+    volatile boolean keepRequests = false;
+
+    /**
+     * The maximum size of a request body, larger requests are answered with 413, or 0 for no limit.
+     */
+    volatile int maxRequestBytes = 0;
+
+    private final List<String> paths = new ArrayList<String>();
+
+    private final List<String> actionLines = new ArrayList<String>();
+
+    private final ByteArrayOutputStream bodies = new ByteArrayOutputStream();
+
+    private volatile boolean closed;
+
+    FaultInjectingBulkEndpoint() throws IOException {
+        this.server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, THREAD_NAME_PREFIX + n.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        final Socket socket = server.accept();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        });
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getLocalPort() + "/_bulk";
+    }
+
+    synchronized int delivered() {
+        return delivered.cardinality();
+    }
+
+    synchronized boolean isDelivered(int seq) {
+        return delivered.get(seq);
+    }
+
+    synchronized List<String> paths() {
+        return new ArrayList<String>(paths);
+    }
+
+    synchronized List<String> actionLines() {
+        return new ArrayList<String>(actionLines);
+    }
+
+    /**
+     * The bodies of the requests that got an OK response, in the order of the responses.
+     *
+     * @return the bodies
+     */
+    synchronized byte[] bodies() {
+        return bodies.toByteArray();
+    }
+
+    private synchronized void keep(String path, byte[] body) {
+        paths.add(path);
+        String[] lines = new String(body, UTF8).split("\n");
+        for (int i = 0; i < lines.length; i += 2) {
+            actionLines.add(lines[i]);
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (!closed) {
+                StringBuilder path = new StringBuilder();
+                byte[] body = readRequest(in, path);
+                if (body == null) {
+                    break;
+                }
+                requests.incrementAndGet();
+                if (keepRequests) {
+                    keep(path.toString(), body);
+                }
+                double r;
+                long latency;
+                synchronized (random) {
+                    r = random.nextDouble();
+                    latency = maxLatencyMillis > 0 ? random.nextInt(maxLatencyMillis) : 0L;
+                }
+                if (maxRequestBytes > 0 && body.length > maxRequestBytes) {
+                    tooLarge.incrementAndGet();
+                    respond(out, "413 Request Entity Too Large", new byte[0]);
+                    continue;
+                }
+                if (faults && latency > 0) {
+                    Thread.sleep(latency);
+                }
+                while (faults && hang && !closed) {
+                    Thread.sleep(50L);
+                }
+                if (faults && storm) {
+                    rejected.incrementAndGet();
+                    respond(out, "429 Too Many Requests", REJECTED_BODY);
+                } else if (faults && r < resetRate) {
+                    // RST instead of FIN
+                    resets.incrementAndGet();
+                    socket.setSoLinger(true, 0);
+                    break;
+                } else if (faults && r < resetRate + brokenRate) {
+                    broken.incrementAndGet();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: "
+                            + OK_BODY.length + "\r\n\r\n").getBytes(UTF8));
+                    out.write(OK_BODY, 0, OK_BODY.length / 2);
+                    out.flush();
+                    break;
+                } else if (faults && r < resetRate + brokenRate + partialRate) {
+                    partial.incrementAndGet();
+                    respond(out, "200 OK", rejectEveryOtherItem(body));
+                } else if (faults && r < resetRate + brokenRate + partialRate + lostRate) {
+                    broken.incrementAndGet();
+                    record(body);
+                    socket.setSoLinger(true, 0);
+                    break;
+                } else if (conflicts) {
+                    respond(out, "200 OK", conflictWithIndexedItems(body));
+                } else {
+                    record(body);
+                    if (keepRequests) {
+                        synchronized (this) {
+                            bodies.write(body, 0, body.length);
+                        }
+                    }
+                    respond(out, "200 OK", OK_BODY);
+                }
+            }
+        } catch (IOException e) {
+            // connection closed by the client
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void respond(OutputStream out, String status, byte[] body) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Type: application/json\r\nContent-Length: "
+                + body.length + "\r\n\r\n").getBytes(UTF8));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Record the documents at even positions and answer the others with 429.
+     *
+     * @return the bulk response
+     */
+    private byte[] rejectEveryOtherItem(byte[] body) {
+        String[] lines = new String(body, UTF8).split("\n");
+        StringBuilder sb = new StringBuilder("{\"took\":1,\"errors\":true,\"items\":[");
+        for (int i = 0; i + 1 < lines.length; i += 2) {
+            int item = i / 2;
+            if (item > 0) {
+                sb.append(',');
+            }
+            if (item % 2 == 0) {
+                record(lines[i + 1]);
+                sb.append("{\"index\":{\"status\":201}}");
+            } else {
+                sb.append("{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}}");
+            }
+        }
+        return sb.append("]}").toString().getBytes(UTF8);
+    }
+
+    /**
+     * Record the documents and answer those that were recorded before with 409.
+     *
+     * @return the bulk response
+     */
+    private synchronized byte[] conflictWithIndexedItems(byte[] body) {
+        String[] lines = new String(body, UTF8).split("\n");
+        StringBuilder sb = new StringBuilder("{\"took\":1,\"errors\":true,\"items\":[");
+        for (int i = 0; i + 1 < lines.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            int seq = seq(lines[i + 1], lines[i + 1].indexOf("\"seq\":") + 6);
+            if (delivered.get(seq)) {
+                sb.append("{\"create\":{\"status\":409,\"error\":{\"type\":\"version_conflict_engine_exception\"}}}");
+            } else {
+                delivered.set(seq);
+                sb.append("{\"create\":{\"status\":201}}");
+            }
+        }
+        return sb.append("]}").toString().getBytes(UTF8);
+    }
+
+    private void record(byte[] body) {
+        record(new String(body, UTF8));
+    }
+
+    private synchronized void record(String s) {
+        int pos = 0;
+        while ((pos = s.indexOf("\"seq\":", pos)) >= 0) {
+            pos += 6;
+            delivered.set(seq(s, pos));
+        }
+    }
+
+    private static int seq(String s, int pos) {
+        int end = pos;
+        while (end < s.length() && Character.isDigit(s.charAt(end))) {
+            end++;
+        }
+        return Integer.parseInt(s.substring(pos, end));
+    }
+
+    /**
+     * Read a request with a fixed length or chunked body.
+     *
+     * @param path receives the path of the request
+     * @return the body, or null at the end of the stream
+     */
+    private static byte[] readRequest(InputStream in, StringBuilder path) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            return null;
+        }
+        // POST /_bulk HTTP/1.1
+        String[] parts = line.split(" ");
+        path.append(parts.length > 1 ? parts[1] : "");
+        int length = 0;
+        boolean chunked = false;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            String lower = line.toLowerCase();
+            if (lower.startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring(15).trim());
+            } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                chunked = true;
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (chunked) {
+            while (true) {
+                int size = Integer.parseInt(readLine(in).trim(), 16);
+                if (size == 0) {
+                    readLine(in);
+                    break;
+                }
+                readFully(in, body, size);
+                readLine(in);
+            }
+        } else {
+            readFully(in, body, length);
+        }
+        return body.toByteArray();
+    }
+
+    private static void readFully(InputStream in, ByteArrayOutputStream out, int length) throws IOException {
+        byte[] b = new byte[8192];
+        while (length > 0) {
+            int n = in.read(b, 0, Math.min(b.length, length));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            out.write(b, 0, n);
+            length -= n;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int len = sb.length();
+                return len > 0 && sb.charAt(len - 1) == '\r' ? sb.substring(0, len - 1) : sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        executor.shutdownNow();
+    }
+}
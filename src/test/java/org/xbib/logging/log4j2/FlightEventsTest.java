@@ -0,0 +1,55 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FlightEventsTest {
+
+    @Test
+    public void testInstance() {
+        FlightEvents events = FlightEvents.getInstance();
+        assertNotNull(events);
+        // the JFR events where they are compiled and the JDK has jdk.jfr, otherwise the hooks that record nothing
+        boolean jfr;
+        try {
+            Class.forName("org.xbib.logging.log4j2.JfrFlightEvents");
+            Class.forName("jdk.jfr.Event");
+            jfr = true;
+        } catch (ClassNotFoundException e) {
+            jfr = false;
+        }
+        assertEquals(jfr ? "JfrFlightEvents" : "FlightEvents", events.getClass().getSimpleName());
+    }
+
+    @Test
+    public void testNoOp() {
+        FlightEvents events = new FlightEvents();
+        assertNull(events.beginSend());
+        assertNull(events.beginDrain());
+        assertNull(events.beginEncode());
+        // the end methods take the null of a disabled event
+        events.endSend(null, "localhost:9200", 100, 1, 200);
+        events.endDrain(null, 100, 1);
+        events.endEncode(null, FlightEvents.LARGE_EVENT_BYTES);
+        events.retry("localhost:9200", 100, 1, 429);
+        events.backoff(true, 1);
+    }
+}
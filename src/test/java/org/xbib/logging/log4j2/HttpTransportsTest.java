@@ -0,0 +1,103 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpTransportsTest {
+
+    @Test
+    public void testSelectionByName() throws Exception {
+        for (String name : new String[]{null, "", "urlconnection"}) {
+            HttpTransport transport = HttpTransports.create(name);
+            assertTrue(transport instanceof UrlConnectionHttpTransport);
+            transport.close();
+        }
+        HttpTransport nio = HttpTransports.create("nio");
+        HttpTransport other = HttpTransports.create("nio");
+        try {
+            assertTrue(nio instanceof NioHttpTransport);
+            // the selector thread is shared
+            assertSame(nio, other);
+        } finally {
+            other.close();
+            nio.close();
+        }
+        HttpTransport custom = HttpTransports.create(CustomTransport.class.getName());
+        assertTrue(custom instanceof CustomTransport);
+        // the HTTP/2 transport, or urlconnection where it is not available
+        HttpTransport http2 = HttpTransports.create("http2");
+        assertNotNull(http2);
+        http2.close();
+    }
+
+    @Test
+    public void testHttp2Fallback() throws Exception {
+        HttpTransport transport = HttpTransports.create("http2", UnlinkableTransport.class.getName());
+        assertTrue(transport instanceof UrlConnectionHttpTransport);
+        transport.close();
+        transport = HttpTransports.create("http2", "org.xbib.logging.log4j2.MissingTransport");
+        assertTrue(transport instanceof UrlConnectionHttpTransport);
+        transport.close();
+    }
+
+    @Test
+    public void testUnknownName() {
+        try {
+            HttpTransports.create("org.xbib.logging.log4j2.MissingTransport");
+            fail("unknown transport created");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not found"));
+        }
+        try {
+            HttpTransports.create("java.lang.Object");
+            fail("object created as transport");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not a transport"));
+        }
+    }
+
+    public static class CustomTransport implements HttpTransport {
+
+        @Override
+        public Future<Response> post(URL url, String contentType, BulkBuffer body) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Fails like a transport that is compiled for a later Java version.
+     */
+    public static class UnlinkableTransport extends CustomTransport {
+
+        public UnlinkableTransport() {
+            throw new UnsupportedClassVersionError("compiled for a later Java version");
+        }
+    }
+}
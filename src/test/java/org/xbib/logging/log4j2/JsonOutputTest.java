@@ -0,0 +1,53 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class JsonOutputTest {
+
+    @Test
+    public void testEscapeAndEncode() throws Exception {
+        assertEquals("\"plain\"", quote("plain"));
+        assertEquals("\"a\\\"b\\\\c/\"", quote("a\"b\\c/"));
+        assertEquals("\"\\b\\t\\n\\f\\r\\u0000\\u001f\\u007f\\u0085\"", quote("\b\t\n\f\r\u0000\u001f\u007f\u0085"));
+        assertEquals("\"\\u2028\\u2029\"", quote("\u2028\u2029"));
+        // encoded like String.getBytes, unpaired surrogates included
+        assertEquals("\"\u00e4\u20ac \ud83d\ude00 ? x ?\"", quote("\u00e4\u20ac \ud83d\ude00 \ud83d x \ude00"));
+    }
+
+    @Test
+    public void testCache() {
+        Utf8Cache cache = new Utf8Cache(16);
+        String key = "loggerName";
+        byte[] b = cache.get(key);
+        assertSame(b, cache.get(key));
+        assertSame(b, cache.get(new String(key)));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            sb.append('x');
+        }
+        assertNull(cache.get(sb.toString()));
+    }
+
+    private static String quote(String s) throws Exception {
+        return new String(JsonOutput.quote(s), "UTF-8");
+    }
+}
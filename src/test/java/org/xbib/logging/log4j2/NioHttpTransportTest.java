@@ -0,0 +1,223 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NioHttpTransportTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testParseChunkedResponse() throws IOException {
+        NioHttpTransport.ResponseParser parser = new NioHttpTransport.ResponseParser();
+        byte[] bytes = ("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n").getBytes(UTF8);
+        // feed byte by byte to exercise incremental parsing
+        boolean done = false;
+        for (byte b : bytes) {
+            done = parser.parse(ByteBuffer.wrap(new byte[]{b}));
+        }
+        assertEquals(true, done);
+        assertEquals(200, parser.response().getStatus());
+        assertEquals("hello world", new String(parser.response().getBody(), UTF8));
+        assertEquals(true, parser.keepAlive());
+    }
+
+    @Test
+    public void testPostKeepAlive() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final AtomicInteger connections = new AtomicInteger();
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+                    OutputStream out = socket.getOutputStream();
+                    for (int i = 0; i < 2; i++) {
+                        int length = 0;
+                        String line;
+                        while ((line = in.readLine()) != null && !line.isEmpty()) {
+                            if (line.toLowerCase().startsWith("content-length:")) {
+                                length = Integer.parseInt(line.substring(15).trim());
+                            }
+                        }
+                        char[] body = new char[length];
+                        int n = 0;
+                        while (n < length) {
+                            n += in.read(body, n, length - n);
+                        }
+                        byte[] response = new String(body).toUpperCase().getBytes(UTF8);
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + response.length + "\r\n\r\n").getBytes(UTF8));
+                        out.write(response);
+                        out.flush();
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    // test fails on the client side
+                }
+            }
+        };
+        server.start();
+        NioHttpTransport transport = new NioHttpTransport(10000L);
+        try {
+            URL url = new URL("http://localhost:" + serverSocket.getLocalPort() + "/_bulk");
+            for (String s : new String[]{"first", "second"}) {
+                ByteBuffer body = ByteBuffer.allocateDirect(16);
+                body.put(s.getBytes(UTF8)).flip();
+                NioHttpTransport.Response response = transport.post(url, "application/x-ndjson",
+                        ByteBuffer.wrap("{}\n".getBytes(UTF8)), body).get(10, TimeUnit.SECONDS);
+                assertEquals(200, response.getStatus());
+                assertEquals("{}\n" + s.toUpperCase(), new String(response.getBody(), UTF8));
+            }
+            assertEquals(1, connections.get());
+        } finally {
+            transport.close();
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void testBadContentLength() {
+        NioHttpTransport.ResponseParser parser = new NioHttpTransport.ResponseParser();
+        try {
+            parser.parse(ByteBuffer.wrap("HTTP/1.1 200 OK\r\nContent-Length: abc\r\n\r\n".getBytes(UTF8)));
+            fail("bad Content-Length accepted");
+        } catch (IOException e) {
+            assertEquals("bad Content-Length: abc", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testBadHeaderFailsOnlyItsConnection() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    String[] heads = {"Content-Length: abc", "Content-Length: 2"};
+                    for (String head : heads) {
+                        Socket socket = serverSocket.accept();
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+                        String line;
+                        while ((line = in.readLine()) != null && !line.isEmpty()) {
+                            // skip request headers, the body is small enough to ignore
+                        }
+                        OutputStream out = socket.getOutputStream();
+                        out.write(("HTTP/1.1 200 OK\r\n" + head + "\r\n\r\nok").getBytes(UTF8));
+                        out.flush();
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // test fails on the client side
+                }
+            }
+        };
+        server.start();
+        NioHttpTransport transport = new NioHttpTransport(10000L);
+        try {
+            URL url = new URL("http://localhost:" + serverSocket.getLocalPort() + "/_bulk");
+            try {
+                transport.post(url, "application/x-ndjson", ByteBuffer.wrap("{}\n".getBytes(UTF8)),
+                        ByteBuffer.allocate(0)).get(10, TimeUnit.SECONDS);
+                fail("bad Content-Length accepted");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            // the selector thread survived and serves the next request
+            NioHttpTransport.Response response = transport.post(url, "application/x-ndjson",
+                    ByteBuffer.wrap("{}\n".getBytes(UTF8)), ByteBuffer.allocate(0)).get(10, TimeUnit.SECONDS);
+            assertEquals(200, response.getStatus());
+            assertEquals("ok", new String(response.getBody(), UTF8));
+        } finally {
+            transport.close();
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void testRejectsHttps() throws Exception {
+        NioHttpTransport transport = new NioHttpTransport(10000L);
+        try {
+            transport.post(new URL("https://localhost:9200/_bulk"), "application/x-ndjson",
+                    ByteBuffer.wrap("{}\n".getBytes(UTF8)));
+            fail("https URL sent in plain text");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testEarlyResponseWhileWriting() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+                    String line;
+                    while ((line = in.readLine()) != null && !line.isEmpty()) {
+                        // skip request headers, the body is not read
+                    }
+                    OutputStream out = socket.getOutputStream();
+                    out.write("HTTP/1.1 413 Request Entity Too Large\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                            .getBytes(UTF8));
+                    out.flush();
+                    Thread.sleep(500L);
+                    // closing with an unread body resets the connection
+                    socket.close();
+                } catch (Exception e) {
+                    // test fails on the client side
+                }
+            }
+        };
+        server.start();
+        NioHttpTransport transport = new NioHttpTransport(10000L);
+        try {
+            URL url = new URL("http://localhost:" + serverSocket.getLocalPort() + "/_bulk");
+            // larger than the socket buffers, so the body is still being written when the response arrives
+            ByteBuffer body = ByteBuffer.allocateDirect(32 * 1024 * 1024);
+            NioHttpTransport.Response response = transport.post(url, "application/x-ndjson", body)
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals(413, response.getStatus());
+        } finally {
+            transport.close();
+            serverSocket.close();
+        }
+    }
+}
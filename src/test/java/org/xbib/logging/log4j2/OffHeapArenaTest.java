@@ -0,0 +1,62 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class OffHeapArenaTest {
+
+    @Test
+    public void testStageAndRecycle() {
+        OffHeapArena arena = new OffHeapArena(1024, 2048);
+        BulkBuffer buffer = new BulkBuffer();
+        for (int i = 0; i < 3; i++) {
+            BulkAction action = arena.allocate("test", "{}\n".getBytes(), new byte[400], false);
+            assertNotNull(action);
+            action.writeTo(buffer);
+        }
+        // two chunks are used up, the arena is full
+        assertNull(arena.allocate("test", "{}\n".getBytes(), new byte[800], false));
+        assertEquals(3 * 403, buffer.size());
+        // actions next to each other in a chunk share a slice
+        ByteBuffer[] buffers = buffer.toDirectByteBuffers();
+        assertEquals(2, buffers.length);
+        assertEquals(806, buffers[0].remaining());
+        assertEquals(3 * 403, buffer.toByteArray().length);
+        // acknowledged: the full chunk is recycled
+        buffer.reset();
+        assertEquals(2048L, arena.capacity());
+        assertNotNull(arena.allocate("test", "{}\n".getBytes(), new byte[800], false));
+    }
+
+    @Test
+    public void testLargeAction() {
+        OffHeapArena arena = new OffHeapArena(1024, 4096);
+        BulkAction large = arena.allocate("test", "{}\n".getBytes(), new byte[3000], false);
+        assertNotNull(large);
+        assertEquals(3072L, arena.capacity());
+        assertNull(arena.allocate("test", "{}\n".getBytes(), new byte[2000], false));
+        large.free();
+        assertEquals(0L, arena.capacity());
+        assertNotNull(arena.allocate("test", "{}\n".getBytes(), new byte[2000], false));
+    }
+}
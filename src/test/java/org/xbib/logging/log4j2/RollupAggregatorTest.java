@@ -0,0 +1,86 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RollupAggregatorTest {
+
+    @Test
+    public void testConcurrentCounts() throws Exception {
+        final RollupAggregator aggregator = new RollupAggregator(60000L, 100);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        aggregator.count("app", "INFO", null);
+                        if (j % 10 == 0) {
+                            aggregator.count("app.db", "ERROR", "java.sql.SQLException");
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Map<String, Map<String, Object>> docs = byLogger(aggregator.rollup(System.currentTimeMillis()));
+        assertEquals(2, docs.size());
+        assertEquals(40000L, docs.get("app").get("count"));
+        assertEquals("INFO", docs.get("app").get("level"));
+        assertEquals(4000L, docs.get("app.db").get("count"));
+        assertEquals("java.sql.SQLException", ((Map<?, ?>) docs.get("app.db").get("thrown")).get("type"));
+        // the next interval starts empty
+        assertTrue(aggregator.rollup(System.currentTimeMillis()).isEmpty());
+    }
+
+    @Test
+    public void testMaxKeys() {
+        RollupAggregator aggregator = new RollupAggregator(60000L, 2);
+        aggregator.count("a", "INFO", null);
+        aggregator.count("b", "INFO", null);
+        aggregator.count("c", "INFO", null);
+        aggregator.count("d", "INFO", null);
+        Map<String, Map<String, Object>> docs = byLogger(aggregator.rollup(System.currentTimeMillis()));
+        assertEquals(3, docs.size());
+        assertEquals(2L, docs.get(RollupAggregator.OTHER).get("count"));
+    }
+
+    private static Map<String, Map<String, Object>> byLogger(List<Map<String, Object>> docs) {
+        Map<String, Map<String, Object>> map = new HashMap<String, Map<String, Object>>();
+        for (Map<String, Object> doc : docs) {
+            map.put((String) doc.get("loggerName"), doc);
+        }
+        return map;
+    }
+
+    @Test
+    public void testDefaultIndex() {
+        assertEquals("log4j2-rollup", RollupAggregator.defaultIndex("log4j2"));
+        // the suffix is a literal in a date pattern
+        assertEquals("'log4j2-'yyyyMMdd'-rollup'", RollupAggregator.defaultIndex("'log4j2-'yyyyMMdd"));
+    }
+}
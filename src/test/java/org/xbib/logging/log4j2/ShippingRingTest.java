@@ -0,0 +1,183 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShippingRingTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testWrapAround() throws Exception {
+        File file = File.createTempFile("test", ShippingRing.SUFFIX);
+        file.delete();
+        ShippingRing producer = ShippingRing.create(file, 4096);
+        ShippingRing shipper = ShippingRing.open(file);
+        try {
+            long position = shipper.readPosition();
+            for (int i = 0; i < 100; i++) {
+                String body = "{\"index\":{}}\n{\"i\":" + i + "}\n" + pad(i * 7);
+                assertTrue(producer.offer("/_bulk", "application/x-ndjson", buffer(body)));
+                ShippingRing.Record record = shipper.read(position);
+                assertEquals("/_bulk", record.path);
+                assertEquals("application/x-ndjson", record.contentType);
+                assertEquals(1, record.actions);
+                assertEquals(body, string(record));
+                assertNull(shipper.read(record.next));
+                position = record.next;
+                shipper.commit(position);
+            }
+            assertTrue(position > 2 * producer.capacity());
+            assertTrue(shipper.isEmpty());
+        } finally {
+            producer.close();
+            shipper.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        File file = File.createTempFile("test", ShippingRing.SUFFIX);
+        file.delete();
+        ShippingRing producer = ShippingRing.create(file, 4096);
+        ShippingRing shipper = ShippingRing.open(file);
+        try {
+            String body = "{\"index\":{}}\n" + pad(1000) + "\n";
+            int n = 0;
+            while (producer.offer("/_bulk", "application/x-ndjson", buffer(body))) {
+                n++;
+            }
+            assertEquals(3, n);
+            assertFalse(shipper.isAbandoned());
+            // the space of a shipped record is free again
+            ShippingRing.Record record = shipper.read(shipper.readPosition());
+            shipper.commit(record.next);
+            assertTrue(producer.offer("/_bulk", "application/x-ndjson", buffer(body)));
+            assertFalse(producer.offer("/_bulk", "application/x-ndjson", buffer(body)));
+            assertFalse(producer.offer("/_bulk", "application/x-ndjson", buffer(pad(5000))));
+            producer.close();
+            assertTrue(shipper.isAbandoned());
+            long position = record.next;
+            for (int i = 0; i < 3; i++) {
+                record = shipper.read(position);
+                assertEquals(body, string(record));
+                position = record.next;
+            }
+            assertNull(shipper.read(position));
+        } finally {
+            shipper.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testInvalidRecord() throws Exception {
+        File file = File.createTempFile("test", ShippingRing.SUFFIX);
+        file.delete();
+        ShippingRing producer = ShippingRing.create(file, 4096);
+        ShippingRing shipper = ShippingRing.open(file);
+        try {
+            assertTrue(producer.offer("/_bulk", "application/x-ndjson", buffer("{\"index\":{}}\n{}\n")));
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // a byte of the record, as if the store was not visible yet
+                raf.seek(256 + 40);
+                raf.write('!');
+            } finally {
+                raf.close();
+            }
+            assertNull(shipper.read(0L));
+            Thread.sleep(ShippingRing.INVALID_GRACE_MILLIS + 100L);
+            try {
+                shipper.read(0L);
+                fail("invalid record read");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("corrupt record"));
+            }
+        } finally {
+            producer.close();
+            shipper.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSkipCorruptRecord() throws Exception {
+        File file = File.createTempFile("test", ShippingRing.SUFFIX);
+        file.delete();
+        ShippingRing producer = ShippingRing.create(file, 4096);
+        ShippingRing shipper = ShippingRing.open(file);
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(producer.offer("/_bulk", "application/x-ndjson",
+                        buffer("{\"index\":{}}\n{\"n\":" + i + "}\n")));
+            }
+            ShippingRing.Record first = shipper.read(0L);
+            ShippingRing.Record second = shipper.read(first.next);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // the length of the second record
+                raf.seek(256 + first.next);
+                raf.writeInt(0x7ffffff8);
+            } finally {
+                raf.close();
+            }
+            assertNull(shipper.read(first.next));
+            // the records after the corrupt one are kept
+            assertEquals(second.next, shipper.skip(first.next));
+            assertEquals("{\"index\":{}}\n{\"n\":2}\n", string(shipper.read(second.next)));
+            assertEquals(producer.writePosition(), shipper.skip(second.next));
+        } finally {
+            producer.close();
+            shipper.close();
+            file.delete();
+        }
+    }
+
+    private static BulkBuffer buffer(String s) {
+        BulkBuffer buffer = new BulkBuffer();
+        buffer.startAction(null);
+        buffer.write(s);
+        return buffer;
+    }
+
+    private static String string(ShippingRing.Record record) {
+        byte[] b = new byte[record.body.remaining()];
+        record.body.duplicate().get(b);
+        return new String(b, UTF8);
+    }
+
+    private static String pad(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class SmileEncoderTest {
+
+    @Test
+    public void testEncode() {
+        Map<String, Object> inner = new LinkedHashMap<String, Object>();
+        inner.put("a", true);
+        inner.put("n", 1000);
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("a", 1);
+        map.put("m", inner);
+        map.put("s", "hi");
+        map.put("l", Arrays.asList((Object) null, "ü"));
+        byte[] expected = bytes(
+                ':', ')', '\n', 0x01,
+                0xFA,
+                0x80, 'a', 0xC2,                        // "a": 1 (small int, zigzag 2)
+                0x80, 'm', 0xFA,                        // "m": {
+                0x40, 0x23,                             //   back-reference to "a": true
+                0x80, 'n', 0x24, 0x1F, 0x90,            //   "n": 1000 (zigzag 2000 as VInt)
+                0xFB,                                   // }
+                0x80, 's', 0x41, 'h', 'i',              // "s": "hi"
+                0x80, 'l', 0xF8, 0x21, 0x80, 0xC3, 0xBC, 0xF9, // "l": [null, "ü"]
+                0xFB,
+                0xFF);
+        assertArrayEquals(expected, new SmileEncoder().encode(map));
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+}
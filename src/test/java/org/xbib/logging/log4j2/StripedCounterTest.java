@@ -0,0 +1,59 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripedCounterTest {
+
+    @Test
+    public void testUncontended() {
+        StripedCounter counter = new StripedCounter();
+        for (int i = 0; i < 1000; i++) {
+            counter.increment();
+        }
+        // a single thread never collides, so the counter needs no cells
+        assertEquals(0, counter.cells());
+        assertEquals(1000L, counter.sumThenReset());
+        assertEquals(0L, counter.sumThenReset());
+    }
+
+    @Test
+    public void testContended() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        long sum = 0L;
+        for (Thread thread : threads) {
+            sum += counter.sumThenReset();
+            thread.join();
+        }
+        sum += counter.sumThenReset();
+        assertEquals(800000L, sum);
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeBasedIdGeneratorTest {
+
+    @Test
+    public void testCompactAndOrdered() {
+        TimeBasedIdGenerator generator = new TimeBasedIdGenerator();
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 100000; i++) {
+            ids.add(generator.getId());
+        }
+        Set<String> unique = new HashSet<String>(ids);
+        assertEquals(ids.size(), unique.size());
+        for (String id : ids) {
+            assertEquals(20, id.length());
+        }
+        // timestamp prefix must never decrease
+        for (int i = 1; i < ids.size(); i++) {
+            assertTrue(ids.get(i - 1).substring(0, 8).compareTo(ids.get(i).substring(0, 8)) <= 0);
+        }
+    }
+
+    @Test
+    public void testConcurrentUniqueness() throws InterruptedException {
+        final TimeBasedIdGenerator generator = new TimeBasedIdGenerator();
+        final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final int threads = 8;
+        final int count = 50000;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        ids.add(generator.getId());
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+        latch.await();
+        assertEquals(threads * count, ids.size());
+    }
+}
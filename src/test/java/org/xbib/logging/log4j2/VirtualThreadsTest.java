@@ -0,0 +1,99 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void testExecutor() throws Exception {
+        ExecutorService executor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+        if (!supported()) {
+            assertNull(executor);
+            return;
+        }
+        try {
+            Boolean virtual = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return isVirtual(Thread.currentThread());
+                }
+            }).get(10L, TimeUnit.SECONDS);
+            assertTrue(virtual);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testThreadFactory() throws Exception {
+        Thread thread = VirtualThreads.virtualThreadFactory().newThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        // platform threads from the default factory if virtual threads are not supported
+        assertEquals(supported(), isVirtual(thread));
+    }
+
+    @Test
+    public void testClient() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = ElasticsearchHttpClientTest.quietEndpoint();
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .flushSecs(3600)
+                .maxActionsPerBulkRequest(10)
+                .virtualThreads(true)
+                .build();
+        try {
+            for (int i = 0; i < 100; i++) {
+                client.index(ElasticsearchHttpClientTest.event(i));
+            }
+            assertTrue(client.barrier().get(10L, TimeUnit.SECONDS));
+            assertEquals(100, endpoint.delivered());
+        } finally {
+            client.close();
+            endpoint.close();
+        }
+    }
+
+    /**
+     * Virtual threads are final in Java 21, "1.7" is version 1 here.
+     */
+    private static boolean supported() {
+        String version = System.getProperty("java.specification.version");
+        int dot = version.indexOf('.');
+        return Integer.parseInt(dot < 0 ? version : version.substring(0, dot)) >= 21;
+    }
+
+    private static boolean isVirtual(Thread thread) throws Exception {
+        if (!supported()) {
+            return false;
+        }
+        Method method = Thread.class.getMethod("isVirtual");
+        return (Boolean) method.invoke(thread);
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ *    Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.logging.log4j2;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JfrFlightEventsTest {
+
+    private static final String PREFIX = "org.xbib.logging.log4j2.";
+
+    @Test
+    public void testDisabledByDefault() {
+        FlightEvents events = FlightEvents.getInstance();
+        assertTrue(events instanceof JfrFlightEvents);
+        // without a recording that enables them, the events are not even created
+        assertNull(events.beginSend());
+        assertNull(events.beginDrain());
+        assertNull(events.beginEncode());
+    }
+
+    @Test
+    public void testRecording() throws Exception {
+        FaultInjectingBulkEndpoint endpoint = ElasticsearchHttpClientTest.quietEndpoint();
+        ElasticsearchHttpClient client = ElasticsearchHttpClient.builder()
+                .url(endpoint.getUrl())
+                .flushSecs(3600)
+                .build();
+        Recording recording = new Recording();
+        for (String name : new String[]{"BulkSend", "QueueDrain", "Encode", "BulkRetry", "Backoff"}) {
+            recording.enable(PREFIX + name).withoutThreshold();
+        }
+        File file = File.createTempFile("test", ".jfr");
+        try {
+            recording.start();
+            Map<String, Object> large = ElasticsearchHttpClientTest.event(0);
+            large.put("message", new String(new char[FlightEvents.LARGE_EVENT_BYTES]).replace('\0', 'x'));
+            client.index(large);
+            for (int i = 1; i < 10; i++) {
+                client.index(ElasticsearchHttpClientTest.event(i));
+            }
+            // every other item is rejected, sent again and then indexed
+            endpoint.partialRate = 1.0;
+            client.flush();
+            endpoint.partialRate = 0.0;
+            client.flush();
+            assertTrue(client.barrier().get(10L, TimeUnit.SECONDS));
+            assertEquals(10, endpoint.delivered());
+            recording.stop();
+            Path path = file.toPath();
+            recording.dump(path);
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            List<RecordedEvent> events = RecordingFile.readAllEvents(path);
+            for (RecordedEvent event : events) {
+                String name = event.getEventType().getName();
+                if (!name.startsWith(PREFIX)) {
+                    continue;
+                }
+                name = name.substring(PREFIX.length());
+                counts.put(name, counts.containsKey(name) ? counts.get(name) + 1 : 1);
+                if ("BulkSend".equals(name)) {
+                    assertEquals(200, event.getInt("status"));
+                    assertTrue(event.getInt("actions") > 0);
+                } else if ("BulkRetry".equals(name)) {
+                    assertEquals(429, event.getInt("status"));
+                    assertEquals(5, event.getInt("actions"));
+                } else if ("Encode".equals(name)) {
+                    assertTrue(event.getInt("bytes") >= FlightEvents.LARGE_EVENT_BYTES);
+                }
+            }
+            assertEquals(2, (int) counts.get("BulkSend"));
+            assertEquals(1, (int) counts.get("BulkRetry"));
+            assertEquals(1, (int) counts.get("Encode"));
+            assertTrue(counts.get("QueueDrain") > 0);
+            // into backoff with the rejected items, and out again
+            assertEquals(2, (int) counts.get("Backoff"));
+        } finally {
+            recording.close();
+            client.close();
+            endpoint.close();
+            file.delete();
+        }
+    }
+}